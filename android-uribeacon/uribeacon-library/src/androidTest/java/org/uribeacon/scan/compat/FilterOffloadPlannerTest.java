@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.os.ParcelUuid;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the {@link FilterOffloadPlanner}.
+ */
+public class FilterOffloadPlannerTest extends AndroidTestCase {
+
+  private static final ParcelUuid URI_BEACON_UUID =
+      ParcelUuid.fromString("0000FED8-0000-1000-8000-00805F9B34FB");
+
+  private FilterOffloadPlanner planner;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    planner = new FilterOffloadPlanner();
+    planner.setMaxOffloadedFilters(3);
+  }
+
+  public void testFiltersThatFitAreOffloadedUnchanged() {
+    List<ScanFilter> filters = Arrays.asList(uriBeacon(0x10, 0x01), uriBeacon(0x10, 0x02));
+    FilterOffloadPlanner.Plan plan = planner.plan(filters);
+    assertEquals(filters, plan.filters);
+    assertEquals(2, plan.offloadedCount);
+    assertEquals(0, plan.widenedCount);
+  }
+
+  public void testUnfilteredStaysUnfiltered() {
+    assertNull(planner.plan(null).filters);
+  }
+
+  public void testOverflowIsWidenedToCommonPrefix() {
+    List<ScanFilter> filters = new ArrayList<ScanFilter>();
+    for (int i = 0; i < 6; i++) {
+      filters.add(uriBeacon(0x10, i));
+    }
+    ScanFilter address = new ScanFilter.Builder().setDeviceAddress("00:11:22:33:44:55").build();
+    filters.add(address);
+
+    FilterOffloadPlanner.Plan plan = planner.plan(filters);
+
+    assertEquals(3, plan.filters.size());
+    // The device address is the most selective filter.
+    assertEquals(address, plan.filters.get(0));
+    assertEquals(2, plan.offloadedCount);
+    assertEquals(5, plan.widenedCount);
+    ScanFilter widened = plan.filters.get(2);
+    assertEquals(URI_BEACON_UUID, widened.getServiceDataUuid());
+    assertTrue(Arrays.equals(new byte[] {0x10}, widened.getServiceData()));
+    // Every requested filter passes at least what it did before.
+    for (int i = 0; i < 6; i++) {
+      assertTrue(widened.matches(uriBeaconResult(0x10, i)));
+    }
+  }
+
+  public void testUnwidenableOverflowScansUnfiltered() {
+    List<ScanFilter> filters = new ArrayList<ScanFilter>();
+    for (String name : new String[] {"Bert", "Ernie", "Elmo", "Grover"}) {
+      filters.add(new ScanFilter.Builder().setDeviceName(name).build());
+    }
+    FilterOffloadPlanner.Plan plan = planner.plan(filters);
+    assertNull(plan.filters);
+    assertEquals(4, plan.widenedCount);
+  }
+
+  private static ScanFilter uriBeacon(int flags, int id) {
+    return new ScanFilter.Builder()
+        .setServiceData(URI_BEACON_UUID, new byte[] {(byte) flags, (byte) id})
+        .build();
+  }
+
+  // Returns a result carrying UriBeacon service data.
+  private static ScanResult uriBeaconResult(int flags, int id) {
+    byte[] scanRecordBytes = {
+        0x03, 0x03, (byte) 0xd8, (byte) 0xfe,
+        0x05, 0x16, (byte) 0xd8, (byte) 0xfe, (byte) flags, (byte) id};
+    return new ScanResult(null, ScanRecord.parseFromBytes(scanRecordBytes), 0, 0);
+  }
+}
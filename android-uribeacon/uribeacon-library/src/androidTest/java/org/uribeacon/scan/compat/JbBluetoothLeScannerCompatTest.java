@@ -44,6 +44,8 @@ import org.uribeacon.scan.compat.ScanRecord;
 import org.uribeacon.scan.compat.ScanResult;
 import org.uribeacon.scan.compat.ScanSettings;
 import org.uribeacon.scan.testing.FakeClock;
+import org.uribeacon.scan.testing.FakeScheduler;
+import org.uribeacon.scan.testing.SyntheticRadioSource;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
@@ -164,6 +166,27 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     assertEquals(BALANCED_IDLE_MILLIS, scanner.getScanIdleMillis());
   }
 
+  /**
+   * Verify that changing the scan mode in place applies the new timing without reporting the
+   * devices already seen again.
+   */
+  public void testUpdateScanSettings() {
+    scanner.startScan(NO_FILTER, MEDIUM, callback);
+    onScan("address", 0);
+    assertEquals(1, callback.found);
+
+    assertTrue(scanner.updateScanSettings(callback, FAST));
+    assertEquals(LOW_LATENCY_IDLE_MILLIS, scanner.getScanIdleMillis());
+
+    onScan("address", 0);
+    assertEquals(1, callback.found);
+    assertEquals(1, callback.updated);
+
+    // Only the scan mode can change in place.
+    assertFalse(scanner.updateScanSettings(callback, BATCH));
+    assertFalse(scanner.updateScanSettings(new TestingCallback(), SLOW));
+  }
+
   /**
    * Verify that multiple scan requests uses the most critical preset timing values.
    */
@@ -489,8 +512,223 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
     assertEquals(1, callback.found);
   }
 
+  /**
+   * Test the per-device sample rate reported at the end of each scan cycle.
+   */
+  public void testSamplesPerDevicePerSecond() {
+    scanner.setCustomScanTiming(1000, 1000, -1);
+    scanner.setScanRestartMillis(250);
+    scanner.startScan(NO_FILTER, ALL, callback);
+    assertEquals(0.0, scanner.getSamplesPerDevicePerSecond());
+
+    for (int i = 0; i < 4; i++) {
+      onScan("Bert", nowMillis());
+      onScan("Ernie", nowMillis());
+    }
+    scanner.onScanCycleComplete();
+    assertEquals(4.0, scanner.getSamplesPerDevicePerSecond(), 1e-9);
+
+    // An empty cycle keeps the last measurement.
+    scanner.onScanCycleComplete();
+    assertEquals(4.0, scanner.getSamplesPerDevicePerSecond(), 1e-9);
+
+    onScan("Bert", nowMillis());
+    scanner.onScanCycleComplete();
+    assertEquals(1.0, scanner.getSamplesPerDevicePerSecond(), 1e-9);
+  }
+
+  /**
+   * Test that a low power client sharing the scanner with a low latency client receives
+   * updates no faster than its own scan cycle, coalesced to the latest result.
+   */
+  public void testSlowClientUpdatesAreCoalesced() {
+    TestingCallback slow = new TestingCallback();
+    TestingCallback fast = new TestingCallback();
+    ScanSettings slowAll = builder().setScanMode(SCAN_MODE_LOW_POWER)
+        .setCallbackType(CALLBACK_TYPE_ALL_MATCHES).build();
+    ScanSettings fastAll = builder().setScanMode(SCAN_MODE_LOW_LATENCY)
+        .setCallbackType(CALLBACK_TYPE_ALL_MATCHES).build();
+    long slowCycleMillis = LOW_POWER_ACTIVE_MILLIS + LOW_POWER_IDLE_MILLIS;
+    scanner.setScanLostOverride(10 * slowCycleMillis);
+    scanner.startScan(NO_FILTER, slowAll, slow);
+    scanner.startScan(NO_FILTER, fastAll, fast);
+
+    for (int i = 0; i < 5; i++) {
+      onScan("address", nowMillis());
+    }
+    assertEquals(1, slow.found);
+    assertEquals(0, slow.updated);
+    assertEquals(1, fast.found);
+    assertEquals(4, fast.updated);
+
+    // The pending update is delivered once the slow client's cycle has elapsed.
+    scanner.onScanCycleComplete();
+    assertEquals(0, slow.updated);
+    clock.advance(slowCycleMillis);
+    scanner.onScanCycleComplete();
+    assertEquals(1, slow.updated);
+
+    // Without the fast client the slow client gets every update again.
+    scanner.stopScan(fast);
+    onScan("address", nowMillis());
+    onScan("address", nowMillis());
+    assertEquals(3, slow.updated);
+  }
+
+  /**
+   * Test the full engine off-device, fed by synthetic traffic in virtual time.
+   */
+  public void testSyntheticTraffic() {
+    SyntheticRadioSource radio = new SyntheticRadioSource(clock, 42 /* seed */);
+    radio.addAdvertiser("Bert", scanRecord("Bert"), -60, 2.0, 100);
+    radio.addAdvertiser("Ernie", scanRecord("Ernie"), -70, 2.0, 100);
+    FakeScheduler scheduler = new FakeScheduler(clock, radio);
+    BluetoothLeScannerCompat engine =
+        BluetoothLeScannerCompatProvider.createBluetoothLeScannerCompat(radio, scheduler, clock);
+
+    engine.startScan(BERT_FILTER, FAST, callback);
+    scheduler.runFor(TimeUnit.SECONDS.toMillis(10));
+    assertEquals(6, scheduler.getCycleCount());
+    assertEquals(1, callback.found);
+    assertTrue(callback.updated > 0);
+    assertEquals(0, callback.lost);
+
+    radio.removeAdvertiser("Bert");
+    scheduler.runFor(TimeUnit.SECONDS.toMillis(10));
+    assertEquals(1, callback.lost);
+  }
+
+  /**
+   * Test that restarting the scan within the active window raises the sample rate on radios
+   * reporting each address once per scan session.
+   */
+  public void testScanRestartRaisesSampleRate() {
+    SyntheticRadioSource radio = new SyntheticRadioSource(clock, 42 /* seed */);
+    radio.setReportOncePerSession(true);
+    radio.addAdvertiser("Bert", scanRecord("Bert"), -60, 2.0, 100);
+    FakeScheduler scheduler = new FakeScheduler(clock, radio);
+    BluetoothLeScannerCompat engine =
+        BluetoothLeScannerCompatProvider.createBluetoothLeScannerCompat(radio, scheduler, clock);
+
+    engine.startScan(NO_FILTER, FAST, callback);
+    scheduler.runFor(TimeUnit.SECONDS.toMillis(10));
+    double singleSessionRate = engine.getSamplesPerDevicePerSecond();
+    assertEquals(1000.0 / LOW_LATENCY_ACTIVE_MILLIS, singleSessionRate, 1e-9);
+
+    engine.setScanRestartMillis(LOW_LATENCY_ACTIVE_MILLIS / 6);
+    scheduler.runFor(TimeUnit.SECONDS.toMillis(10));
+    assertEquals(6 * singleSessionRate, engine.getSamplesPerDevicePerSecond(), 1e-9);
+  }
+
+  /**
+   * Test that a Bluetooth reset while restarting the scan within the active window ends the
+   * window instead of failing the scan cycle.
+   */
+  public void testBluetoothResetDuringScanRestart() {
+    SyntheticRadioSource radio = new SyntheticRadioSource(clock, 42 /* seed */) {
+      @Override
+      public boolean start(Listener listener) {
+        if (getSessionCount() > 0) {
+          throw new NullPointerException();
+        }
+        return super.start(listener);
+      }
+    };
+    radio.addAdvertiser("Bert", scanRecord("Bert"), -60, 2.0, 100);
+    FakeScheduler scheduler = new FakeScheduler(clock, radio);
+    BluetoothLeScannerCompat engine =
+        BluetoothLeScannerCompatProvider.createBluetoothLeScannerCompat(radio, scheduler, clock);
+    engine.setScanRestartMillis(LOW_LATENCY_ACTIVE_MILLIS / 6);
+
+    engine.startScan(NO_FILTER, FOUND, callback);
+    scheduler.runFor(LOW_LATENCY_ACTIVE_MILLIS);
+    assertEquals(1, radio.getSessionCount());
+    assertEquals(1, callback.found);
+  }
+
+  /**
+   * Test that the sample rate of a window ended early by a Bluetooth reset is taken over the
+   * time actually scanned.
+   */
+  public void testSampleRateOfWindowEndedByBluetoothReset() {
+    SyntheticRadioSource radio = new SyntheticRadioSource(clock, 42 /* seed */) {
+      @Override
+      public boolean start(Listener listener) {
+        if (getSessionCount() > 0) {
+          throw new NullPointerException();
+        }
+        return super.start(listener);
+      }
+    };
+    radio.setReportOncePerSession(true);
+    radio.addAdvertiser("Bert", scanRecord("Bert"), -60, 2.0, 100);
+    FakeScheduler scheduler = new FakeScheduler(clock, radio);
+    BluetoothLeScannerCompat engine =
+        BluetoothLeScannerCompatProvider.createBluetoothLeScannerCompat(radio, scheduler, clock);
+    engine.setScanRestartMillis(LOW_LATENCY_ACTIVE_MILLIS / 6);
+
+    engine.startScan(NO_FILTER, FAST, callback);
+    scheduler.runFor(LOW_LATENCY_ACTIVE_MILLIS);
+    // One sample in the first slice, rather than over the whole window.
+    assertEquals(6000.0 / LOW_LATENCY_ACTIVE_MILLIS, engine.getSamplesPerDevicePerSecond(),
+        1e-9);
+  }
+
+  /**
+   * Test that clients are called back without the scanner lock held, so that a callback may
+   * wait for another thread to stop its scan, as the ScanController does.
+   */
+  public void testCallbackMayWaitForStopScanOnAnotherThread() {
+    StoppingCallback found = new StoppingCallback();
+    scanner.startScan(NO_FILTER, FOUND, found);
+    onScan("address", nowMillis());
+    assertEquals(1, found.calls);
+    assertFalse(scanner.serialClients.containsKey(found));
+
+    // New clients are replayed the past sightings.
+    StoppingCallback replayed = new StoppingCallback();
+    scanner.startScan(NO_FILTER, FOUND, replayed);
+    assertEquals(1, replayed.calls);
+    assertFalse(scanner.serialClients.containsKey(replayed));
+
+    StoppingCallback lost = new StoppingCallback();
+    scanner.startScan(NO_FILTER, LOST, lost);
+    onScan("other", nowMillis());
+    clock.advance(clock.currentTimeMillis() - scanner.getLostTimestampMillis() + 1);
+    scanner.onScanCycleComplete();
+    assertEquals(1, lost.calls);
+    assertFalse(scanner.serialClients.containsKey(lost));
+  }
+
   /////////////////////////////////////////////////////////////////////////////
 
+  /**
+   * Stops its own scan on another thread from its first callback, waiting for it to finish.
+   */
+  private class StoppingCallback extends ScanCallback {
+    int calls = 0;
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+      if (calls++ > 0) {
+        return;
+      }
+      Thread stopper = new Thread() {
+        @Override
+        public void run() {
+          scanner.stopScan(StoppingCallback.this);
+        }
+      };
+      stopper.start();
+      try {
+        stopper.join(TimeUnit.SECONDS.toMillis(5));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      assertFalse("stopScan blocked by the callback", stopper.isAlive());
+    }
+  }
+
   private static class TestingCallback extends ScanCallback {
     
     int found = 0;
@@ -522,20 +760,24 @@ public class JbBluetoothLeScannerCompatTest extends AndroidTestCase {
   }
 
   private void onScan(String address, long timeMillis) {
-    byte[] addressBytes = address.getBytes();
-    byte[] scanRecordBytes = new byte[addressBytes.length + 2];
-    scanRecordBytes[0] = (byte) (addressBytes.length + 1);
-    scanRecordBytes[1] = 0x09; // Value of private ScanRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
-    System.arraycopy(addressBytes, 0, scanRecordBytes, 2, addressBytes.length);
-
     scanner.onScanResult(address,
         new ScanResult(
             null /* BluetoothDevice */,
-            ScanRecord.parseFromBytes(scanRecordBytes),
+            ScanRecord.parseFromBytes(scanRecord(address)),
             0 /* rssi */,
             TimeUnit.MILLISECONDS.toNanos(timeMillis)));
   }
 
+  // Returns a scan record whose local name is the address.
+  private static byte[] scanRecord(String address) {
+    byte[] addressBytes = address.getBytes();
+    byte[] scanRecordBytes = new byte[addressBytes.length + 2];
+    scanRecordBytes[0] = (byte) (addressBytes.length + 1);
+    scanRecordBytes[1] = 0x09; // Value of private ScanRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
+    System.arraycopy(addressBytes, 0, scanRecordBytes, 2, addressBytes.length);
+    return scanRecordBytes;
+  }
+
   private long nowMillis() {
     return clock.currentTimeMillis();
   }
@@ -20,6 +20,9 @@ import android.test.AndroidTestCase;
 
 import org.uribeacon.scan.compat.LBluetoothLeScannerCompat;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * Tests for the "L" platform's direct hardware access compatability layer.
  */
@@ -31,4 +34,24 @@ public class LBluetoothLeScannerCompatTest extends AndroidTestCase {
   public void testConstruction() {
     assertNotNull(LBluetoothLeScannerCompat.createForTests());
   }
+
+  public void testOsFiltersAreCached() {
+    LBluetoothLeScannerCompat scanner = LBluetoothLeScannerCompat.createForTests();
+    List<android.bluetooth.le.ScanFilter> osFilters = scanner.getOsFilters(Arrays.asList(
+        new ScanFilter.Builder().setDeviceName("Bert").build()));
+    // Equal filters rebuilt by the caller get the same OS objects.
+    assertSame(osFilters, scanner.getOsFilters(Arrays.asList(
+        new ScanFilter.Builder().setDeviceName("Bert").build())));
+    assertNotSame(osFilters, scanner.getOsFilters(Arrays.asList(
+        new ScanFilter.Builder().setDeviceName("Ernie").build())));
+    assertNull(scanner.getOsFilters(null));
+  }
+
+  public void testOsSettingsAreCached() {
+    LBluetoothLeScannerCompat scanner = LBluetoothLeScannerCompat.createForTests();
+    android.bluetooth.le.ScanSettings osSettings = scanner.getOsSettings(
+        new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build());
+    assertSame(osSettings, scanner.getOsSettings(
+        new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY).build()));
+  }
 }
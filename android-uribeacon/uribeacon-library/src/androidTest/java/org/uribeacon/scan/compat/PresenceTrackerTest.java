@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import static android.test.MoreAsserts.assertEmpty;
+
+import android.test.AndroidTestCase;
+
+import java.util.List;
+
+/**
+ * Tests for the {@link PresenceTracker}.
+ */
+public class PresenceTrackerTest extends AndroidTestCase {
+
+  private static final ScanResult BERT = new ScanResult(null, (ScanRecord) null, 0, 0);
+  private static final ScanResult ERNIE = new ScanResult(null, (ScanRecord) null, 0, 0);
+
+  private PresenceTracker tracker;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    tracker = new PresenceTracker();
+  }
+
+  public void testFound() {
+    assertTrue(tracker.onSighting("bert", BERT, 0));
+    assertFalse(tracker.onSighting("bert", BERT, 100));
+    assertTrue(tracker.isPresent("bert"));
+  }
+
+  public void testExpiresOnlyStaleDevices() {
+    tracker.onSighting("bert", BERT, 0);
+    tracker.onSighting("ernie", ERNIE, 500);
+
+    assertEmpty(tracker.expire(999, 1000));
+    List<ScanResult> lost = tracker.expire(1000, 1000);
+    assertEquals(1, lost.size());
+    assertSame(BERT, lost.get(0));
+    assertFalse(tracker.isPresent("bert"));
+    assertTrue(tracker.isPresent("ernie"));
+  }
+
+  public void testSightingPostponesExpiry() {
+    tracker.onSighting("bert", BERT, 0);
+    tracker.onSighting("ernie", ERNIE, 500);
+    tracker.onSighting("bert", BERT, 900);
+
+    List<ScanResult> lost = tracker.expire(1500, 1000);
+    assertEquals(1, lost.size());
+    assertSame(ERNIE, lost.get(0));
+    assertEquals(1, tracker.size());
+  }
+
+  public void testNextExpiryFollowsEldestSighting() {
+    assertEquals(Long.MAX_VALUE, tracker.getNextExpiryMillis(1000));
+    tracker.onSighting("bert", BERT, 0);
+    tracker.onSighting("ernie", ERNIE, 500);
+    assertEquals(1000, tracker.getNextExpiryMillis(1000));
+
+    tracker.onSighting("bert", BERT, 900);
+    assertEquals(1500, tracker.getNextExpiryMillis(1000));
+  }
+}
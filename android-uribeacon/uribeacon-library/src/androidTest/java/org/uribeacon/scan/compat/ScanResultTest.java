@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for {@link ScanResult}, in particular results whose scan record is parsed lazily.
+ */
+public class ScanResultTest extends TestCase {
+
+  private static final byte[] RECORD_BYTES = { 5, 0x09, 'B', 'e', 'r', 't' };
+
+  private BluetoothDevice device;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:11:22:33:44:55");
+  }
+
+  public void testLazyRecordIsParsedOnce() {
+    CountingSupplier supplier = new CountingSupplier();
+    ScanResult result = new ScanResult(device, supplier, -60, 1000);
+    assertEquals(0, supplier.calls.get());
+
+    assertEquals("Bert", result.getScanRecord().getDeviceName());
+    assertSame(result.getScanRecord(), result.getScanRecord());
+    assertEquals(1, supplier.calls.get());
+  }
+
+  public void testLazyRecordEqualsParsedRecord() {
+    CountingSupplier supplier = new CountingSupplier();
+    ScanResult lazy = new ScanResult(device, supplier, -60, 1000);
+
+    // Hashing parses the record, after which the hash doesn't change.
+    int hashCode = lazy.hashCode();
+    assertEquals(1, supplier.calls.get());
+    assertEquals(hashCode, lazy.hashCode());
+
+    ScanResult eager = new ScanResult(device, lazy.getScanRecord(), -60, 1000);
+    assertEquals(eager, lazy);
+    assertEquals(lazy, eager);
+    assertEquals(eager.hashCode(), hashCode);
+    assertFalse(lazy.equals(new ScanResult(device, lazy.getScanRecord(), -61, 1000)));
+
+    // Comparing parses the record of the other result too. Records compare by identity, as on
+    // the platform, so two parses of the same bytes differ.
+    CountingSupplier otherSupplier = new CountingSupplier();
+    assertFalse(lazy.equals(new ScanResult(device, otherSupplier, -60, 1000)));
+    assertEquals(1, otherSupplier.calls.get());
+    assertEquals(1, supplier.calls.get());
+  }
+
+  public void testLazyRecordIsSharedAcrossThreads() throws InterruptedException {
+    final CountingSupplier supplier = new CountingSupplier();
+    final ScanResult result = new ScanResult(device, supplier, -60, 1000);
+    final CountDownLatch start = new CountDownLatch(1);
+    final ScanRecord[] records = new ScanRecord[8];
+    Thread[] threads = new Thread[records.length];
+    for (int i = 0; i < threads.length; i++) {
+      final int index = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          records[index] = result.getScanRecord();
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(1, supplier.calls.get());
+    for (ScanRecord record : records) {
+      assertSame(records[0], record);
+    }
+  }
+
+  private static class CountingSupplier implements ScanResult.ScanRecordSupplier {
+    final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public ScanRecord get() {
+      calls.incrementAndGet();
+      return ScanRecord.parseFromBytes(RECORD_BYTES);
+    }
+  }
+}
@@ -0,0 +1,544 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import static org.uribeacon.scan.compat.ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+import static org.uribeacon.scan.compat.ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
+import static org.uribeacon.scan.compat.ScanSettings.CALLBACK_TYPE_MATCH_LOST;
+import static org.uribeacon.scan.compat.ScanSettings.SCAN_MODE_BALANCED;
+import static org.uribeacon.scan.compat.ScanSettings.SCAN_MODE_LOW_LATENCY;
+import static org.uribeacon.scan.compat.ScanSettings.SCAN_MODE_LOW_POWER;
+
+import org.uribeacon.scan.testing.FakeClock;
+
+import android.bluetooth.BluetoothAdapter;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the {@link SharedScanSession} multiplexing compat clients onto one native scan.
+ */
+public class SharedScanSessionTest extends AndroidTestCase {
+
+  private static final ScanFilter BERT = new ScanFilter.Builder().setDeviceName("Bert").build();
+  private static final ScanFilter ERNIE = new ScanFilter.Builder().setDeviceName("Ernie").build();
+
+  private TestingNativeScanner nativeScanner;
+  private FakeClock clock;
+  private TestingScheduler scheduler;
+  private SharedScanSession session;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    nativeScanner = new TestingNativeScanner();
+    clock = new FakeClock();
+    scheduler = new TestingScheduler();
+    session = new SharedScanSession(
+        nativeScanner, scheduler, clock, true /* hardwareBatching */);
+  }
+
+  public void testSingleNativeScanForManyClients() {
+    session.addClient(Arrays.asList(BERT), mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    session.addClient(Arrays.asList(ERNIE), mode(SCAN_MODE_LOW_LATENCY),
+        new TestingCallback());
+    session.addClient(Arrays.asList(BERT), mode(SCAN_MODE_BALANCED), new TestingCallback());
+
+    assertTrue(nativeScanner.running);
+    assertEquals(SCAN_MODE_LOW_LATENCY, session.getNativeSettings().getScanMode());
+    assertEquals(Arrays.asList(BERT, ERNIE), session.getNativeFilters());
+    // The third client needed neither a new filter nor a stronger mode.
+    assertEquals(2, session.getNativeStartCount());
+  }
+
+  public void testUpdateClientKeepsSightings() {
+    TestingCallback callback = new TestingCallback();
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), callback);
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+
+    assertTrue(session.updateClient(callback, mode(SCAN_MODE_LOW_LATENCY)));
+    assertEquals(SCAN_MODE_LOW_LATENCY, session.getNativeSettings().getScanMode());
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+
+    assertEquals(1, callback.found);
+    assertEquals(1, callback.all);
+    // Only the scan mode can change in place.
+    assertFalse(session.updateClient(callback, delay(5000)));
+  }
+
+  public void testFailedUpdateKeepsSettings() {
+    TestingCallback callback = new TestingCallback();
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), callback);
+    nativeScanner.fail = true;
+
+    assertFalse(session.updateClient(callback, mode(SCAN_MODE_LOW_LATENCY)));
+    nativeScanner.fail = false;
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    assertEquals(SCAN_MODE_LOW_POWER, session.getNativeSettings().getScanMode());
+  }
+
+  public void testUnfilteredClientDisablesNativeFilters() {
+    session.addClient(Arrays.asList(BERT), mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    TestingCallback unfiltered = new TestingCallback();
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), unfiltered);
+    assertNull(session.getNativeFilters());
+
+    session.removeClient(unfiltered);
+    assertEquals(Arrays.asList(BERT), session.getNativeFilters());
+  }
+
+  public void testResultsAreFilteredPerClient() {
+    TestingCallback bert = new TestingCallback();
+    TestingCallback ernie = new TestingCallback();
+    session.addClient(Arrays.asList(BERT), mode(SCAN_MODE_LOW_POWER), bert);
+    session.addClient(Arrays.asList(ERNIE), mode(SCAN_MODE_LOW_POWER), ernie);
+
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Ernie"));
+
+    assertEquals(1, bert.found);
+    assertEquals(1, bert.all);
+    assertEquals(1, ernie.found);
+  }
+
+  public void testFirstMatchDerivedFromAllMatches() {
+    TestingCallback all = new TestingCallback();
+    TestingCallback first = new TestingCallback();
+    session.addClient(null, type(CALLBACK_TYPE_ALL_MATCHES), all);
+    session.addClient(null, type(CALLBACK_TYPE_FIRST_MATCH), first);
+    assertEquals(CALLBACK_TYPE_ALL_MATCHES, session.getNativeSettings().getCallbackType());
+
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+
+    // Like the JB scanner, the first sighting is reported as a first match to all clients.
+    assertEquals(1, all.found);
+    assertEquals(1, all.all);
+    assertEquals(0, first.all);
+    assertEquals(1, first.found);
+  }
+
+  public void testFoundAndLostClientsShareScan() {
+    TestingCallback found = new TestingCallback();
+    TestingCallback lost = new TestingCallback();
+    session.addClient(null, type(CALLBACK_TYPE_FIRST_MATCH), found);
+    session.addClient(null, type(CALLBACK_TYPE_MATCH_LOST), lost);
+    // First match and lost are derived in software.
+    assertEquals(CALLBACK_TYPE_ALL_MATCHES, session.getNativeSettings().getCallbackType());
+    session.setScanLostOverride(1000);
+
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    clock.advance(999);
+    session.blockingScanCycle();
+    assertEquals(0, lost.lost);
+    clock.advance(1);
+    session.blockingScanCycle();
+
+    assertEquals(1, found.found);
+    assertEquals(0, found.lost);
+    assertEquals(0, lost.found);
+    assertEquals(1, lost.lost);
+  }
+
+  public void testLostDeviceIsFoundAgain() {
+    TestingCallback callback = new TestingCallback();
+    session.addClient(null, type(CALLBACK_TYPE_ALL_MATCHES), callback);
+    session.setScanLostOverride(1000);
+
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    clock.advance(1000);
+    // A sighting of another device is enough to notice Bert is lost.
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Ernie"));
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+
+    assertEquals(3, callback.found);
+    assertEquals(1, callback.lost);
+    assertEquals(0, callback.all);
+  }
+
+  public void testLostTimeoutFollowsScanMode() {
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    assertEquals(JbBluetoothLeScannerCompat.SCAN_LOST_CYCLES
+        * JbBluetoothLeScannerCompat.getScanCycleMillisForMode(SCAN_MODE_LOW_POWER),
+        session.getLostTimeoutMillis());
+
+    session.addClient(null, mode(SCAN_MODE_LOW_LATENCY), new TestingCallback());
+    assertEquals(JbBluetoothLeScannerCompat.SCAN_LOST_CYCLES
+        * JbBluetoothLeScannerCompat.getScanCycleMillisForMode(SCAN_MODE_LOW_LATENCY),
+        session.getLostTimeoutMillis());
+  }
+
+  public void testCustomScanTimingDutyCyclesNativeScan() {
+    TestingCallback callback = new TestingCallback();
+    session.addClient(null, mode(SCAN_MODE_LOW_LATENCY), callback);
+    session.setCustomScanTiming(1000, 4000);
+    assertFalse(nativeScanner.running);
+    assertEquals(5000, scheduler.periodMillis);
+    assertEquals(JbBluetoothLeScannerCompat.SCAN_LOST_CYCLES * 5000,
+        session.getLostTimeoutMillis());
+
+    scheduler.scanCycle.run();
+    assertTrue(scheduler.runningWhileAwaiting);
+    assertEquals(1000, scheduler.awaitedMillis);
+    assertFalse(nativeScanner.running);
+
+    session.setCustomScanTiming(-1, -1);
+    assertTrue(nativeScanner.running);
+  }
+
+  public void testOnlyDutyCycleWakesDevice() {
+    session.addClient(null, mode(SCAN_MODE_LOW_LATENCY), new TestingCallback());
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    assertEquals(0, scheduler.periodMillis);
+    assertFalse(scheduler.wakeup);
+
+    session.setCustomScanTiming(1000, 4000);
+    assertEquals(5000, scheduler.periodMillis);
+    assertTrue(scheduler.wakeup);
+    session.setCustomScanTiming(-1, -1);
+    assertEquals(0, scheduler.periodMillis);
+    assertFalse(scheduler.wakeup);
+  }
+
+  public void testSingleLostCheckFollowsSightings() {
+    TestingCallback callback = new TestingCallback();
+    session.addClient(null, type(CALLBACK_TYPE_MATCH_LOST), callback);
+    session.setScanLostOverride(10000);
+    // No alarm at the scan cycle rate, and nothing to check before a device is sighted.
+    assertEquals(0, scheduler.periodMillis);
+    assertEquals(-1, scheduler.checkMillis);
+
+    long startMillis = clock.currentTimeMillis();
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    assertEquals(startMillis + 10000, scheduler.checkMillis);
+    clock.advance(1000);
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Ernie"));
+    clock.advance(1000);
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    // Later sightings don't move the pending check.
+    assertEquals(startMillis + 10000, scheduler.checkMillis);
+    assertEquals(1, scheduler.checkCount);
+
+    // Bert was sighted again, so the check moves on to when Ernie expires.
+    clock.advance(8000);
+    scheduler.runCheck();
+    assertEquals(0, callback.lost);
+    assertEquals(startMillis + 11000, scheduler.checkMillis);
+    clock.advance(1000);
+    scheduler.runCheck();
+    assertEquals(1, callback.lost);
+    assertEquals(startMillis + 12000, scheduler.checkMillis);
+    clock.advance(1000);
+    scheduler.runCheck();
+    assertEquals(2, callback.lost);
+    assertEquals(-1, scheduler.checkMillis);
+    assertEquals(3, scheduler.checkCount);
+  }
+
+  public void testLastClientCancelsScanCycles() {
+    TestingCallback callback = new TestingCallback();
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), callback);
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    session.removeClient(callback);
+    assertEquals(0, scheduler.periodMillis);
+    assertEquals(-1, scheduler.checkMillis);
+  }
+
+  public void testBatchResultsAreFilteredPerClient() {
+    TestingCallback bert = new TestingCallback();
+    TestingCallback ernie = new TestingCallback();
+    session.addClient(Arrays.asList(BERT), delay(10000), bert);
+    session.addClient(Arrays.asList(ERNIE), mode(SCAN_MODE_LOW_POWER), ernie);
+
+    session.onBatchScanResults(Arrays.asList(result("Bert"), result("Ernie"), result("Bert")));
+
+    assertEquals(2, bert.batched);
+    // Real-time clients get batched results one by one.
+    assertEquals(0, ernie.batched);
+    assertEquals(1, ernie.found);
+  }
+
+  public void testLastClientStopsNativeScan() {
+    TestingCallback a = new TestingCallback();
+    TestingCallback b = new TestingCallback();
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), a);
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), b);
+
+    session.removeClient(a);
+    assertTrue(nativeScanner.running);
+    session.removeClient(b);
+    assertFalse(nativeScanner.running);
+    assertNull(session.getNativeSettings());
+  }
+
+  public void testFailedStartRejectsClient() {
+    nativeScanner.fail = true;
+    assertFalse(session.addClient(null, mode(SCAN_MODE_LOW_POWER), new TestingCallback()));
+    assertEquals(0, session.getClientCount());
+    assertFalse(nativeScanner.running);
+  }
+
+  public void testHostRejectsAreCounted() {
+    session.setMaxOffloadedFilters(1);
+    session.addClient(Arrays.asList(BERT), mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    session.addClient(Arrays.asList(ERNIE), mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    // Device name filters can't be widened, so the native scan is unfiltered.
+    assertNull(session.getNativeFilters());
+    assertEquals(0, session.getOffloadedFilterCount());
+
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Elmo"));
+    session.onBatchScanResults(Arrays.asList(result("Elmo"), result("Ernie"), result("Elmo")));
+
+    assertEquals(3, session.getHostRejectCount());
+  }
+
+  public void testBatchClientsShareHardwareBatch() {
+    TestingCallback a = new TestingCallback();
+    TestingCallback b = new TestingCallback();
+    session.addClient(null, delay(20000), a);
+    session.addClient(Arrays.asList(BERT), delay(10000), b);
+    assertEquals(10000, session.getNativeSettings().getReportDelayMillis());
+
+    session.onBatchScanResults(Arrays.asList(result("Bert"), result("Ernie")));
+
+    assertEquals(2, a.batched);
+    assertEquals(1, b.batched);
+    assertEquals(0, b.all);
+  }
+
+  public void testRealTimeClientDisablesHardwareBatch() {
+    TestingCallback batch = new TestingCallback();
+    session.addClient(null, delay(10000), batch);
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    assertEquals(0, session.getNativeSettings().getReportDelayMillis());
+
+    // The batch client's results are collected in software until its delay has passed.
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    clock.advance(5000);
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Ernie"));
+    assertEquals(0, batch.batched);
+    clock.advance(5000);
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    assertEquals(3, batch.batched);
+    assertEquals(0, batch.all);
+  }
+
+  public void testNoHardwareBatching() {
+    session = new SharedScanSession(
+        nativeScanner, scheduler, clock, false /* hardwareBatching */);
+    session.addClient(null, delay(10000), new TestingCallback());
+    assertEquals(0, session.getNativeSettings().getReportDelayMillis());
+  }
+
+  public void testReportDelayFitsBuffer() {
+    session.setScanLostOverride(60000);
+    session.setBatchBufferResults(100);
+    session.addClient(null, new ScanSettings.Builder()
+        .setScanMode(SCAN_MODE_LOW_LATENCY)
+        .setReportDelayMillis(60000)
+        .build(), new TestingCallback());
+    // 100 results at 75% fill, one device advertising at 10Hz.
+    assertEquals(7500, session.getNativeSettings().getReportDelayMillis());
+
+    // More devices fill the buffer faster. The scan is restarted on the next scan cycle.
+    session.onBatchScanResults(Arrays.asList(result("Bert"), result("Ernie"), result("Elmo")));
+    assertEquals(7500, session.getNativeSettings().getReportDelayMillis());
+    scheduler.scanCycle.run();
+    assertEquals(2500, session.getNativeSettings().getReportDelayMillis());
+    assertEquals(1, nativeScanner.flushes);
+  }
+
+  public void testReportDelayBelowLostTimeout() {
+    session.addClient(null, new ScanSettings.Builder()
+        .setScanMode(SCAN_MODE_BALANCED)
+        .setReportDelayMillis(120000)
+        .build(), new TestingCallback());
+    // The buffer would last 76.8s, but the devices would be lost after 60s.
+    assertEquals(60000, session.getLostTimeoutMillis());
+    assertEquals(45000, session.getNativeSettings().getReportDelayMillis());
+  }
+
+  public void testScanCycleDeliversSoftwareBatch() {
+    TestingCallback batch = new TestingCallback();
+    session.addClient(null, delay(10000), batch);
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    // The batch is due before Bert would be lost.
+    assertEquals(clock.currentTimeMillis() + 10000, scheduler.checkMillis);
+
+    scheduler.scanCycle.run();
+    assertEquals(0, batch.batched);
+    clock.advance(10000);
+    scheduler.scanCycle.run();
+    assertEquals(1, batch.batched);
+  }
+
+  public void testFlush() {
+    TestingCallback batch = new TestingCallback();
+    TestingCallback other = new TestingCallback();
+    session.addClient(null, delay(10000), batch);
+    session.addClient(null, delay(10000), other);
+
+    session.flush(batch);
+    session.flush(other);
+    assertEquals(1, nativeScanner.flushes);
+
+    clock.advance(SharedScanSession.MIN_FLUSH_INTERVAL_MILLIS);
+    session.flush(other);
+    assertEquals(2, nativeScanner.flushes);
+  }
+
+  public void testFlushDeliversSoftwareBatch() {
+    TestingCallback batch = new TestingCallback();
+    session.addClient(null, delay(10000), batch);
+    session.addClient(null, mode(SCAN_MODE_LOW_POWER), new TestingCallback());
+    session.onScanResult(CALLBACK_TYPE_ALL_MATCHES, result("Bert"));
+    int flushes = nativeScanner.flushes;
+
+    session.flush(batch);
+
+    assertEquals(1, batch.batched);
+    // Nothing is buffered in the controller.
+    assertEquals(flushes, nativeScanner.flushes);
+  }
+
+  private static ScanSettings delay(long reportDelayMillis) {
+    return new ScanSettings.Builder().setReportDelayMillis(reportDelayMillis).build();
+  }
+
+  private static ScanSettings mode(int scanMode) {
+    return new ScanSettings.Builder().setScanMode(scanMode).build();
+  }
+
+  private static ScanSettings type(int callbackType) {
+    return new ScanSettings.Builder().setCallbackType(callbackType).build();
+  }
+
+  // Returns a result whose local name is the given name.
+  private static ScanResult result(String name) {
+    byte[] nameBytes = name.getBytes();
+    byte[] scanRecordBytes = new byte[nameBytes.length + 2];
+    scanRecordBytes[0] = (byte) (nameBytes.length + 1);
+    scanRecordBytes[1] = 0x09; // Value of private ScanRecord.DATA_TYPE_LOCAL_NAME_COMPLETE;
+    System.arraycopy(nameBytes, 0, scanRecordBytes, 2, nameBytes.length);
+    String address = name.equals("Bert") ? "00:11:22:33:44:55" : "66:77:88:99:AA:" + name.length();
+    return new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address),
+        ScanRecord.parseFromBytes(scanRecordBytes), 0 /* rssi */, 0 /* timestampNanos */);
+  }
+
+  private static class TestingNativeScanner implements SharedScanSession.NativeScanner {
+    boolean running;
+    boolean fail;
+    int flushes;
+
+    @Override
+    public boolean start(List<ScanFilter> filters, ScanSettings settings) {
+      running = !fail;
+      return running;
+    }
+
+    @Override
+    public void stop() {
+      running = false;
+    }
+
+    @Override
+    public void flush() {
+      flushes++;
+    }
+  }
+
+  private class TestingScheduler implements Scheduler {
+    long periodMillis;
+    boolean wakeup;
+    // Due time of the one-shot cycle, or -1.
+    long checkMillis = -1;
+    int checkCount;
+    Runnable scanCycle;
+    long awaitedMillis;
+    boolean runningWhileAwaiting;
+
+    @Override
+    public void scheduleRepeating(long periodMillis, boolean wakeup, Runnable scanCycle) {
+      this.periodMillis = periodMillis;
+      this.wakeup = wakeup;
+      this.scanCycle = scanCycle;
+      checkMillis = -1;
+    }
+
+    @Override
+    public void scheduleOnce(long delayMillis, Runnable scanCycle) {
+      periodMillis = 0;
+      wakeup = false;
+      this.scanCycle = scanCycle;
+      checkMillis = clock.currentTimeMillis() + delayMillis;
+      checkCount++;
+    }
+
+    @Override
+    public void cancel() {
+      periodMillis = 0;
+      checkMillis = -1;
+    }
+
+    // Runs the one-shot cycle as its alarm fires.
+    void runCheck() {
+      assertEquals(checkMillis, clock.currentTimeMillis());
+      checkMillis = -1;
+      scanCycle.run();
+    }
+
+    @Override
+    public void await(Object lock, long millis) {
+      awaitedMillis = millis;
+      runningWhileAwaiting = nativeScanner.running;
+      clock.advance(millis);
+    }
+  }
+
+  private static class TestingCallback extends ScanCallback {
+    int found;
+    int lost;
+    int all;
+    int batched;
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+      switch (callbackType) {
+        case CALLBACK_TYPE_FIRST_MATCH:
+          found++;
+          break;
+        case CALLBACK_TYPE_MATCH_LOST:
+          lost++;
+          break;
+        case CALLBACK_TYPE_ALL_MATCHES:
+          all++;
+          break;
+      }
+    }
+
+    @Override
+    public void onBatchScanResults(List<ScanResult> results) {
+      batched += results.size();
+    }
+  }
+}
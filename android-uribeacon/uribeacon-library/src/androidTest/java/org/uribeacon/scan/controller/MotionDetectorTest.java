@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.controller;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the motion and idle transitions of {@link MotionDetector}.
+ */
+public class MotionDetectorTest extends TestCase {
+  private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+  // Magnitude of the gravity at rest, and of a shake, in m/s^2
+  private static final float STILL = 9.8f;
+  private static final float SHAKE = 12f;
+
+  private final List<String> events = new ArrayList<String>();
+  private final MotionDetector detector = new MotionDetector(new MotionManager.MotionListener() {
+    @Override
+    public void onMotion() {
+      events.add("motion");
+    }
+
+    @Override
+    public void onMotionTimeout() {
+      events.add("timeout");
+    }
+  });
+
+  public void testAccelerometerTransitions() {
+    detector.onAcceleration(0, 0, STILL, 0);
+    assertFalse(detector.isMoving());
+    assertTrue(events.isEmpty());
+
+    detector.onAcceleration(0, 0, SHAKE, SECOND_NANOS);
+    detector.onAcceleration(SHAKE, 0, 0, 2 * SECOND_NANOS);
+    assertTrue(detector.isMoving());
+    assertEquals(Arrays.asList("motion"), events);
+
+    // Still for less than the idle time since the last shake.
+    detector.onAcceleration(0, STILL, 0, 2 * SECOND_NANOS + MotionManager.IDLE_TIME_NANO - 1);
+    assertTrue(detector.isMoving());
+    detector.onAcceleration(0, STILL, 0, 2 * SECOND_NANOS + MotionManager.IDLE_TIME_NANO);
+    assertFalse(detector.isMoving());
+    assertEquals(Arrays.asList("motion", "timeout"), events);
+
+    detector.onAcceleration(0, 0, 0, 20 * SECOND_NANOS);
+    assertEquals(Arrays.asList("motion", "timeout", "motion"), events);
+  }
+
+  public void testMovementExtendsIdleTime() {
+    long idleNanos =
+        TimeUnit.MILLISECONDS.toNanos(MotionManager.SIGNIFICANT_MOTION_IDLE_TIME_MILLIS);
+    detector.onMovement(0, idleNanos);
+    detector.onMovement(30 * SECOND_NANOS, idleNanos);
+    assertEquals(Arrays.asList("motion"), events);
+
+    detector.onStill(idleNanos);
+    assertTrue(detector.isMoving());
+    detector.onStill(30 * SECOND_NANOS + idleNanos);
+    assertFalse(detector.isMoving());
+    // Stillness is only reported once.
+    detector.onStill(60 * SECOND_NANOS + idleNanos);
+    assertEquals(Arrays.asList("motion", "timeout"), events);
+  }
+}
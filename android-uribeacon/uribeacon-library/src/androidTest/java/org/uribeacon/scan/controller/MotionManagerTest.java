@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.scan.controller;
+
+import org.uribeacon.scan.controller.MotionManager.Backend;
+
+import android.os.Build;
+import android.test.AndroidTestCase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the backend selection and the motion timeout of {@link MotionManager}.
+ */
+public class MotionManagerTest extends AndroidTestCase {
+
+  public void testSelectBackendPrefersLowestPower() {
+    assertEquals(Backend.SIGNIFICANT_MOTION, MotionManager.selectBackend(true, true, true));
+    assertEquals(Backend.STEP_DETECTOR, MotionManager.selectBackend(false, true, true));
+    assertEquals(Backend.BATCHED_ACCELEROMETER, MotionManager.selectBackend(false, false, true));
+    assertEquals(Backend.ACCELEROMETER, MotionManager.selectBackend(false, false, false));
+  }
+
+  public void testKitKatBackends() {
+    int jellyBean = Build.VERSION_CODES.JELLY_BEAN_MR2;
+    int kitKat = Build.VERSION_CODES.KITKAT;
+    assertTrue(MotionManager.isSupported(Backend.SIGNIFICANT_MOTION, jellyBean));
+    assertTrue(MotionManager.isSupported(Backend.ACCELEROMETER, jellyBean));
+    assertFalse(MotionManager.isSupported(Backend.STEP_DETECTOR, jellyBean));
+    assertFalse(MotionManager.isSupported(Backend.BATCHED_ACCELEROMETER, jellyBean));
+    assertTrue(MotionManager.isSupported(Backend.STEP_DETECTOR, kitKat));
+    assertTrue(MotionManager.isSupported(Backend.BATCHED_ACCELEROMETER, kitKat));
+  }
+
+  public void testMotionTimesOut() {
+    FakeTaskRunner taskRunner = new FakeTaskRunner();
+    TestingMotionListener listener = new TestingMotionListener();
+    MotionManager motionManager = new MotionManager(getContext(), null, taskRunner);
+    motionManager.register(listener);
+    try {
+      motionManager.onMovement(1000);
+      assertEquals(1, listener.motions);
+      taskRunner.advance(500);
+      motionManager.onMovement(1000);
+      taskRunner.advance(999);
+      assertEquals(0, listener.timeouts);
+      taskRunner.advance(1);
+      assertEquals(1, listener.timeouts);
+      assertEquals(1, listener.motions);
+    } finally {
+      motionManager.unregister();
+    }
+  }
+
+  public void testTimeoutDueBeforeIdleDeadline() {
+    FakeTaskRunner taskRunner = new FakeTaskRunner();
+    TestingMotionListener listener = new TestingMotionListener();
+    MotionManager motionManager = new MotionManager(getContext(), null, taskRunner);
+    motionManager.register(listener);
+    try {
+      // The handler truncates to milliseconds what elapsed realtime doesn't.
+      taskRunner.realtimeOffsetNanos = 500000;
+      motionManager.onMovement(1000);
+      taskRunner.realtimeOffsetNanos = 0;
+      taskRunner.advance(1000);
+      assertEquals(0, listener.timeouts);
+      // The timeout runs again once the idle deadline has passed.
+      taskRunner.advance(1);
+      assertEquals(1, listener.timeouts);
+    } finally {
+      motionManager.unregister();
+    }
+  }
+
+  private static class TestingMotionListener implements MotionManager.MotionListener {
+    int motions;
+    int timeouts;
+
+    @Override
+    public void onMotion() {
+      motions++;
+    }
+
+    @Override
+    public void onMotionTimeout() {
+      timeouts++;
+    }
+  }
+
+  /**
+   * Runs a single task at a time in virtual time, with a realtime clock offset from uptime.
+   */
+  private static class FakeTaskRunner implements MotionManager.TaskRunner {
+    long realtimeOffsetNanos;
+    private long nowMillis = 1000000;
+    private Runnable task;
+    private long taskMillis;
+
+    @Override
+    public long elapsedRealtimeNanos() {
+      return TimeUnit.MILLISECONDS.toNanos(nowMillis) + realtimeOffsetNanos;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+      assertNull(this.task);
+      this.task = task;
+      taskMillis = nowMillis + delayMillis;
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+      if (this.task == task) {
+        this.task = null;
+      }
+    }
+
+    /**
+     * Moves the time forward by {@code millis}, running the task if it is due meanwhile.
+     */
+    void advance(long millis) {
+      long endMillis = nowMillis + millis;
+      while (task != null && taskMillis <= endMillis) {
+        nowMillis = taskMillis;
+        Runnable due = task;
+        task = null;
+        due.run();
+      }
+      nowMillis = endMillis;
+    }
+  }
+}
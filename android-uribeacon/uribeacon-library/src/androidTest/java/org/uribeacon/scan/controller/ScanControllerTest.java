@@ -18,12 +18,15 @@ package org.uribeacon.scan.controller;
 
 import org.uribeacon.scan.compat.ScanCallback;
 import org.uribeacon.scan.compat.ScanFilter;
+import org.uribeacon.scan.compat.ScanResult;
 import org.uribeacon.scan.compat.ScanSettings;
+import org.uribeacon.scan.testing.FakeScanResults;
 
 import android.test.AndroidTestCase;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Unit tests for the {@link org.uribeacon.scan.controller.ScanController} class.
@@ -57,6 +60,43 @@ public class ScanControllerTest extends AndroidTestCase {
     scanController.unregister();
   }
 
+  public void testConcurrentClients() throws InterruptedException {
+    mMockContext = new MockContext(mContext);
+    final ScanController scanController = new ScanController(mMockContext,
+        ScanController.ScreenOffMode.NO_SCAN);
+    final List<ScanFilter> filters = new ArrayList<ScanFilter>();
+    final int numThreads = 4;
+    final int numScans = 50;
+    final CountDownLatch done = new CountDownLatch(numThreads);
+
+    for (int i = 0; i < numThreads; i++) {
+      new Thread() {
+        @Override
+        public void run() {
+          // Settings are compared by identity, so each scan is a separate client.
+          List<ScanSettings> started = new ArrayList<ScanSettings>();
+          for (int j = 0; j < numScans; j++) {
+            ScanSettings settings = new ScanSettings.Builder().build();
+            scanController.startScan(settings, filters, new ScanCallback() { });
+            started.add(settings);
+            scanController.onMotion();
+          }
+          for (int j = 0; j < numScans / 2; j++) {
+            scanController.stopScan(started.get(j));
+          }
+          done.countDown();
+        }
+      }.start();
+    }
+    mMockContext.sendScreenOnEvent();
+    done.await();
+    scanController.waitForIdle();
+
+    assertEquals(numThreads * numScans / 2, scanController.getNumScanners());
+    assertEquals(ScanController.ScanState.FAST_SCAN, scanController.getScanState());
+    scanController.unregister();
+  }
+
   public void testScreenOnOff() {
     mMockContext = new MockContext(mContext);
     ScanController scanController = new ScanController(mMockContext, 
@@ -70,14 +110,36 @@ public class ScanControllerTest extends AndroidTestCase {
     scanController.startScan(settings, filters, mScanCallback);
 
     mMockContext.sendScreenOnEvent();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.FAST_SCAN, scanController.getScanState());
 
     mMockContext.sendScreenOffEvent();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.NO_SCAN, scanController.getScanState());
 
     scanController.unregister();
   }
 
+  public void testScreenOnAndForegroundFlush() {
+    mMockContext = new MockContext(mContext);
+    ScanController scanController = new ScanController(mMockContext,
+        ScanController.ScreenOffMode.NO_SCAN);
+    scanController.startScan(new ScanSettings.Builder().setReportDelayMillis(10000).build(),
+        new ArrayList<ScanFilter>(), new ScanCallback() { });
+    assertEquals(0, scanController.getFlushCount());
+
+    mMockContext.sendScreenOnEvent();
+    scanController.waitForIdle();
+    assertEquals(1, scanController.getFlushCount());
+
+    scanController.setForeground(false);
+    assertEquals(1, scanController.getFlushCount());
+    scanController.setForeground(true);
+    assertEquals(2, scanController.getFlushCount());
+
+    scanController.unregister();
+  }
+
   public void testMotion() {
     mMockContext = new MockContext(mContext);
     ScanController scanController = new ScanController(mMockContext, 
@@ -91,24 +153,129 @@ public class ScanControllerTest extends AndroidTestCase {
     scanController.startScan(settings, filters, mScanCallback);
 
     mMockContext.sendScreenOnEvent();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.FAST_SCAN, scanController.getScanState());
 
     scanController.onMotionTimeout();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.SLOW_SCAN, scanController.getScanState());
 
     scanController.onMotion();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.FAST_SCAN, scanController.getScanState());
 
     mMockContext.sendScreenOffEvent();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.NO_SCAN, scanController.getScanState());
 
     scanController.onMotionTimeout();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.NO_SCAN, scanController.getScanState());
 
     scanController.onMotion();
+    scanController.waitForIdle();
     assertEquals(ScanController.ScanState.NO_SCAN, scanController.getScanState());
 
     scanController.unregister();
   }
-}
 
+  public void testCustomPolicy() {
+    mMockContext = new MockContext(mContext);
+    ScanPolicy policy = new ScanPolicy.Builder(ScanPolicy.NO_SCAN)
+        .addTransition(ScanPolicy.NO_SCAN, ScanPolicy.Event.SCREEN_ON, ScanPolicy.FAST_SCAN)
+        .addTransition(ScanPolicy.FAST_SCAN, ScanPolicy.Event.BACKGROUND,
+            ScanPolicy.BALANCED_SCAN)
+        .addTransition(ScanPolicy.BALANCED_SCAN, ScanPolicy.Event.FOREGROUND,
+            ScanPolicy.FAST_SCAN)
+        .addTransition(ScanPolicy.BALANCED_SCAN, ScanPolicy.Event.SCREEN_OFF,
+            ScanPolicy.NO_SCAN)
+        .build();
+    ScanController scanController = new ScanController(mMockContext,
+        new MotionManager(mMockContext), policy);
+
+    mMockContext.sendScreenOnEvent();
+    scanController.waitForIdle();
+    assertEquals(ScanController.ScanState.FAST_SCAN, scanController.getScanState());
+
+    scanController.setForeground(false);
+    scanController.waitForIdle();
+    assertEquals(ScanController.ScanState.BALANCED_SCAN, scanController.getScanState());
+    assertSame(ScanPolicy.BALANCED_SCAN, scanController.getPolicyState());
+
+    // No transition is defined on screen off from FAST_SCAN.
+    scanController.setForeground(true);
+    scanController.waitForIdle();
+    mMockContext.sendScreenOffEvent();
+    scanController.waitForIdle();
+    assertEquals(ScanController.ScanState.FAST_SCAN, scanController.getScanState());
+
+    scanController.unregister();
+  }
+
+  public void testDiscoveryCountedOncePerDevice() {
+    mMockContext = new MockContext(mContext);
+    ScanPolicy policy = new ScanPolicy.Builder(ScanPolicy.NO_SCAN)
+        .addTransition(ScanPolicy.NO_SCAN, ScanPolicy.Event.SCREEN_ON, ScanPolicy.SLOW_SCAN)
+        .addTransition(ScanPolicy.SLOW_SCAN, ScanPolicy.Event.DISCOVERY_HIGH,
+            ScanPolicy.FAST_SCAN)
+        .setDiscoveryHighRate(2, 60000)
+        .build();
+    ScanController scanController = new ScanController(mMockContext,
+        new MotionManager(mMockContext), policy);
+    ScanSettings first = new ScanSettings.Builder().build();
+    ScanSettings second = new ScanSettings.Builder().build();
+    List<ScanFilter> filters = new ArrayList<ScanFilter>();
+    scanController.startScan(first, filters, new ScanCallback() { });
+    scanController.startScan(second, filters, new ScanCallback() { });
+    mMockContext.sendScreenOnEvent();
+    scanController.waitForIdle();
+
+    // Both clients find the device, and the first one again after a restart of its scan.
+    ScanResult bert = FakeScanResults.create("00:11:22:33:44:55", -60, 0);
+    scanController.getScannerCallback(first).onScanResult(
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH, bert);
+    scanController.getScannerCallback(second).onScanResult(
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH, bert);
+    scanController.getScannerCallback(first).onScanResult(
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH, bert);
+    scanController.waitForIdle();
+    assertEquals(ScanController.ScanState.SLOW_SCAN, scanController.getScanState());
+
+    ScanResult ernie = FakeScanResults.create("66:77:88:99:AA:BB", -60, 0);
+    scanController.getScannerCallback(second).onScanResult(
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH, ernie);
+    scanController.waitForIdle();
+    assertEquals(ScanController.ScanState.FAST_SCAN, scanController.getScanState());
+
+    scanController.unregister();
+  }
+
+  public void testPredictorLearnsEachDeviceOnce() {
+    mMockContext = new MockContext(mContext);
+    ScanController scanController = new ScanController(mMockContext,
+        ScanController.ScreenOffMode.NO_SCAN);
+    final List<String> discoveries = new ArrayList<String>();
+    scanController.setSchedulePredictor(new SchedulePredictor() {
+      @Override
+      public synchronized void recordDiscovery(String address, long nowMillis) {
+        discoveries.add(address);
+        super.recordDiscovery(address, nowMillis);
+      }
+    });
+    ScanSettings first = new ScanSettings.Builder().build();
+    ScanSettings second = new ScanSettings.Builder().build();
+    List<ScanFilter> filters = new ArrayList<ScanFilter>();
+    scanController.startScan(first, filters, new ScanCallback() { });
+    scanController.startScan(second, filters, new ScanCallback() { });
+
+    ScanResult bert = FakeScanResults.create("00:11:22:33:44:55", -60, 0);
+    scanController.getScannerCallback(first).onScanResult(
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH, bert);
+    scanController.getScannerCallback(second).onScanResult(
+        ScanSettings.CALLBACK_TYPE_FIRST_MATCH, bert);
+    scanController.waitForIdle();
+    assertEquals(1, discoveries.size());
+
+    scanController.unregister();
+  }
+}
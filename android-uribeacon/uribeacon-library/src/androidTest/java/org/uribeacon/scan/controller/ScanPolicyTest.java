@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.controller;
+
+import static org.uribeacon.scan.controller.ScanPolicy.FAST_SCAN;
+import static org.uribeacon.scan.controller.ScanPolicy.NO_SCAN;
+import static org.uribeacon.scan.controller.ScanPolicy.SLOW_SCAN;
+
+import org.uribeacon.scan.compat.ScanSettings;
+import org.uribeacon.scan.controller.ScanPolicy.Event;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.controller.ScanPolicy} class.
+ */
+public class ScanPolicyTest extends AndroidTestCase {
+
+  public void testScreenOffNoScanPolicy() {
+    ScanPolicy policy = ScanPolicy.forScreenOffMode(ScanController.ScreenOffMode.NO_SCAN);
+    int state = policy.getInitialState();
+    assertSame(NO_SCAN, policy.getState(state));
+
+    state = policy.next(state, Event.SCREEN_ON);
+    assertSame(FAST_SCAN, policy.getState(state));
+    state = policy.next(state, Event.MOTION_TIMEOUT);
+    assertSame(SLOW_SCAN, policy.getState(state));
+    state = policy.next(state, Event.MOTION);
+    assertSame(FAST_SCAN, policy.getState(state));
+    state = policy.next(state, Event.SCREEN_OFF);
+    assertSame(NO_SCAN, policy.getState(state));
+    // Events without a transition leave the state unchanged.
+    state = policy.next(state, Event.MOTION);
+    assertSame(NO_SCAN, policy.getState(state));
+  }
+
+  public void testScreenOffSlowScanPolicy() {
+    ScanPolicy policy = ScanPolicy.forScreenOffMode(ScanController.ScreenOffMode.SLOW_SCAN);
+    int state = policy.next(policy.getInitialState(), Event.SCREEN_ON);
+    state = policy.next(state, Event.SCREEN_OFF);
+    assertSame(SLOW_SCAN, policy.getState(state));
+  }
+
+  public void testCustomStates() {
+    ScanPolicy.State venue = new ScanPolicy.State(
+        "VENUE", ScanSettings.SCAN_MODE_BALANCED, 2000 /* activeMillis */, 8000 /* idleMillis */);
+    ScanPolicy policy = new ScanPolicy.Builder(NO_SCAN)
+        .addTransition(NO_SCAN, Event.FOREGROUND, FAST_SCAN)
+        .addTransition(FAST_SCAN, Event.BACKGROUND, venue)
+        .addTransition(venue, Event.BATTERY_LOW, NO_SCAN)
+        .addTransition(venue, Event.FOREGROUND, FAST_SCAN)
+        .build();
+
+    int state = policy.next(policy.getInitialState(), Event.FOREGROUND);
+    state = policy.next(state, Event.BACKGROUND);
+    assertSame(venue, policy.getState(state));
+    assertEquals(ScanController.ScanState.BALANCED_SCAN, venue.getScanState());
+    assertEquals(2000, venue.getActiveMillis());
+    state = policy.next(state, Event.BATTERY_LOW);
+    assertSame(NO_SCAN, policy.getState(state));
+  }
+
+  public void testHysteresis() {
+    ScanPolicy policy = new ScanPolicy.Builder(NO_SCAN)
+        .addTransition(NO_SCAN, Event.SCREEN_ON, FAST_SCAN)
+        .setDebounceMillis(500)
+        .setMinDwellMillis(FAST_SCAN, 10000)
+        .build();
+    assertEquals(500, policy.getDebounceMillis());
+    assertEquals(0, policy.getMinDwellMillis(policy.getInitialState()));
+    int state = policy.next(policy.getInitialState(), Event.SCREEN_ON);
+    assertEquals(10000, policy.getMinDwellMillis(state));
+    // Legacy policies switch immediately.
+    assertEquals(0, ScanPolicy.forScreenOffMode(ScanController.ScreenOffMode.NO_SCAN)
+        .getDebounceMillis());
+  }
+
+  public void testInvalidScanMode() {
+    try {
+      new ScanPolicy.State("INVALID", 42);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.controller;
+
+import static org.uribeacon.scan.controller.ScanPolicy.BALANCED_SCAN;
+import static org.uribeacon.scan.controller.ScanPolicy.FAST_SCAN;
+import static org.uribeacon.scan.controller.ScanPolicy.NO_SCAN;
+import static org.uribeacon.scan.controller.ScanPolicy.SLOW_SCAN;
+import static org.uribeacon.scan.controller.SchedulePredictor.SPARSE_SCAN;
+
+import org.uribeacon.scan.compat.ScanSettings;
+
+import android.test.AndroidTestCase;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.controller.SchedulePredictor} class.
+ */
+public class SchedulePredictorTest extends AndroidTestCase {
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  // Monday 9:00 UTC
+  private static final long MORNING = 1412586000000L;
+
+  private SchedulePredictor mPredictor;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    mPredictor = new SchedulePredictor(TimeZone.getTimeZone("UTC"));
+  }
+
+  public void testNoHistoryKeepsState() {
+    assertSame(FAST_SCAN, mPredictor.predict(FAST_SCAN, MORNING));
+    assertSame(NO_SCAN, mPredictor.predict(NO_SCAN, MORNING));
+  }
+
+  public void testBusyPlaceScansHarder() {
+    visitOffice(MORNING);
+    // Back at the office the next day, as soon as one of its devices is seen.
+    long nextDay = MORNING + TimeUnit.DAYS.toMillis(1);
+    mPredictor.recordDiscovery("00:00:00:00:00:01", nextDay);
+    assertSame(BALANCED_SCAN, mPredictor.predict(SLOW_SCAN, nextDay));
+    assertSame(FAST_SCAN, mPredictor.predict(BALANCED_SCAN, nextDay));
+    // Other hours are unknown.
+    assertSame(SLOW_SCAN, mPredictor.predict(SLOW_SCAN, nextDay + 3 * HOUR));
+  }
+
+  public void testQuietHoursScanLess() {
+    // Scanning without discoveries, for instance while commuting.
+    mPredictor.recordScanning(MORNING, 10 * MINUTE);
+    long nextDay = MORNING + TimeUnit.DAYS.toMillis(1);
+    assertSame(BALANCED_SCAN, mPredictor.predict(FAST_SCAN, nextDay));
+    assertSame(SPARSE_SCAN, mPredictor.predict(SLOW_SCAN, nextDay));
+  }
+
+  public void testCustomTimingKept() {
+    mPredictor.recordScanning(MORNING, 10 * MINUTE);
+    ScanPolicy.State venue = new ScanPolicy.State(
+        "VENUE", ScanSettings.SCAN_MODE_BALANCED, 2000 /* activeMillis */, 8000 /* idleMillis */);
+    assertSame(venue, mPredictor.predict(venue, MORNING));
+  }
+
+  public void testPlacesAreSeparate() {
+    visitOffice(MORNING);
+    // A different set of devices is a different place, not known yet.
+    long evening = MORNING + TimeUnit.DAYS.toMillis(1);
+    mPredictor.recordDiscovery("00:00:00:00:01:01", evening);
+    mPredictor.recordDiscovery("00:00:00:00:01:02", evening);
+    assertEquals(1, mPredictor.getPlace(evening));
+    assertSame(SLOW_SCAN, mPredictor.predict(SLOW_SCAN, evening));
+    // The place is forgotten once no devices are found for a while.
+    assertEquals(SchedulePredictor.NO_PLACE,
+        mPredictor.getPlace(evening + SchedulePredictor.VISIT_GAP_MILLIS + 1));
+  }
+
+  public void testStrangerOnArrivalKeepsPlace() {
+    visitOffice(MORNING);
+    visitOtherPlaces(MORNING + HOUR);
+    // The first device found the next day is unknown, but doesn't replace the office.
+    long nextDay = MORNING + TimeUnit.DAYS.toMillis(1);
+    mPredictor.recordDiscovery("00:00:00:00:0F:00", nextDay);
+    assertEquals(SchedulePredictor.NO_PLACE, mPredictor.getPlace(nextDay));
+    mPredictor.recordDiscovery("00:00:00:00:00:01", nextDay);
+    assertEquals(0, mPredictor.getPlace(nextDay));
+    assertSame(BALANCED_SCAN, mPredictor.predict(SLOW_SCAN, nextDay));
+  }
+
+  public void testNewPlaceReplacesOldest() {
+    visitOffice(MORNING);
+    visitOtherPlaces(MORNING + HOUR);
+    long nextDay = MORNING + TimeUnit.DAYS.toMillis(1);
+    for (int i = 1; i < SchedulePredictor.MIN_NEW_PLACE_DISCOVERIES; i++) {
+      mPredictor.recordDiscovery("00:00:00:00:0F:0" + i, nextDay);
+      assertEquals(SchedulePredictor.NO_PLACE, mPredictor.getPlace(nextDay));
+    }
+    mPredictor.recordDiscovery("00:00:00:00:0F:09", nextDay);
+    assertEquals(0, mPredictor.getPlace(nextDay));
+    // The office history is gone.
+    assertSame(SLOW_SCAN, mPredictor.predict(SLOW_SCAN, nextDay));
+  }
+
+  public void testUnknownDevicesRarelyMatchPlace() {
+    visitOffice(MORNING);
+    int matches = 0;
+    for (int i = 0; i < 100; i++) {
+      long nextDay = MORNING + (i + 1) * TimeUnit.DAYS.toMillis(1);
+      mPredictor.recordDiscovery(String.format("00:00:00:00:%02X:AA", i), nextDay);
+      if (mPredictor.getPlace(nextDay) == 0) {
+        matches++;
+      }
+    }
+    // A place of 10 devices knows about 20 bits, matching 10% of unknown devices.
+    assertTrue(matches < 20);
+  }
+
+  public void testScanTimeSplitAcrossHours() {
+    // Scanning from 9:50 to 10:10 without discoveries.
+    mPredictor.recordScanning(MORNING + 50 * MINUTE, 20 * MINUTE);
+    long nextDay = MORNING + TimeUnit.DAYS.toMillis(1);
+    assertSame(BALANCED_SCAN, mPredictor.predict(FAST_SCAN, nextDay));
+    assertSame(BALANCED_SCAN, mPredictor.predict(FAST_SCAN, nextDay + HOUR));
+    assertSame(FAST_SCAN, mPredictor.predict(FAST_SCAN, nextDay + 2 * HOUR));
+  }
+
+  public void testRestore() {
+    visitOffice(MORNING);
+    SchedulePredictor restored = new SchedulePredictor(TimeZone.getTimeZone("UTC"));
+    restored.restore(mPredictor.toByteArray());
+    long nextDay = MORNING + TimeUnit.DAYS.toMillis(1);
+    restored.recordDiscovery("00:00:00:00:00:02", nextDay);
+    assertSame(BALANCED_SCAN, restored.predict(SLOW_SCAN, nextDay));
+
+    try {
+      restored.restore(new byte[3]);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  // Fills the places other than the office with a device each, one visit an hour.
+  private void visitOtherPlaces(long startMillis) {
+    for (int i = 1; i < SchedulePredictor.NUM_PLACES; i++) {
+      long visitMillis = startMillis + i * HOUR;
+      mPredictor.recordDiscovery("00:00:00:00:0E:0" + i, visitMillis);
+      assertEquals(i, mPredictor.getPlace(visitMillis));
+    }
+  }
+
+  // Finds 10 devices in 5 minutes of scanning.
+  private void visitOffice(long startMillis) {
+    for (int i = 0; i < 10; i++) {
+      mPredictor.recordDiscovery("00:00:00:00:00:0" + i, startMillis + i * 10000);
+    }
+    mPredictor.recordScanning(startMillis, 5 * MINUTE);
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.util.AddressTable} class.
+ */
+public class AddressTableTest extends TestCase {
+
+  public void testPackedAddresses() {
+    assertEquals(0x001122334455L, AddressTable.keyOf("00:11:22:33:44:55"));
+    assertEquals(0xAABBCCDDEEFFL, AddressTable.keyOf("aa:bb:cc:dd:ee:ff"));
+    assertEquals(AddressTable.keyOf("AA:BB:CC:DD:EE:FF"), AddressTable.keyOf("aa:bb:cc:dd:ee:ff"));
+    // Other strings are keyed apart from any Bluetooth address.
+    assertTrue(AddressTable.keyOf("region") > 0xFFFFFFFFFFFFL);
+    assertTrue(AddressTable.keyOf("00-11-22-33-44-55") > 0xFFFFFFFFFFFFL);
+  }
+
+  public void testAddFindRemove() {
+    AddressTable table = new AddressTable();
+    assertEquals(-1, table.find("00:11:22:33:44:55"));
+    assertEquals(0, table.add("00:11:22:33:44:55"));
+    assertEquals(1, table.add("beacon"));
+    assertEquals(0, table.find("00:11:22:33:44:55"));
+    assertEquals(1, table.find("beacon"));
+
+    // The last entry moves into the removed index.
+    assertEquals(1, table.remove(0));
+    assertEquals(0, table.find("beacon"));
+    assertEquals(-1, table.find("00:11:22:33:44:55"));
+    assertEquals(-1, table.remove(0));
+    assertEquals(0, table.size());
+  }
+
+  public void testMatchesMap() {
+    AddressTable table = new AddressTable();
+    Map<String, Integer> expected = new HashMap<String, Integer>();
+    List<String> addresses = new ArrayList<String>();
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      addresses.add(String.format("00:11:22:33:%02X:%02X", i / 7, i % 7));
+    }
+
+    for (int i = 0; i < 10000; i++) {
+      String address = addresses.get(random.nextInt(addresses.size()));
+      int index = table.find(address);
+      assertEquals(expected.containsKey(address), index >= 0);
+      if (index < 0) {
+        expected.put(address, table.add(address));
+      } else {
+        assertEquals(expected.get(address).intValue(), index);
+        if (random.nextBoolean()) {
+          int moved = table.remove(index);
+          expected.remove(address);
+          if (moved >= 0) {
+            expected.put(table.getAddress(index), index);
+          }
+        }
+      }
+      assertEquals(expected.size(), table.size());
+    }
+  }
+}
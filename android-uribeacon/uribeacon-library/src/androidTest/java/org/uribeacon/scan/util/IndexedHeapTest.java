@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.util.IndexedHeap} class.
+ */
+public class IndexedHeapTest extends TestCase {
+
+  public void testSetAndRemove() {
+    IndexedHeap heap = new IndexedHeap(4);
+    assertEquals(-1, heap.peek());
+    heap.set(0, 50);
+    heap.set(1, 30);
+    heap.set(2, 40);
+    assertEquals(1, heap.peek());
+    heap.set(1, 60);
+    assertEquals(2, heap.peek());
+    heap.remove(2);
+    assertEquals(0, heap.peek());
+    assertFalse(heap.contains(2));
+    assertEquals(2, heap.size());
+  }
+
+  public void testListLowest() {
+    IndexedHeap heap = new IndexedHeap(8);
+    int[] keys = { 70, 20, 50, 10, 60, 30, 40, 80 };
+    for (int i = 0; i < keys.length; i++) {
+      heap.set(i, keys[i]);
+    }
+    int[] out = new int[8];
+    assertEquals(3, heap.listLowest(3, Integer.MAX_VALUE, out));
+    assertEquals(3, out[0]);
+    assertEquals(1, out[1]);
+    assertEquals(5, out[2]);
+    assertEquals(4, heap.listLowest(8, 40, out));
+    assertEquals(6, out[3]);
+    // Listing doesn't change the heap.
+    assertEquals(8, heap.size());
+    assertEquals(3, heap.peek());
+  }
+
+  public void testMatchesSortedKeys() {
+    IndexedHeap heap = new IndexedHeap(4);
+    // Dense indices, moved on removal like AddressTable indices.
+    List<Integer> keys = new ArrayList<>();
+    Random random = new Random(7);
+    int[] out = new int[64];
+    for (int i = 0; i < 5000; i++) {
+      int operation = random.nextInt(3);
+      if (operation == 0 && keys.size() < 64) {
+        int index = keys.size();
+        int key = random.nextInt(100);
+        heap.ensureCapacity(index + 1);
+        heap.set(index, key);
+        keys.add(key);
+      } else if (operation == 1 && !keys.isEmpty()) {
+        int index = random.nextInt(keys.size());
+        int key = random.nextInt(100);
+        heap.set(index, key);
+        keys.set(index, key);
+      } else if (!keys.isEmpty()) {
+        int index = random.nextInt(keys.size());
+        int last = keys.size() - 1;
+        heap.remove(index);
+        if (index != last) {
+          heap.move(last, index);
+          keys.set(index, keys.get(last));
+        }
+        keys.remove(last);
+      }
+      assertEquals(keys.size(), heap.size());
+      List<Integer> sorted = new ArrayList<>(keys);
+      Collections.sort(sorted);
+      int count = heap.listLowest(5, Integer.MAX_VALUE, out);
+      assertEquals(Math.min(5, keys.size()), count);
+      for (int j = 0; j < count; j++) {
+        assertEquals(sorted.get(j), Integer.valueOf(heap.getKey(out[j])));
+        assertEquals(keys.get(out[j]), Integer.valueOf(heap.getKey(out[j])));
+      }
+    }
+  }
+}
@@ -50,4 +50,20 @@ public class RangingUtilsTest extends AndroidTestCase {
     assertEquals(0, rssi);
   }
 
+  public void testTablesMatchEquations() {
+    for (int pathLoss = -400; pathLoss <= 400; pathLoss++) {
+      double distance = Math.pow(10,
+          (pathLoss - RangingUtils.FREE_SPACE_PATH_LOSS_CONSTANT_FOR_BLE) / 20.0);
+      assertEquals(distance, RangingUtils.distanceFromPathLoss(pathLoss));
+      assertEquals(RangingUtils.regionFromDistance(distance),
+          RangingUtils.regionFromPathLoss(pathLoss));
+    }
+    for (int txPower = -400; txPower <= 400; txPower++) {
+      int midRssi = RangingUtils.rssiFromDistance(RangingUtils.NEAR_TO_MID_METERS, txPower);
+      assertEquals(txPower - midRssi, RangingUtils.nearToMidPathLoss(txPower));
+      int farRssi = RangingUtils.rssiFromDistance(RangingUtils.MID_TO_FAR_METERS, txPower);
+      assertEquals(txPower - farRssi, RangingUtils.midToFarPathLoss(txPower));
+    }
+  }
+
 }
@@ -18,9 +18,16 @@ package org.uribeacon.scan.util;
 
 import junit.framework.TestCase;
 
+import org.uribeacon.scan.compat.ScanResult;
+import org.uribeacon.scan.testing.FakeClock;
+import org.uribeacon.scan.testing.FakeScanResults;
 import org.uribeacon.scan.util.RangingUtils;
 import org.uribeacon.scan.util.RegionResolver;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
 /**
  * Unit tests for the {@link org.uribeacon.scan.util.RangingUtils} class.
  */
@@ -105,6 +112,291 @@ public class RegionResolverTest extends TestCase {
     assertTrue(numRaw <= numSmoothHyst);
   }
 
+  public void testLostDropsSmoothing() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.onUpdate("lost", -80, -55);
+    resolver.onUpdate("lost", -60, -55);
+    assertEquals(-70, resolver.getSmoothedRssi("lost"));
+
+    resolver.onLost("lost");
+    assertEquals(0, resolver.getDeviceCount());
+    resolver.onUpdate("lost", -60, -55);
+    assertEquals(-60, resolver.getSmoothedRssi("lost"));
+  }
+
+  public void testCapacityEviction() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setClock(new FakeClock());
+    resolver.setLimits(2, 60000);
+
+    resolver.onUpdate("00:00:00:00:00:01", -60, -55);
+    resolver.onUpdate("00:00:00:00:00:02", -60, -55);
+    // Updating the first device makes the second the least recently updated.
+    resolver.onUpdate("00:00:00:00:00:01", -60, -55);
+    resolver.onUpdate("00:00:00:00:00:03", -60, -55);
+
+    assertEquals(2, resolver.getDeviceCount());
+    assertEquals(1, resolver.getCapacityEvictionCount());
+    assertEquals(0, resolver.getSmoothedRssi("00:00:00:00:00:02"));
+    assertEquals(-60, resolver.getSmoothedRssi("00:00:00:00:00:01"));
+  }
+
+  public void testIdleEviction() {
+    RegionResolver resolver = new RegionResolver();
+    FakeClock clock = new FakeClock();
+    resolver.setClock(clock);
+    resolver.setLimits(100, 1000);
+
+    // A NEAR device becomes the nearest.
+    assertTrue(resolver.onUpdate("near", -20, -55));
+    resolver.onUpdate("far", -90, -55);
+    clock.advance(600);
+    resolver.onUpdate("far", -90, -55);
+    clock.advance(600);
+    resolver.onUpdate("far", -90, -55);
+
+    assertEquals(1, resolver.getDeviceCount());
+    assertEquals(1, resolver.getIdleEvictionCount());
+    assertNull(resolver.getNearestAddress());
+  }
+
+  public void testEvictIdleWithoutUpdates() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setLimits(100, 1000);
+    resolver.onUpdate("near", -20, -55, 0L);
+    resolver.onUpdate("far", -90, -55, 600 * 1000000L);
+
+    assertTrue(resolver.evictIdle(1000 * 1000000L).isEmpty());
+    RegionResolver.ChangeSet changes = resolver.evictIdle(1200 * 1000000L);
+    assertEquals(Arrays.asList("near"), changes.getExited());
+    assertTrue(changes.isNearestChanged());
+    assertNull(changes.getNearestAddress());
+    changes = resolver.evictIdle(2000 * 1000000L);
+    assertEquals(Arrays.asList("far"), changes.getExited());
+    assertFalse(changes.isNearestChanged());
+    assertEquals(0, resolver.getDeviceCount());
+    assertEquals(2, resolver.getIdleEvictionCount());
+  }
+
+  public void testNextNearestTakesOver() {
+    RegionResolver resolver = new RegionResolver();
+    assertTrue(resolver.onUpdate("first", -30, -14));
+    assertFalse(resolver.onUpdate("second", -35, -14));
+    resolver.onUpdate("far", -80, -14);
+    assertEquals(Arrays.asList("first", "second", "far"), resolver.getNearestAddresses(5));
+    assertEquals(Arrays.asList("first"), resolver.getNearestAddresses(1));
+    assertEquals(Arrays.asList("first", "second"), resolver.getAddressesWithinPathLoss(25));
+
+    // The second device takes over without having to be updated.
+    assertTrue(resolver.onLost("first"));
+    assertEquals("second", resolver.getNearestAddress());
+    // And the far device never does.
+    assertTrue(resolver.onUpdate("second", -80, -14));
+    assertNull(resolver.getNearestAddress());
+  }
+
+  public void testUpdateBatch() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setLimits(100, 1000);
+    RegionResolver.TxPowerLookup txPowerLookup = new RegionResolver.TxPowerLookup() {
+      @Override
+      public int getCalibratedTxPower(ScanResult result) {
+        return result.getDevice().getAddress().equals("00:00:00:00:00:09")
+            ? UNKNOWN : -14;
+      }
+    };
+
+    // Out of order: the later, nearer sample of the first device is applied last.
+    RegionResolver.ChangeSet changes = resolver.onUpdateBatch(Arrays.asList(
+        FakeScanResults.create("00:00:00:00:00:01", -30, 200),
+        FakeScanResults.create("00:00:00:00:00:01", -80, 100),
+        FakeScanResults.create("00:00:00:00:00:02", -90, 150),
+        FakeScanResults.create("00:00:00:00:00:09", -20, 150)), txPowerLookup);
+    assertEquals(Arrays.asList("00:00:00:00:00:01", "00:00:00:00:00:02"), changes.getEntered());
+    assertTrue(changes.isNearestChanged());
+    assertEquals("00:00:00:00:00:01", changes.getNearestAddress());
+    assertEquals(-55, resolver.getSmoothedRssi("00:00:00:00:00:01"));
+    assertEquals(2, resolver.getDeviceCount());
+
+    // The first device moves away and the second one stops advertising.
+    changes = resolver.onUpdateBatch(Arrays.asList(
+        FakeScanResults.create("00:00:00:00:00:01", -85, 1100),
+        FakeScanResults.create("00:00:00:00:00:01", -85, 1300)), txPowerLookup);
+    assertTrue(changes.getEntered().isEmpty());
+    assertEquals(Arrays.asList("00:00:00:00:00:02"), changes.getExited());
+    assertEquals(Arrays.asList("00:00:00:00:00:01"), changes.getRegionChanged());
+    assertTrue(changes.isNearestChanged());
+    assertNull(changes.getNearestAddress());
+
+    assertTrue(resolver.onUpdateBatch(new ArrayList<ScanResult>(), txPowerLookup).isEmpty());
+  }
+
+  public void testTimeDecayedAverage() {
+    TimeDecayedAverage average = new TimeDecayedAverage(1000);
+    assertEquals(0.0, average.addValue(0.0, 0L), 1e-9);
+    // The first value has half the weight of a value one half-life later.
+    assertEquals(2.0 / 3.0, average.addValue(1.0, 1000000000L), 1e-9);
+    average.reset();
+    assertEquals(1.0, average.addValue(1.0, 0L), 1e-9);
+  }
+
+  public void testTimeDecayedSmoothingIgnoresScanSchedule() {
+    // A sample every 10 milliseconds, as in a low latency scan, and one every 500 milliseconds.
+    RegionResolver dense = new RegionResolver();
+    RegionResolver sparse = new RegionResolver();
+    dense.setSmoother(TimeDecayedAverage.factory(2000));
+    sparse.setSmoother(TimeDecayedAverage.factory(2000));
+
+    long stepMillis = 20000;
+    for (long millis = 0; millis <= stepMillis + 8000; millis += 10) {
+      int rssi = millis < stepMillis ? -90 : -60;
+      dense.onUpdate("device", rssi, -55, millis * 1000000);
+      if (millis % 500 == 0) {
+        sparse.onUpdate("device", rssi, -55, millis * 1000000);
+      }
+      if (millis == stepMillis + 2000) {
+        // About halfway after one half-life, however many samples were received.
+        assertEquals(-74, dense.getSmoothedRssi("device"), 3);
+        assertEquals(-74, sparse.getSmoothedRssi("device"), 3);
+      } else if (millis == stepMillis + 8000) {
+        assertEquals(-62, dense.getSmoothedRssi("device"), 2);
+        assertEquals(-62, sparse.getSmoothedRssi("device"), 2);
+      }
+    }
+  }
+
+  public void testSmootherReuseAfterLost() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setSmoother(TimeDecayedAverage.factory(1000));
+    resolver.onUpdate("first", -80, -55, 0L);
+    resolver.onUpdate("second", -70, -55, 0L);
+    resolver.onLost("first");
+    // The second device keeps its smoothing and the first one starts over.
+    resolver.onUpdate("second", -50, -55, 1000000000L);
+    resolver.onUpdate("first", -60, -55, 1000000000L);
+    assertEquals(-56, resolver.getSmoothedRssi("second"));
+    assertEquals(-60, resolver.getSmoothedRssi("first"));
+  }
+
+  public void testMedianIgnoresSingleDrop() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setSmoother(SlidingWindowSmoother.median(5).factory());
+    for (int i = 0; i < 5; i++) {
+      resolver.onUpdate("blocked", -55, -14, i);
+    }
+    int region = resolver.getRegion("blocked");
+    resolver.onUpdate("blocked", -75, -14, 5);
+    assertEquals(-55, resolver.getSmoothedRssi("blocked"));
+    assertEquals(region, resolver.getRegion("blocked"));
+  }
+
+  public void testKalmanSettlesInFewerSamples() {
+    // Replay the trace with the fluctuations of a busier environment, the same for both.
+    int kalmanSamples = 0;
+    int defaultSamples = 0;
+    for (long seed = 0; seed < 10; seed++) {
+      RegionResolver kalman = new RegionResolver();
+      kalman.setSmoother(KalmanSmoother.factory(10.0));
+      kalmanSamples += samplesToStableRegion(kalman, new Random(seed));
+      defaultSamples += samplesToStableRegion(new RegionResolver(), new Random(seed));
+    }
+    // Measured 729 against 1073 samples, that is 32% fewer.
+    assertTrue(kalmanSamples < defaultSamples * 3 / 4);
+  }
+
+  public void testIsConverged() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setSmoother(KalmanSmoother.factory(10.0));
+    assertFalse(resolver.isConverged("device"));
+    long nanos = 0;
+    resolver.onUpdate("device", -60, -55, nanos);
+    assertFalse(resolver.isConverged("device"));
+    for (int i = 0; i < 20; i++) {
+      nanos += 100000000L;
+      resolver.onUpdate("device", i % 2 == 0 ? -59 : -61, -55, nanos);
+    }
+    assertTrue(resolver.isConverged("device"));
+    resolver.onLost("device");
+    assertFalse(resolver.isConverged("device"));
+    // Other smoothers are settled as soon as the device is tracked.
+    resolver.setSmoother(TimeDecayedAverage.factory(1000));
+    resolver.onUpdate("device", -60, -55, nanos);
+    assertTrue(resolver.isConverged("device"));
+  }
+
+  public void testFactoriesRejectInvalidArguments() {
+    try {
+      KalmanSmoother.factory(0.0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+    try {
+      TimeDecayedAverage.factory(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testKalmanSmoother() {
+    KalmanSmoother smoother = new KalmanSmoother();
+    assertFalse(smoother.isConverged());
+    assertEquals(-60.0, smoother.addValue(-60, 0L), 1e-9);
+    // A steady signal lowers the measurement noise and converges.
+    long nanos = 0;
+    for (int i = 0; i < 20; i++) {
+      nanos += 100000000L;
+      smoother.addValue(i % 2 == 0 ? -59 : -61, nanos);
+    }
+    assertTrue(smoother.isConverged());
+    assertEquals(-60.0, smoother.getValue(), 1.0);
+    assertTrue(smoother.getMeasurementNoise() < 4.0);
+    // A steady drift is tracked as a rate of change.
+    for (int i = 0; i < 50; i++) {
+      nanos += 100000000L;
+      smoother.addValue(-60 - i * 0.5, nanos);
+    }
+    assertEquals(-5.0, smoother.getRate(), 1.0);
+    smoother.reset();
+    assertFalse(smoother.isConverged());
+  }
+
+  /**
+   * Replays TEST_DATA as a scan every 100 milliseconds, adding 3 dB of Gaussian noise, and returns
+   * the number of samples spent after each change of measured region before the resolver settles
+   * in the measured region.
+   */
+  private static int samplesToStableRegion(RegionResolver resolver, Random noise) {
+    final String address = "stable";
+    // The transmit power at which TEST_DATA regions match the measured distances.
+    final int calibratedTxPower = -14;
+    int total = 0;
+    int measuredRegion = -1;
+    // Index of the first sample of the current measured region, and of the first sample since
+    // which the resolver has been in it, or -1.
+    int regionStart = 0;
+    int settledSince = -1;
+    int samples = TEST_DATA.length / 2;
+    for (int i = 0; i < samples; i++) {
+      int region = RangingUtils.regionFromDistance(TEST_DATA[2 * i]);
+      if (region != measuredRegion) {
+        if (measuredRegion != -1) {
+          total += (settledSince == -1 ? i : settledSince) - regionStart;
+        }
+        measuredRegion = region;
+        regionStart = i;
+        settledSince = -1;
+      }
+      int rssi = (int) Math.round(TEST_DATA[2 * i + 1] + 3.0 * noise.nextGaussian());
+      resolver.onUpdate(address, rssi, calibratedTxPower, i * 100000000L);
+      if (resolver.getRegion(address) != measuredRegion) {
+        settledSince = -1;
+      } else if (settledSince == -1) {
+        settledSince = i;
+      }
+    }
+    return total + (settledSince == -1 ? samples : settledSince) - regionStart;
+  }
+
   private static final double[] TEST_DATA = { 0.0, -28,
     0.0, -26,
     0.0, -27,
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Unit tests for the {@link SlidingWindowSmoother} class.
+ */
+public class SlidingWindowSmootherTest extends TestCase {
+
+  public void testMedianDropsOutliers() {
+    SlidingWindowSmoother median = SlidingWindowSmoother.median(5);
+    median.addValue(-60, 0L);
+    median.addValue(-61, 0L);
+    median.addValue(-59, 0L);
+    median.addValue(-60, 0L);
+    // A body blocking the signal for one packet.
+    assertEquals(-60.0, median.addValue(-80, 0L), 1e-9);
+    assertEquals(-60.0, median.addValue(-60, 0L), 1e-9);
+    assertEquals(5, median.getCount());
+  }
+
+  public void testPercentileInterpolates() {
+    SlidingWindowSmoother percentile = SlidingWindowSmoother.percentile(4, 50.0);
+    assertEquals(0.0, percentile.getValue(), 1e-9);
+    percentile.addValue(1, 0L);
+    percentile.addValue(2, 0L);
+    assertEquals(1.5, percentile.getValue(), 1e-9);
+    percentile.reset();
+    assertEquals(0, percentile.getCount());
+    assertEquals(3.0, percentile.addValue(3, 0L), 1e-9);
+  }
+
+  public void testMatchesSortedWindow() {
+    SlidingWindowSmoother[] smoothers = {
+        SlidingWindowSmoother.median(9),
+        SlidingWindowSmoother.percentile(9, 90.0),
+        SlidingWindowSmoother.percentile(9, 0.0),
+        SlidingWindowSmoother.trimmedMean(9, 0.25)
+    };
+    ArrayDeque<Double> window = new ArrayDeque<>();
+    Random random = new Random(42);
+    for (int i = 0; i < 1000; i++) {
+      // Few distinct values, so that equal values come and go.
+      double value = -60 - random.nextInt(8);
+      window.addLast(value);
+      if (window.size() > 9) {
+        window.removeFirst();
+      }
+      double[] sorted = new double[window.size()];
+      int j = 0;
+      for (double windowValue : window) {
+        sorted[j++] = windowValue;
+      }
+      Arrays.sort(sorted);
+      for (SlidingWindowSmoother smoother : smoothers) {
+        smoother.addValue(value, i);
+      }
+      assertEquals(percentile(sorted, 0.5), smoothers[0].getValue(), 1e-9);
+      assertEquals(percentile(sorted, 0.9), smoothers[1].getValue(), 1e-9);
+      assertEquals(sorted[0], smoothers[2].getValue(), 1e-9);
+      int trimmed = sorted.length / 4;
+      double sum = 0.0;
+      for (j = trimmed; j < sorted.length - trimmed; j++) {
+        sum += sorted[j];
+      }
+      assertEquals(sum / (sorted.length - 2 * trimmed), smoothers[3].getValue(), 1e-9);
+    }
+  }
+
+  private static double percentile(double[] sorted, double fraction) {
+    double rank = fraction * (sorted.length - 1);
+    int lower = (int) rank;
+    if (lower == sorted.length - 1) {
+      return sorted[lower];
+    }
+    return sorted[lower] + (rank - lower) * (sorted[lower + 1] - sorted[lower]);
+  }
+}
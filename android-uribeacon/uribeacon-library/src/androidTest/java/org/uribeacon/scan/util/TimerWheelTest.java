@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.util.TimerWheel} class.
+ */
+public class TimerWheelTest extends TestCase {
+  private final List<String> mFired = new ArrayList<>();
+
+  private class NamedTimer extends TimerWheel.Timer {
+    final String mName;
+
+    NamedTimer(String name) {
+      mName = name;
+    }
+
+    @Override
+    void onExpired(long nowNanos) {
+      mFired.add(mName);
+    }
+  }
+
+  public void testFiresAtDeadline() {
+    TimerWheel wheel = new TimerWheel(10, 8);
+    wheel.advance(0);
+    NamedTimer first = new NamedTimer("first");
+    NamedTimer second = new NamedTimer("second");
+    wheel.schedule(first, 25);
+    wheel.schedule(second, 45);
+    assertEquals(2, wheel.size());
+
+    // Deadlines are rounded up to the tick.
+    wheel.advance(29);
+    assertTrue(mFired.isEmpty());
+    wheel.advance(30);
+    assertEquals(1, mFired.size());
+    assertFalse(first.isScheduled());
+    wheel.advance(50);
+    assertEquals(2, mFired.size());
+    assertEquals(0, wheel.size());
+  }
+
+  public void testLaterRotationsAndCancel() {
+    TimerWheel wheel = new TimerWheel(10, 8);
+    wheel.advance(0);
+    NamedTimer late = new NamedTimer("late");
+    NamedTimer cancelled = new NamedTimer("cancelled");
+    // Three rotations away, in the same slot as the cancelled timer.
+    wheel.schedule(late, 250);
+    wheel.schedule(cancelled, 10);
+    wheel.cancel(cancelled);
+    wheel.advance(100);
+    assertTrue(mFired.isEmpty());
+    // Jumping over several rotations visits each slot once.
+    wheel.advance(10000);
+    assertEquals(1, mFired.size());
+    assertEquals("late", mFired.get(0));
+  }
+
+  public void testRescheduleWhileFiring() {
+    final TimerWheel wheel = new TimerWheel(10, 8);
+    wheel.advance(0);
+    final NamedTimer other = new NamedTimer("other");
+    TimerWheel.Timer canceller = new TimerWheel.Timer() {
+      @Override
+      void onExpired(long nowNanos) {
+        mFired.add("canceller");
+        wheel.cancel(other);
+        wheel.schedule(this, nowNanos + 100);
+      }
+    };
+    wheel.schedule(canceller, 10);
+    wheel.schedule(other, 10);
+    wheel.advance(10);
+    // Whichever fires first, the other timer doesn't fire after being cancelled.
+    assertTrue(mFired.contains("canceller"));
+    assertTrue(canceller.isScheduled());
+    assertEquals(1, wheel.size());
+  }
+}
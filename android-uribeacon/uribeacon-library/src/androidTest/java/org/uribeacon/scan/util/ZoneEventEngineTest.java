@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import junit.framework.TestCase;
+
+import org.uribeacon.scan.compat.ScanResult;
+import org.uribeacon.scan.testing.FakeScanResults;
+import org.uribeacon.scan.util.RangingUtils.Region;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for the {@link org.uribeacon.scan.util.ZoneEventEngine} class.
+ */
+public class ZoneEventEngineTest extends TestCase {
+  private static final long MILLIS = 1000000;
+
+  private final List<String> mEvents = new ArrayList<>();
+  private final ZoneEventEngine mEngine = new ZoneEventEngine(new ZoneEventEngine.Listener() {
+    @Override
+    public void onEnter(String address, int region) {
+      mEvents.add("enter " + address + " " + region);
+    }
+
+    @Override
+    public void onExit(String address, int region) {
+      mEvents.add("exit " + address + " " + region);
+    }
+
+    @Override
+    public void onDwell(String address, int region, long dwellMillis) {
+      mEvents.add("dwell " + address + " " + region + " " + dwellMillis);
+    }
+  });
+
+  public void testEnterExit() {
+    mEngine.onRegion("shelf", Region.FAR, 0);
+    mEngine.onRegion("shelf", Region.FAR, 100 * MILLIS);
+    mEngine.onRegion("shelf", Region.NEAR, 200 * MILLIS);
+    mEngine.onLost("shelf", 300 * MILLIS);
+    assertEquals(Arrays.asList("enter shelf 2", "exit shelf 2", "enter shelf 0", "exit shelf 0"),
+        mEvents);
+    assertEquals(0, mEngine.getDeviceCount());
+    assertEquals(Region.UNKNOWN, mEngine.getRegion("shelf"));
+  }
+
+  public void testDwell() {
+    mEngine.setDwellMillis(Region.NEAR, 1000);
+    mEngine.onRegion("stay", Region.NEAR, 0);
+    mEngine.onRegion("leave", Region.NEAR, 0);
+    mEngine.onRegion("leave", Region.MID, 500 * MILLIS);
+    mEvents.clear();
+
+    mEngine.advance(900 * MILLIS);
+    assertTrue(mEvents.isEmpty());
+    mEngine.advance(1000 * MILLIS);
+    assertEquals(Arrays.asList("dwell stay 0 1000"), mEvents);
+    // Once per stay.
+    mEngine.advance(5000 * MILLIS);
+    assertEquals(1, mEvents.size());
+  }
+
+  public void testChanges() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setLimits(100, 1000);
+    RegionResolver.TxPowerLookup txPowerLookup = new RegionResolver.TxPowerLookup() {
+      @Override
+      public int getCalibratedTxPower(ScanResult result) {
+        return -14;
+      }
+    };
+
+    RegionResolver.ChangeSet changes = resolver.onUpdateBatch(Arrays.asList(
+        FakeScanResults.create("00:00:00:00:00:01", -30, 0),
+        FakeScanResults.create("00:00:00:00:00:02", -90, 0)), txPowerLookup);
+    mEngine.onChanges(resolver, changes, 0);
+    // Both devices outlive the idle timeout, but the first one is seen again, farther.
+    changes = resolver.onUpdateBatch(Arrays.asList(
+        FakeScanResults.create("00:00:00:00:00:01", -85, 1500),
+        FakeScanResults.create("00:00:00:00:00:01", -85, 1600)), txPowerLookup);
+    mEngine.onChanges(resolver, changes, 1600 * MILLIS);
+
+    assertEquals(Arrays.asList(
+        "enter 00:00:00:00:00:01 0", "enter 00:00:00:00:00:02 2",
+        "exit 00:00:00:00:00:02 2", "exit 00:00:00:00:00:01 0", "enter 00:00:00:00:00:01 2"),
+        mEvents);
+  }
+
+  public void testIdleDevicesExit() {
+    RegionResolver resolver = new RegionResolver();
+    resolver.setLimits(100, 1000);
+    resolver.onUpdate("00:00:00:00:00:01", -30, -14, 0L);
+    mEngine.onRegion("00:00:00:00:00:01", resolver.getRegion("00:00:00:00:00:01"), 0L);
+
+    // No device is updated any more.
+    mEngine.onChanges(resolver, resolver.evictIdle(1500 * MILLIS), 1500 * MILLIS);
+    assertEquals(Arrays.asList("enter 00:00:00:00:00:01 0", "exit 00:00:00:00:00:01 0"),
+        mEvents);
+    assertEquals(0, mEngine.getDeviceCount());
+  }
+}
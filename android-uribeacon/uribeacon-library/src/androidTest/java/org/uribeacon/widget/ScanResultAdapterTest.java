@@ -0,0 +1,251 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.uribeacon.widget;
+
+import android.bluetooth.BluetoothAdapter;
+import android.view.View;
+import android.view.ViewGroup;
+
+import junit.framework.TestCase;
+
+import org.uribeacon.scan.compat.ScanResult;
+import org.uribeacon.scan.testing.FakeScanResults;
+import org.uribeacon.scan.util.RegionResolver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests for {@link ScanResultAdapter}, run with a fake clock and task runner.
+ */
+public class ScanResultAdapterTest extends TestCase {
+  private static final int TX_POWER = -14;
+  private static final long REFRESH_MILLIS = 16;
+  private static final long SECOND_MILLIS = 1000;
+
+  private FakeTaskRunner taskRunner;
+  private ScanResultAdapter adapter;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    taskRunner = new FakeTaskRunner();
+    adapter = new ScanResultAdapter(null /* inflater */, taskRunner) {
+      @Override
+      public View getView(int i, View view, ViewGroup viewGroup) {
+        return null;
+      }
+    };
+  }
+
+  public void testRefreshShowsSnapshot() {
+    add("00:00:00:00:00:01", -40);
+    add("00:00:00:00:00:02", -60);
+    // The list doesn't change until the refresh.
+    assertEquals(0, adapter.getCount());
+    taskRunner.advance(0);
+    assertEquals(2, adapter.getCount());
+
+    // Changes within a refresh interval are shown together.
+    add("00:00:00:00:00:03", -80);
+    taskRunner.advance(REFRESH_MILLIS / 2);
+    add("00:00:00:00:00:04", -80);
+    adapter.remove(BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:00:00:00:00:01"));
+    assertEquals(2, adapter.getCount());
+    assertEquals("00:00:00:00:00:01", getAddress(0));
+    taskRunner.advance(REFRESH_MILLIS / 2);
+    assertEquals(3, adapter.getCount());
+    assertSorted();
+  }
+
+  public void testIncrementalOrder() {
+    Random random = new Random(42);
+    for (int i = 0; i < 500; i++) {
+      add("00:00:00:00:00:0" + random.nextInt(8), -30 - random.nextInt(60));
+      if (random.nextInt(10) == 0) {
+        adapter.remove(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(
+            "00:00:00:00:00:0" + random.nextInt(8)));
+      }
+      adapter.notifyDataSetChanged();
+      assertSorted();
+    }
+  }
+
+  public void testNearestReaddedAfterClear() {
+    String nearest = "00:00:00:00:00:02";
+    String other = "00:00:00:00:00:01";
+    add(nearest, -30);
+    add(other, -32);
+    adapter.notifyDataSetChanged();
+    assertEquals(nearest, getAddress(0));
+    RegionResolver resolver = adapter.mRegionResolver;
+    assertEquals(resolver.getRegion(nearest), resolver.getRegion(other));
+
+    // The resolver still ranks the cleared device nearest when it is added again.
+    adapter.clear();
+    add(other, -32);
+    add(nearest, -30);
+    adapter.notifyDataSetChanged();
+    assertEquals(nearest, resolver.getNearestAddress());
+    assertEquals(nearest, getAddress(0));
+    assertSorted();
+  }
+
+  public void testLifetimeExpires() {
+    addWithLifetime("00:00:00:00:00:01", 5);
+    addWithLifetime("00:00:00:00:00:02", 2);
+    taskRunner.advance(SECOND_MILLIS);
+    assertEquals(2, adapter.getCount());
+
+    // Expired devices are removed by the next sweep.
+    taskRunner.advance(2 * SECOND_MILLIS);
+    assertEquals(1, adapter.getCount());
+    taskRunner.advance(3 * SECOND_MILLIS);
+    assertEquals(0, adapter.getCount());
+
+    // The sweeper stops with the last timeout.
+    assertEquals(0, taskRunner.getTaskCount());
+  }
+
+  public void testAddExtendsLifetime() {
+    addWithLifetime("00:00:00:00:00:01", 5);
+    taskRunner.advance(3 * SECOND_MILLIS);
+    addWithLifetime("00:00:00:00:00:01", 5);
+    taskRunner.advance(3 * SECOND_MILLIS);
+    assertEquals(1, adapter.getCount());
+    taskRunner.advance(3 * SECOND_MILLIS);
+    assertEquals(0, adapter.getCount());
+  }
+
+  public void testAddShortensLifetime() {
+    addWithLifetime("00:00:00:00:00:01", 10);
+    taskRunner.advance(SECOND_MILLIS);
+    addWithLifetime("00:00:00:00:00:01", 2);
+    taskRunner.advance(3 * SECOND_MILLIS);
+    assertEquals(0, adapter.getCount());
+  }
+
+  public void testReaddAfterRemoval() {
+    addWithLifetime("00:00:00:00:00:01", 2);
+    adapter.remove(BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:00:00:00:00:01"));
+    taskRunner.advance(SECOND_MILLIS);
+    addWithLifetime("00:00:00:00:00:01", 5);
+
+    // The timeout of the removed sighting doesn't remove the new one.
+    taskRunner.advance(3 * SECOND_MILLIS);
+    assertEquals(1, adapter.getCount());
+    taskRunner.advance(3 * SECOND_MILLIS);
+    assertEquals(0, adapter.getCount());
+  }
+
+  public void testClearDropsLifetimes() {
+    addWithLifetime("00:00:00:00:00:01", 2);
+    adapter.clear();
+    add("00:00:00:00:00:01", -60);
+    taskRunner.advance(5 * SECOND_MILLIS);
+    assertEquals(1, adapter.getCount());
+    assertEquals(0, taskRunner.getTaskCount());
+  }
+
+  private void addWithLifetime(String address, int lifetimeSeconds) {
+    adapter.add(scanResult(address, -60), TX_POWER, lifetimeSeconds);
+  }
+
+  private void add(String address, int rssi) {
+    adapter.add(scanResult(address, rssi), TX_POWER);
+  }
+
+  private ScanResult scanResult(String address, int rssi) {
+    return FakeScanResults.create(address, rssi, taskRunner.uptimeMillis());
+  }
+
+  private String getAddress(int position) {
+    return adapter.getItem(position).scanResult.getDevice().getAddress();
+  }
+
+  /**
+   * Checks that the list shows the nearest device first, then the devices by region and address.
+   */
+  private void assertSorted() {
+    RegionResolver resolver = adapter.mRegionResolver;
+    String nearest = resolver.getNearestAddress();
+    for (int i = 0; i < adapter.getCount(); i++) {
+      String address = getAddress(i);
+      assertEquals(address.equals(nearest), i == 0 && nearest != null);
+      if (i > (nearest != null ? 1 : 0)) {
+        String previous = getAddress(i - 1);
+        int region = resolver.getRegion(address);
+        int previousRegion = resolver.getRegion(previous);
+        assertTrue(previousRegion < region
+            || (previousRegion == region && previous.compareTo(address) < 0));
+      }
+    }
+  }
+
+  /**
+   * Runs the tasks of the adapter in virtual time.
+   */
+  private static class FakeTaskRunner implements ScanResultAdapter.TaskRunner {
+    private long nowMillis = 1000000;
+    private final Map<Runnable, Long> tasks = new LinkedHashMap<>();
+
+    @Override
+    public long uptimeMillis() {
+      return nowMillis;
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+      tasks.put(task, nowMillis + delayMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+      tasks.remove(task);
+    }
+
+    /**
+     * Moves the time forward by {@code millis}, running the tasks due meanwhile.
+     */
+    void advance(long millis) {
+      long endMillis = nowMillis + millis;
+      while (true) {
+        Runnable next = null;
+        long nextMillis = endMillis;
+        for (Map.Entry<Runnable, Long> entry : tasks.entrySet()) {
+          if (entry.getValue() <= nextMillis) {
+            next = entry.getKey();
+            nextMillis = entry.getValue();
+          }
+        }
+        if (next == null) {
+          break;
+        }
+        tasks.remove(next);
+        nowMillis = Math.max(nowMillis, nextMillis);
+        next.run();
+      }
+      nowMillis = endMillis;
+    }
+
+    int getTaskCount() {
+      return tasks.size();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+
+import org.uribeacon.scan.util.Logger;
+
+/**
+ * {@link Scheduler} that runs scan cycles from a repeating or one-shot {@link AlarmManager} alarm,
+ * which wakes the device if asked to. The alarm intent is handled by {@link ScanWakefulBroadcastReceiver},
+ * which holds a wakelock while {@link ScanWakefulService} runs the scan cycle.
+ */
+class AlarmScheduler implements Scheduler {
+  private final AlarmManager alarmManager;
+  private final PendingIntent alarmIntent;
+
+  AlarmScheduler(AlarmManager alarmManager, PendingIntent alarmIntent) {
+    this.alarmManager = alarmManager;
+    this.alarmIntent = alarmIntent;
+  }
+
+  @Override
+  public void scheduleRepeating(long periodMillis, boolean wakeup, Runnable scanCycle) {
+    // Specifies a repeating alarm at the scanPeriod, starting immediately.
+    alarmManager.setRepeating(wakeup ? AlarmManager.RTC_WAKEUP : AlarmManager.RTC, 0,
+        periodMillis, alarmIntent);
+    Logger.logInfo("Scan alarm setup complete @ " + System.currentTimeMillis());
+  }
+
+  @Override
+  public void scheduleOnce(long delayMillis, Runnable scanCycle) {
+    alarmManager.set(AlarmManager.RTC, System.currentTimeMillis() + delayMillis, alarmIntent);
+  }
+
+  @Override
+  public void cancel() {
+    alarmManager.cancel(alarmIntent);
+  }
+
+  /**
+   * Suppresses the experimental 'wait not in loop' warning because we don't mind exiting early.
+   */
+  @Override
+  @SuppressWarnings("WaitNotInLoop")
+  public void await(Object lock, long millis) throws InterruptedException {
+    lock.wait(millis);
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link RadioSource} backed by the {@link BluetoothAdapter} LE scan API of
+ * {@link android.os.Build.VERSION_CODES#JELLY_BEAN_MR2}.
+ * <p>
+ * Suppresses deprecation because this is the compatibility support.
+ */
+@SuppressWarnings("deprecation")
+class BluetoothAdapterRadioSource implements RadioSource {
+  private final BluetoothAdapter bluetoothAdapter;
+  private final Map<Listener, BluetoothAdapter.LeScanCallback> callbacks =
+      new HashMap<Listener, BluetoothAdapter.LeScanCallback>();
+
+  BluetoothAdapterRadioSource(BluetoothAdapter bluetoothAdapter) {
+    this.bluetoothAdapter = bluetoothAdapter;
+  }
+
+  @Override
+  public synchronized boolean start(Listener listener) {
+    return bluetoothAdapter.startLeScan(getCallback(listener));
+  }
+
+  @Override
+  public synchronized void stop(Listener listener) {
+    bluetoothAdapter.stopLeScan(getCallback(listener));
+  }
+
+  private BluetoothAdapter.LeScanCallback getCallback(final Listener listener) {
+    BluetoothAdapter.LeScanCallback callback = callbacks.get(listener);
+    if (callback == null) {
+      callback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecordBytes) {
+          listener.onAdvertisement(device.getAddress(), device, rssi, scanRecordBytes);
+        }
+      };
+      callbacks.put(listener, callback);
+    }
+    return callback;
+  }
+}
@@ -21,6 +21,10 @@
 //   Change to abstract class
 //   Remove implementations
 //   Define setCustomScanTiming for ULR
+//   Define setScanRestartMillis and getSamplesPerDevicePerSecond
+//   Define getOffloadedFilterCount and getHostRejectCount
+//   Add flushPendingScanResults
+//   Define updateScanSettings
 //   Slight updates to javadoc
 
 package org.uribeacon.scan.compat;
@@ -99,6 +103,36 @@ public abstract class BluetoothLeScannerCompat {
      */
     public abstract void stopScan(ScanCallback callback);
 
+    /**
+     * Changes the scan mode of an ongoing scan without restarting it, so the scan keeps its
+     * state, such as the devices already reported to the {@code callback}.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     * <p>
+     *
+     * @param callback Callback of the Bluetooth LE Scan, it has to be the same instance as the one
+     *            used to start scan.
+     * @param settings The new settings, which may differ from the current ones only in their scan
+     *            mode.
+     * @return {@code true} if the settings were applied. {@code false} if the scan isn't running
+     *         or the settings differ in more than their scan mode, in which case the scan has to
+     *         be stopped and started again.
+     */
+    public abstract boolean updateScanSettings(ScanCallback callback, ScanSettings settings);
+
+    /**
+     * Flush pending batch scan results stored in Bluetooth controller. This will return Bluetooth
+     * LE scan results batched on bluetooth controller. Returns immediately, batch scan results
+     * data will be delivered through the {@code callback}.
+     * <p>
+     * Scanners that don't batch in the controller deliver the results they hold for the
+     * {@code callback}, if any.
+     *
+     * @param callback Callback of the Bluetooth LE Scan, it has to be the same instance as the one
+     *            used to start scan.
+     */
+    public abstract void flushPendingScanResults(ScanCallback callback);
+
     /**
      * Sets the Bluetooth LE scan cycle overriding values set on individual scans from
      * {@link ScanSettings}.
@@ -117,9 +151,59 @@ public abstract class BluetoothLeScannerCompat {
     public abstract void setCustomScanTiming(
         int scanMillis, int idleMillis, long serialScanDurationMillis);
 
+    /**
+     * Sets the interval at which the Bluetooth LE scan is restarted within each active scan
+     * window. Some controllers report each address only once per scan session, so restarting
+     * raises the number of samples per device at the cost of CPU.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     * <p>
+     *
+     * @param restartMillis interval in milliseconds between restarts, or 0 to keep a single scan
+     *        session for the whole active window.  Ignored by hardware scanners.
+     */
+    public abstract void setScanRestartMillis(int restartMillis);
+
+    /**
+     * Returns the average number of scan results received per device per second of active
+     * scanning, as measured on the most recent scan cycle in which any device was seen.
+     * Returns 0 if no measurement is available.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     */
+    public abstract double getSamplesPerDevicePerSecond();
+
+    /**
+     * Returns the number of client scan filters currently offloaded unchanged to the controller.
+     * Filters that don't fit the controller are widened, and the results they let through are
+     * checked on the host instead.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     */
+    public abstract int getOffloadedFilterCount();
+
+    /**
+     * Returns the number of scan results the host discarded because they matched no client
+     * filter.
+     * <p>
+     * This is an extension of the "L" Platform API.
+     */
+    public abstract int getHostRejectCount();
+
     /**
      * Sets the delay after which a device will be marked as lost if it hasn't been sighted
      * within the given time. Set to a negative value to allow default behaviour.
      */
     public abstract void setScanLostOverride(long lostOverrideMillis);
+
+    /**
+     * Returns whether the settings can be swapped on a running scan by
+     * {@link #updateScanSettings}.
+     */
+    static boolean differOnlyInScanMode(ScanSettings current, ScanSettings settings) {
+        return settings != null
+                && current.getCallbackType() == settings.getCallbackType()
+                && current.getScanResultType() == settings.getScanResultType()
+                && current.getReportDelayMillis() == settings.getReportDelayMillis();
+    }
 }
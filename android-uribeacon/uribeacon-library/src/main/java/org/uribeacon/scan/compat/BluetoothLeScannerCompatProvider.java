@@ -27,6 +27,8 @@ import android.content.Context;
 import android.os.Build;
 import android.support.annotation.Nullable;
 
+import org.uribeacon.scan.util.Clock;
+
 /**
  * A compatibility layer for low-energy bluetooth, providing access to an implementation of
  * the {@link BluetoothLeScannerCompat} which will use the Android "L" APIs if they are present,
@@ -81,7 +83,8 @@ public class BluetoothLeScannerCompatProvider {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
                 && canUseNativeApi
                 && areHardwareFeaturesSupported(bluetoothManager)) {
-          scannerInstance = new LBluetoothLeScannerCompat(bluetoothManager);
+          scannerInstance = new LBluetoothLeScannerCompat(
+                  context, bluetoothManager, alarmManager);
         } else if (alarmManager != null
                 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
           scannerInstance = new JbBluetoothLeScannerCompat(
@@ -92,6 +95,23 @@ public class BluetoothLeScannerCompatProvider {
     return scannerInstance;
   }
 
+  /**
+   * Creates a CPU-bound {@link BluetoothLeScannerCompat} fed by the given radio and scan cycle
+   * scheduler instead of the Bluetooth adapter and the alarm manager. This allows the scan
+   * engine, including filtering and lost detection, to run off-device on recorded or synthetic
+   * traffic.
+   * <p>
+   * The returned scanner is not shared with {@link #getBluetoothLeScannerCompat}.
+   *
+   * @param radio The source of advertising packets.
+   * @param scheduler The scheduler driving the scan cycles.
+   * @param clock The clock used to timestamp results and detect lost devices.
+   */
+  public static BluetoothLeScannerCompat createBluetoothLeScannerCompat(
+          RadioSource radio, Scheduler scheduler, Clock clock) {
+    return new JbBluetoothLeScannerCompat(radio, scheduler, clock);
+  }
+
   /**
    * Check that the hardware has indeed the features used by the L-specific implementation.
    */
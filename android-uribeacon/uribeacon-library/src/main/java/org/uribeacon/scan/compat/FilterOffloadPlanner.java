@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.os.ParcelUuid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fits a list of scan filters into the limited number of filter slots of the controller.
+ * <p>
+ * When there are more filters than slots, the most selective filters are offloaded unchanged and
+ * the rest are widened to coarser filters sharing a service UUID, service data UUID or
+ * manufacturer id, keeping the longest data prefix common to the widened filters. Results of
+ * widened filters must be refined on the host with {@link ScanFilter#matches}. When the filters
+ * can't be widened to fit, the plan scans unfiltered.
+ */
+class FilterOffloadPlanner {
+
+  /**
+   * Filter slots assumed when the controller limit is unknown. Common controllers offer between
+   * 16 and 32 slots, shared with other apps.
+   */
+  static final int DEFAULT_MAX_OFFLOADED_FILTERS = 16;
+
+  /**
+   * The result of planning a filter list.
+   */
+  static class Plan {
+    /**
+     * The filters to hand to the controller, or null to scan unfiltered.
+     */
+    final List<ScanFilter> filters;
+    /**
+     * The number of requested filters offloaded unchanged.
+     */
+    final int offloadedCount;
+    /**
+     * The number of requested filters replaced by a coarser offloaded filter.
+     */
+    final int widenedCount;
+
+    Plan(List<ScanFilter> filters, int offloadedCount, int widenedCount) {
+      this.filters = filters;
+      this.offloadedCount = offloadedCount;
+      this.widenedCount = widenedCount;
+    }
+  }
+
+  private static final Comparator<ScanFilter> BY_SELECTIVITY = new Comparator<ScanFilter>() {
+    @Override
+    public int compare(ScanFilter lhs, ScanFilter rhs) {
+      return selectivity(rhs) - selectivity(lhs);
+    }
+  };
+
+  private int maxOffloadedFilters = DEFAULT_MAX_OFFLOADED_FILTERS;
+
+  void setMaxOffloadedFilters(int maxOffloadedFilters) {
+    if (maxOffloadedFilters < 1) {
+      throw new IllegalArgumentException("maxOffloadedFilters must be positive");
+    }
+    this.maxOffloadedFilters = maxOffloadedFilters;
+  }
+
+  int getMaxOffloadedFilters() {
+    return maxOffloadedFilters;
+  }
+
+  /**
+   * Plans the offload of {@code filters}, which may be null to scan unfiltered.
+   */
+  Plan plan(List<ScanFilter> filters) {
+    if (filters == null) {
+      return new Plan(null, 0, 0);
+    }
+    if (filters.size() <= maxOffloadedFilters) {
+      return new Plan(filters, filters.size(), 0);
+    }
+    List<ScanFilter> ranked = new ArrayList<ScanFilter>(filters);
+    Collections.sort(ranked, BY_SELECTIVITY);
+    // Offload as many filters unchanged as the widened remainder leaves room for.
+    for (int exact = maxOffloadedFilters - 1; exact >= 0; exact--) {
+      List<ScanFilter> widened = widen(ranked.subList(exact, ranked.size()));
+      if (widened != null && exact + widened.size() <= maxOffloadedFilters) {
+        List<ScanFilter> planned = new ArrayList<ScanFilter>(ranked.subList(0, exact));
+        planned.addAll(widened);
+        return new Plan(planned, exact, ranked.size() - exact);
+      }
+    }
+    return new Plan(null, 0, filters.size());
+  }
+
+  /**
+   * Returns coarse filters covering all of {@code filters}, or null if some filter has nothing
+   * to widen to.
+   */
+  private static List<ScanFilter> widen(List<ScanFilter> filters) {
+    Map<Object, List<ScanFilter>> groups = new LinkedHashMap<Object, List<ScanFilter>>();
+    for (ScanFilter filter : filters) {
+      Object key = coarseKey(filter);
+      if (key == null) {
+        return null;
+      }
+      List<ScanFilter> group = groups.get(key);
+      if (group == null) {
+        group = new ArrayList<ScanFilter>();
+        groups.put(key, group);
+      }
+      group.add(filter);
+    }
+    List<ScanFilter> widened = new ArrayList<ScanFilter>(groups.size());
+    for (Map.Entry<Object, List<ScanFilter>> entry : groups.entrySet()) {
+      widened.add(coarseFilter(entry.getKey(), entry.getValue()));
+    }
+    return widened;
+  }
+
+  // Manufacturer ids are keyed as Integers and service UUIDs as singleton lists, to keep them
+  // apart from service data UUIDs.
+  private static Object coarseKey(ScanFilter filter) {
+    if (filter.getServiceDataUuid() != null) {
+      return filter.getServiceDataUuid();
+    }
+    if (filter.getManufacturerId() >= 0) {
+      return filter.getManufacturerId();
+    }
+    if (filter.getServiceUuid() != null && filter.getServiceUuidMask() == null) {
+      return Arrays.asList(filter.getServiceUuid());
+    }
+    return null;
+  }
+
+  private static ScanFilter coarseFilter(Object key, List<ScanFilter> group) {
+    ScanFilter.Builder builder = new ScanFilter.Builder();
+    if (key instanceof ParcelUuid) {
+      byte[][] data = new byte[group.size()][];
+      byte[][] masks = new byte[group.size()][];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = group.get(i).getServiceData();
+        masks[i] = group.get(i).getServiceDataMask();
+      }
+      builder.setServiceData((ParcelUuid) key, commonPrefix(data, masks));
+    } else if (key instanceof Integer) {
+      byte[][] data = new byte[group.size()][];
+      byte[][] masks = new byte[group.size()][];
+      for (int i = 0; i < data.length; i++) {
+        data[i] = group.get(i).getManufacturerData();
+        masks[i] = group.get(i).getManufacturerDataMask();
+      }
+      builder.setManufacturerData((Integer) key, commonPrefix(data, masks));
+    } else {
+      builder.setServiceUuid(group.get(0).getServiceUuid());
+    }
+    return builder.build();
+  }
+
+  /**
+   * Returns the longest prefix shared by all of {@code data} and fully covered by their masks.
+   */
+  private static byte[] commonPrefix(byte[][] data, byte[][] masks) {
+    int length = Integer.MAX_VALUE;
+    for (byte[] bytes : data) {
+      length = Math.min(length, bytes == null ? 0 : bytes.length);
+    }
+    int prefix = 0;
+    prefixLoop:
+    for (; prefix < length; prefix++) {
+      byte value = data[0][prefix];
+      for (int i = 0; i < data.length; i++) {
+        if (data[i][prefix] != value || (masks[i] != null && masks[i][prefix] != (byte) 0xff)) {
+          break prefixLoop;
+        }
+      }
+    }
+    return Arrays.copyOf(data[0] == null ? new byte[0] : data[0], prefix);
+  }
+
+  /**
+   * Returns a rough measure of how few advertisements pass the filter.
+   */
+  private static int selectivity(ScanFilter filter) {
+    int selectivity = 0;
+    if (filter.getDeviceAddress() != null) {
+      selectivity += 64;
+    }
+    if (filter.getDeviceName() != null) {
+      selectivity += 16;
+    }
+    if (filter.getServiceUuid() != null) {
+      selectivity += 4;
+    }
+    if (filter.getServiceDataUuid() != null) {
+      selectivity += 4 + dataLength(filter.getServiceData(), filter.getServiceDataMask());
+    }
+    if (filter.getManufacturerId() >= 0) {
+      selectivity += 4 + dataLength(filter.getManufacturerData(), filter.getManufacturerDataMask());
+    }
+    return selectivity;
+  }
+
+  // Counts the data bytes that take part in matching.
+  private static int dataLength(byte[] data, byte[] mask) {
+    if (data == null) {
+      return 0;
+    }
+    if (mask == null) {
+      return data.length;
+    }
+    int length = 0;
+    for (byte b : mask) {
+      if (b != 0) {
+        length++;
+      }
+    }
+    return length;
+  }
+}
@@ -18,7 +18,6 @@ package org.uribeacon.scan.compat;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
@@ -28,6 +27,7 @@ import org.uribeacon.scan.util.Clock;
 import org.uribeacon.scan.util.Logger;
 import org.uribeacon.scan.util.SystemClock;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -47,11 +47,15 @@ import java.util.concurrent.TimeUnit;
  * A scan cycle comprises a period when the Bluetooth Adapter is active and a period when the
  * Bluetooth adapter is idle. Having an idle period is energy efficient for long lived scans.
  * <p>
+ * Advertisements come from a {@link RadioSource} and scan cycles are driven by a
+ * {@link Scheduler}. On a device these are the Bluetooth adapter and the alarm manager; off-device
+ * they can replay recorded or synthetic traffic in virtual time.
+ * <p>
  * This class can be accessed on multiple threads:
  * <ul>
  * <li> main thread (user) can call any of the BluetoothLeScanner APIs
  * <li> IntentService worker thread can call {@link #blockingScanCycle}
- * <li> AIDL binder thread can call {@link #leScanCallback.onLeScan}
+ * <li> AIDL binder thread can call {@link #radioListener}
  * </ul>
  *
  * @see <a href="http://go/ble-glossary">BLE Glossary</a>
@@ -76,25 +80,50 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   /**
    * Wraps user requests and stores the list of filters and callbacks. Also saves a set of
    * addresses for which any of the filters have matched in order to do lost processing.
+   * <p>
+   * When the scanner runs at a faster scan mode than the client asked for, updates are
+   * coalesced to the latest result per address and delivered no faster than the client's own
+   * scan cycle.
    */
   private static class ScanClient {
     final List<ScanFilter> filtersList;
     final Set<String> addressesSeen;
+    final Map<String, Long> lastDeliveryMillis;
+    final Map<String, ScanResult> pendingResults;
     final ScanCallback callback;
-    final ScanSettings settings;
+    ScanSettings settings;
 
     ScanClient(ScanSettings settings, List<ScanFilter> filters, ScanCallback callback) {
       this.settings = settings;
       this.filtersList = filters;
       this.addressesSeen = new HashSet<String>();
+      this.lastDeliveryMillis = new HashMap<String, Long>();
+      this.pendingResults = new HashMap<String, ScanResult>();
+      this.callback = callback;
+    }
+  }
+
+  /**
+   * A client callback decided while holding the scanner lock, and made once the lock is
+   * released so that the client may call back into the scanner, or wait for a thread that does.
+   */
+  private static class Delivery {
+    final ScanCallback callback;
+    final int callbackType;
+    final ScanResult result;
+    final String failureMessage;
+
+    Delivery(ScanCallback callback, int callbackType, ScanResult result, String failureMessage) {
       this.callback = callback;
+      this.callbackType = callbackType;
+      this.result = result;
+      this.failureMessage = failureMessage;
     }
   }
 
   // Alarm Scan variables
   private final Clock clock;
-  private final AlarmManager alarmManager;
-  private final PendingIntent alarmIntent;
+  private final Scheduler scheduler;
   private long alarmIntervalMillis;
 
   // Map of BD_ADDR->ScanResult for replay to new registrations.
@@ -102,6 +131,7 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   /* @VisibleForTesting */ final HashMap<String, ScanResult> recentScanResults;
 
   // Default Scan Constants = Balanced
+  private int scanMode = ScanSettings.SCAN_MODE_BALANCED;
   private int scanIdleMillis = BALANCED_IDLE_MILLIS;
   private int scanActiveMillis = BALANCED_ACTIVE_MILLIS;
 
@@ -113,30 +143,53 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   // SCAN_LOST_CYCLES is used to determine when to inform clients about lost events.
   private long scanLostOverrideMillis = -1;
 
-  private final BluetoothAdapter bluetoothAdapter;
+  // Interval at which the LE scan is restarted within an active window, or 0 to keep a single
+  // scan session open. Many JB-era controllers report each address only once per session.
+  private int scanRestartMillis = 0;
+
+  // Number of results and distinct addresses seen during the current active window.
+  private int cycleSampleCount;
+  private final Set<String> cycleAddresses = new HashSet<String>();
+  // Time actually spent scanning in the current active window, or -1 if none was measured.
+  private long cycleActiveMillis = -1;
+
+  // Average samples per device per second of active scanning, measured on the last cycle
+  // in which any device was seen.
+  private double samplesPerDevicePerSecond;
+
+  // Scan results matching no client filter.
+  private int hostRejectCount;
+
+  private final RadioSource radio;
   /* @VisibleForTesting */ final HashMap<ScanCallback, ScanClient> serialClients;
 
   /**
-   * The Bluetooth LE callback which will be registered with the OS,
-   * to be fired on device discovery.
+   * The listener which will be registered with the radio, to be fired on device discovery.
    */
-  private final BluetoothAdapter.LeScanCallback leScanCallback =
-      new BluetoothAdapter.LeScanCallback() {
+  private final RadioSource.Listener radioListener = new RadioSource.Listener() {
     /**
-     * Callback method called from the OS on each BLE device sighting.
-     * This method is invoked on the AIDL handler thread, so all methods
+     * Callback method called from the radio on each BLE device sighting.
+     * On a device this method is invoked on the AIDL handler thread, so all methods
      * called here must be synchronized.
-     *
-     * @param device The device discovered
-     * @param rssi The signal strength in dBm it was received at
-     * @param scanRecordBytes The raw byte payload buffer
      */
     @Override
-    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecordBytes) {
+    public void onAdvertisement(String address, BluetoothDevice device, int rssi,
+        byte[] scanRecordBytes) {
       long currentTimeInNanos = TimeUnit.MILLISECONDS.toNanos(clock.currentTimeMillis());
       ScanResult result = new ScanResult(device, ScanRecord.parseFromBytes(scanRecordBytes), rssi,
           currentTimeInNanos);
-      onScanResult(device.getAddress(), result);
+      onScanResult(address, result);
+    }
+  };
+
+  /**
+   * Runs a scan cycle when the scheduler calls it directly rather than through
+   * {@link ScanWakefulService}.
+   */
+  private final Runnable scanCycle = new Runnable() {
+    @Override
+    public void run() {
+      blockingScanCycle();
     }
   };
 
@@ -157,11 +210,19 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    */
   JbBluetoothLeScannerCompat(BluetoothManager manager, AlarmManager alarmManager,
       Clock clock, PendingIntent alarmIntent) {
-    this.bluetoothAdapter = manager.getAdapter();
+    this(new BluetoothAdapterRadioSource(manager.getAdapter()),
+        new AlarmScheduler(alarmManager, alarmIntent), clock);
+  }
+
+  /**
+   * Constructor for a scanner fed by an arbitrary radio and scheduler, called from
+   * {@link BluetoothLeScannerCompatProvider}.
+   */
+  JbBluetoothLeScannerCompat(RadioSource radio, Scheduler scheduler, Clock clock) {
+    this.radio = radio;
+    this.scheduler = scheduler;
     this.serialClients = new HashMap<ScanCallback, ScanClient>();
     this.recentScanResults = new HashMap<String, ScanResult>();
-    this.alarmManager = alarmManager;
-    this.alarmIntent = alarmIntent;
     this.clock = clock;
   }
 
@@ -171,50 +232,79 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * receiver to release its wakelock and the phone will enter a sleep phase for the remainder of
    * the BLE scan cycle.
    * <p>
-   * This is called on the IntentService handler thread and hence is synchronized.
-   * <p>
-   * Suppresses the experimental 'wait not in loop' warning because we don't mind exiting early.
-   * Suppresses deprecation because this is the compatibility support.
+   * This is called on the IntentService handler thread. The scheduler waits on this object's
+   * monitor for the duration of the active window, and the clients are called back once the
+   * monitor is released.
    */
-  @SuppressWarnings({"WaitNotInLoop", "deprecation"})
-  synchronized void blockingScanCycle() {
+  void blockingScanCycle() {
     Logger.logDebug("Starting BLE Active Scan Cycle.");
+    if (scanActiveWindow()) {
+      // Active BLE scan ends
+      // Execute cycle complete to 1) detect lost devices
+      onScanCycleComplete();
+    }
+    Logger.logDebug("Stopping BLE Active Scan Cycle.");
+  }
+
+  /**
+   * Scans for the length of the active window, if any.
+   *
+   * @return false if the scan is paused
+   */
+  private synchronized boolean scanActiveWindow() {
     int activeMillis = getScanActiveMillis();
-    if (activeMillis > 0) {
-      bluetoothAdapter.startLeScan(leScanCallback);
-      // Sleep for the duration of the scan. No wakeups are expected, but catch is required.
-      try {
-        wait(activeMillis);
-      } catch (InterruptedException e) {
-        Logger.logError("Exception in ScanCycle Sleep", e);
-      } finally {
+    if (activeMillis <= 0) {
+      return false;
+    }
+    long startMillis = millisecondsSinceBoot();
+    radio.start(radioListener);
+    // Sleep for the duration of the scan. No wakeups are expected, but catch is required.
+    try {
+      int remainingMillis = activeMillis;
+      while (true) {
+        int sliceMillis = (scanRestartMillis > 0)
+            ? Math.min(scanRestartMillis, remainingMillis) : remainingMillis;
+        scheduler.await(this, sliceMillis);
+        remainingMillis -= sliceMillis;
+        if (remainingMillis <= 0) {
+          break;
+        }
+        // Restart the scan so the controller reports already sighted addresses again.
         try {
-          bluetoothAdapter.stopLeScan(leScanCallback);
+          radio.stop(radioListener);
+          radio.start(radioListener);
         } catch (NullPointerException e) {
           // An NPE is thrown if Bluetooth has been reset since this blocking scan began.
-          Logger.logDebug("NPE thrown in BlockingScanCycle");
+          Logger.logDebug("NPE thrown restarting BlockingScanCycle");
+          break;
         }
-        // Active BLE scan ends
-        // Execute cycle complete to 1) detect lost devices
-        onScanCycleComplete();
       }
+    } catch (InterruptedException e) {
+      Logger.logError("Exception in ScanCycle Sleep", e);
+    } finally {
+      try {
+        radio.stop(radioListener);
+      } catch (NullPointerException e) {
+        // An NPE is thrown if Bluetooth has been reset since this blocking scan began.
+        Logger.logDebug("NPE thrown in BlockingScanCycle");
+      }
+      // The window may have ended early on a Bluetooth reset or an interrupt.
+      cycleActiveMillis = millisecondsSinceBoot() - startMillis;
     }
-    Logger.logDebug("Stopping BLE Active Scan Cycle.");
+    return true;
   }
 
-  private void callbackLostLeScanClients(String address, ScanResult result) {
+  private void callbackLostLeScanClients(String address, ScanResult result,
+      List<Delivery> deliveries) {
     for (ScanClient client : serialClients.values()) {
       int wantAny = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
       int wantLost = client.settings.getCallbackType() & ScanSettings.CALLBACK_TYPE_MATCH_LOST;
 
+      client.lastDeliveryMillis.remove(address);
+      client.pendingResults.remove(address);
       if (client.addressesSeen.remove(address) && (wantAny | wantLost) != 0) {
-
-        // Catch any exceptions and log them but continue processing other scan results.
-        try {
-          client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_MATCH_LOST, result);
-        } catch (Exception e) {
-          Logger.logError("Failure while sending 'lost' scan result to listener", e);
-        }
+        deliveries.add(new Delivery(client.callback, ScanSettings.CALLBACK_TYPE_MATCH_LOST, result,
+            "Failure while sending 'lost' scan result to listener"));
       }
     }
   }
@@ -226,7 +316,7 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @VisibleForTesting
    */
   void onScanResult(String address, ScanResult result) {
-    callbackLeScanClients(address, result);
+    deliver(callbackLeScanClients(address, result));
   }
 
   /**
@@ -234,25 +324,30 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * address in the client filter so we can later send the "lost" event to that same client.
    * <P>
    * This method will be called by the AIDL handler thread from onLeScan.
+   *
+   * @return the callbacks to make once the lock is released
    */
-  private synchronized void callbackLeScanClients(String address, ScanResult result) {
+  private synchronized List<Delivery> callbackLeScanClients(String address, ScanResult result) {
+    List<Delivery> deliveries = new ArrayList<Delivery>();
+    cycleSampleCount++;
+    cycleAddresses.add(address);
+
+    boolean matched = false;
     for (ScanClient client : serialClients.values()) {
       if (matchesAnyFilter(client.filtersList, result)) {
+        matched = true;
         boolean seenItBefore = client.addressesSeen.contains(address);
         int clientFlags = client.settings.getCallbackType();
         int firstMatchBit = clientFlags & ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
         int allMatchesBit = clientFlags & ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
 
-        // Catch any exceptions and log them but continue processing other listeners.
         if ((firstMatchBit | allMatchesBit) != 0) {
-          try {
-            if (!seenItBefore) {
-              client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, result);
-            } else if (allMatchesBit != 0) {
-              client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
-            }
-          } catch (Exception e) {
-            Logger.logError("Failure while handling scan result", e);
+          if (!seenItBefore) {
+            client.lastDeliveryMillis.put(address, clock.currentTimeMillis());
+            deliveries.add(new Delivery(client.callback, ScanSettings.CALLBACK_TYPE_FIRST_MATCH,
+                result, "Failure while handling scan result"));
+          } else if (allMatchesBit != 0) {
+            deliverUpdate(client, address, result, deliveries);
           }
         }
         if (!seenItBefore) {
@@ -260,18 +355,96 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
         }
       }
     }
+    if (!matched) {
+      hostRejectCount++;
+    }
 
     recentScanResults.put(address, result);
+    return deliveries;
+  }
+
+  /**
+   * Delivers an ALL_MATCHES result, or holds it back as the pending result for the address if
+   * the client received an update more recently than its own scan mode implies.
+   */
+  private void deliverUpdate(ScanClient client, String address, ScanResult result,
+      List<Delivery> deliveries) {
+    long nowMillis = clock.currentTimeMillis();
+    Long lastMillis = client.lastDeliveryMillis.get(address);
+    if (lastMillis != null && nowMillis - lastMillis < getDeliveryIntervalMillis(client)) {
+      client.pendingResults.put(address, result);
+      return;
+    }
+    client.pendingResults.remove(address);
+    client.lastDeliveryMillis.put(address, nowMillis);
+    deliveries.add(new Delivery(client.callback, ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result,
+        "Failure while handling scan result"));
+  }
+
+  /**
+   * Delivers the pending results whose client delivery interval has elapsed.
+   */
+  private void flushPendingResults(List<Delivery> deliveries) {
+    long nowMillis = clock.currentTimeMillis();
+    for (ScanClient client : serialClients.values()) {
+      if (client.pendingResults.isEmpty()) {
+        continue;
+      }
+      long intervalMillis = getDeliveryIntervalMillis(client);
+      Iterator<Map.Entry<String, ScanResult>> iter = client.pendingResults.entrySet().iterator();
+      while (iter.hasNext()) {
+        Map.Entry<String, ScanResult> entry = iter.next();
+        Long lastMillis = client.lastDeliveryMillis.get(entry.getKey());
+        if (lastMillis == null || nowMillis - lastMillis >= intervalMillis) {
+          iter.remove();
+          client.lastDeliveryMillis.put(entry.getKey(), nowMillis);
+          deliveries.add(new Delivery(client.callback, ScanSettings.CALLBACK_TYPE_ALL_MATCHES,
+              entry.getValue(), "Failure while handling coalesced scan result"));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the minimum time between two updates for the same address to this client: zero if
+   * the scanner is not running faster than the client asked for, otherwise the length of the
+   * client's own scan cycle.
+   */
+  private long getDeliveryIntervalMillis(ScanClient client) {
+    int clientMode = client.settings.getScanMode();
+    if (getScanModePriority(clientMode) >= getScanModePriority(scanMode)) {
+      return 0;
+    }
+    return getScanCycleMillisForMode(clientMode);
+  }
+
+  /**
+   * Makes the callbacks collected while holding the scanner lock, which must not be held.
+   */
+  private static void deliver(List<Delivery> deliveries) {
+    for (Delivery delivery : deliveries) {
+      // Catch any exceptions and log them but continue processing other scan results.
+      try {
+        delivery.callback.onScanResult(delivery.callbackType, delivery.result);
+      } catch (Exception e) {
+        Logger.logError(delivery.failureMessage, e);
+      }
+    }
   }
 
   @Override
-  public synchronized boolean startScan(List<ScanFilter> filterList, ScanSettings settings,
+  public boolean startScan(List<ScanFilter> filterList, ScanSettings settings,
       ScanCallback callback) {
-    return startSerialScan(settings, filterList, callback);
+    List<Delivery> deliveries = new ArrayList<Delivery>();
+    synchronized (this) {
+      startSerialScan(settings, filterList, callback, deliveries);
+    }
+    deliver(deliveries);
+    return true;
   }
 
-  private boolean startSerialScan(ScanSettings settings, List<ScanFilter> filterList,
-      ScanCallback callback) {
+  private void startSerialScan(ScanSettings settings, List<ScanFilter> filterList,
+      ScanCallback callback, List<Delivery> deliveries) {
     ScanClient client = new ScanClient(settings, filterList, callback);
     serialClients.put(callback, client);
 
@@ -286,20 +459,15 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
         String address = entry.getKey();
         ScanResult savedResult = entry.getValue();
         if (matchesAnyFilter(filterList, savedResult)) {
-
-          // Catch any exceptions and log them but continue processing other scan results.
-          try {
-            client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_FIRST_MATCH, savedResult);
-          } catch (Exception e) {
-            Logger.logError("Failure while handling scan result for new listener", e);
-          }
+          deliveries.add(new Delivery(client.callback, ScanSettings.CALLBACK_TYPE_FIRST_MATCH,
+              savedResult, "Failure while handling scan result for new listener"));
           client.addressesSeen.add(address);
+          client.lastDeliveryMillis.put(address, clock.currentTimeMillis());
         }
       }
   }
 
     updateRepeatingAlarm();
-    return true;
   }
 
   /**
@@ -318,6 +486,37 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     updateRepeatingAlarm();
   }
 
+  /**
+   * Restarts the LE scan every {@code restartMillis} within each active window.
+   *
+   * @param restartMillis a positive interval, or 0 to keep one scan session per active window
+   */
+  @Override
+  public synchronized void setScanRestartMillis(int restartMillis) {
+    scanRestartMillis = Math.max(0, restartMillis);
+  }
+
+  @Override
+  public synchronized double getSamplesPerDevicePerSecond() {
+    return samplesPerDevicePerSecond;
+  }
+
+  @Override
+  public void flushPendingScanResults(ScanCallback callback) {
+    // Do nothing.  Results are never batched by this scanner.
+  }
+
+  @Override
+  public int getOffloadedFilterCount() {
+    // All filtering happens on the host.
+    return 0;
+  }
+
+  @Override
+  public synchronized int getHostRejectCount() {
+    return hostRejectCount;
+  }
+
   /**
    * Sets the time after which a sighted device will be marked as lost.
    */
@@ -337,6 +536,18 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     updateRepeatingAlarm();
   }
 
+  @Override
+  public synchronized boolean updateScanSettings(ScanCallback callback, ScanSettings settings) {
+    ScanClient client = serialClients.get(callback);
+    if (client == null || !differOnlyInScanMode(client.settings, settings)) {
+      return false;
+    }
+    // The client keeps the devices it was told about, so nothing is replayed or lost.
+    client.settings = settings;
+    updateRepeatingAlarm();
+    return true;
+  }
+
   /**
    * Test for lost tags by periodically checking the found devices
    * for any that haven't been seen recently.
@@ -344,6 +555,16 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @VisibleForTesting
    */
   void onScanCycleComplete() {
+    deliver(completeScanCycle());
+  }
+
+  /**
+   * Expires the lost devices and collects the callbacks to make for them.
+   */
+  private synchronized List<Delivery> completeScanCycle() {
+    List<Delivery> deliveries = new ArrayList<Delivery>();
+    updateSampleRate();
+
     Iterator<Map.Entry<String, ScanResult>> iter = recentScanResults.entrySet().iterator();
     long lostTimestampMillis = getLostTimestampMillis();
 
@@ -353,10 +574,33 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       String address = entry.getKey();
       ScanResult savedResult = entry.getValue();
       if (TimeUnit.NANOSECONDS.toMillis(savedResult.getTimestampNanos()) < lostTimestampMillis) {
-        callbackLostLeScanClients(address, savedResult);
+        callbackLostLeScanClients(address, savedResult, deliveries);
         iter.remove();
       }
     }
+
+    // Deliver coalesced updates to clients running slower than the scanner.
+    flushPendingResults(deliveries);
+    return deliveries;
+  }
+
+  /**
+   * Computes the per-device sample rate of the active window that just ended and resets the
+   * window counters. The rate is taken over the time actually scanned, or over the configured
+   * window for cycles completed without one.
+   */
+  private synchronized void updateSampleRate() {
+    long activeMillis = (cycleActiveMillis >= 0) ? cycleActiveMillis : getScanActiveMillis();
+    if (!cycleAddresses.isEmpty() && activeMillis > 0) {
+      samplesPerDevicePerSecond = (cycleSampleCount * 1000.0)
+          / (cycleAddresses.size() * (double) activeMillis);
+      Logger.logDebug("Scan cycle: " + cycleSampleCount + " samples from "
+          + cycleAddresses.size() + " devices, " + samplesPerDevicePerSecond
+          + " samples/device/s");
+    }
+    cycleSampleCount = 0;
+    cycleAddresses.clear();
+    cycleActiveMillis = -1;
   }
 
   /**
@@ -365,6 +609,7 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
    * @param scanMode the ScanMode in BluetoothLeScanner Settings
    */
   private void setScanMode(int scanMode) {
+    this.scanMode = scanMode;
     switch (scanMode) {
       case ScanSettings.SCAN_MODE_LOW_LATENCY:
         scanIdleMillis = LOW_LATENCY_IDLE_MILLIS;
@@ -384,6 +629,21 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     }
   }
 
+  /**
+   * Returns the length of a scan cycle, comprising both active and idle time, for a scan mode.
+   */
+  static long getScanCycleMillisForMode(int mode) {
+    switch (mode) {
+      case ScanSettings.SCAN_MODE_LOW_LATENCY:
+        return LOW_LATENCY_ACTIVE_MILLIS + LOW_LATENCY_IDLE_MILLIS;
+      case ScanSettings.SCAN_MODE_LOW_POWER:
+        return LOW_POWER_ACTIVE_MILLIS + LOW_POWER_IDLE_MILLIS;
+      default:
+      case ScanSettings.SCAN_MODE_BALANCED:
+        return BALANCED_ACTIVE_MILLIS + BALANCED_IDLE_MILLIS;
+    }
+  }
+
   private int getScanModePriority(int mode) {
     switch (mode) {
       case ScanSettings.SCAN_MODE_LOW_LATENCY:
@@ -421,7 +681,7 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
 
     if (serialClients.isEmpty()) {
       // No listeners.  Remove the repeating alarm, if there is one.
-      alarmManager.cancel(alarmIntent);
+      scheduler.cancel();
       alarmIntervalMillis = 0;
       Logger.logInfo("Scan : No clients left, canceling alarm.");
     } else {
@@ -429,11 +689,8 @@ class JbBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
       int scanPeriod = idleMillis + getScanActiveMillis();
       if ((idleMillis != 0) && (alarmIntervalMillis != scanPeriod)) {
         alarmIntervalMillis = scanPeriod;
-        // Specifies a repeating alarm at the scanPeriod, starting immediately.
-        alarmManager.setRepeating(AlarmManager.RTC_WAKEUP,
-            0, alarmIntervalMillis,
-            alarmIntent);
-        Logger.logInfo("Scan alarm setup complete @ " + System.currentTimeMillis());
+        // The CPU runs the scan, so every cycle must wake the device.
+        scheduler.scheduleRepeating(alarmIntervalMillis, true /* wakeup */, scanCycle);
       }
     }
   }
@@ -18,42 +18,132 @@
 package org.uribeacon.scan.compat;
 
 import android.annotation.TargetApi;
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
+import android.content.Context;
+import android.content.Intent;
 import android.os.Build;
 
 import org.uribeacon.scan.util.Logger;
+import org.uribeacon.scan.util.SystemClock;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
  * Implements Bluetooth LE scan related API on top of {@link android.os.Build.VERSION_CODES#LOLLIPOP}
  * and later.
+ * <p>
+ * All compat clients share a single native scan, see {@link SharedScanSession}. This keeps the
+ * app well below the OS limit on concurrent scanners and saves controller resources.
  */
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
 class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
 
-  private final Map<ScanCallback, android.bluetooth.le.ScanCallback> callbacksMap =
-      new HashMap<ScanCallback, android.bluetooth.le.ScanCallback>();
   private final android.bluetooth.le.BluetoothLeScanner osScanner;
+  private final SharedScanSession session;
+
+  // The single callback registered with the OS, feeding the shared session.
+  private final android.bluetooth.le.ScanCallback osCallback =
+      new android.bluetooth.le.ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, android.bluetooth.le.ScanResult osResult) {
+          session.onScanResult(callbackType, fromOs(osResult));
+        }
+
+        @Override
+        public void onBatchScanResults(List<android.bluetooth.le.ScanResult> osResults) {
+          session.onBatchScanResults(fromOs(osResults));
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+          Logger.logInfo("LBluetoothLeScannerCompat::onScanFailed(" + errorCode + ")");
+          session.onScanFailed(errorCode);
+        }
+      };
+
+  private final SharedScanSession.NativeScanner nativeScanner =
+      new SharedScanSession.NativeScanner() {
+        @Override
+        public boolean start(List<ScanFilter> filters, ScanSettings settings) {
+          try {
+            Logger.logInfo("Starting BLE 'L' hardware scan");
+            osScanner.startScan(getOsFilters(filters), getOsSettings(settings), osCallback);
+            return true;
+          } catch (Exception e) {
+            Logger.logError("Exception caught calling 'L' BluetoothLeScanner.startScan()", e);
+            return false;
+          }
+        }
+
+        @Override
+        public void stop() {
+          try {
+            Logger.logInfo("Stopping BLE 'L' hardware scan");
+            osScanner.stopScan(osCallback);
+          } catch (Exception e) {
+            Logger.logError("Exception caught calling 'L' BluetoothLeScanner.stopScan()", e);
+          }
+        }
+
+        @Override
+        public void flush() {
+          try {
+            osScanner.flushPendingScanResults(osCallback);
+          } catch (Exception e) {
+            Logger.logError(
+                "Exception caught calling 'L' BluetoothLeScanner.flushPendingScanResults()", e);
+          }
+        }
+      };
+
+  // Converted OS objects, so that restarting a scan only costs the native call. Settings are
+  // keyed by value since callers rebuild equal settings when switching scan modes.
+  private final Map<SettingsKey, android.bluetooth.le.ScanSettings> osSettingsCache =
+      new HashMap<SettingsKey, android.bluetooth.le.ScanSettings>();
+  private final Map<ScanFilter, android.bluetooth.le.ScanFilter> osFilterCache =
+      new WeakHashMap<ScanFilter, android.bluetooth.le.ScanFilter>();
+  // The OS filter list of the last scan started, reused while the session asks for equal filters.
+  private List<ScanFilter> lastFilters;
+  private List<android.bluetooth.le.ScanFilter> lastOsFilters;
 
   /**
    * Package-protected constructor, used by {@link BluetoothLeScannerCompatProvider}.
-   *
+   * <p>
+   * Lost devices and custom scan timing are handled on scan cycles run by the alarm manager
+   * through {@link ScanWakefulService}, as for {@link JbBluetoothLeScannerCompat}. The alarm only
+   * repeats and wakes the device for custom scan timing. Otherwise it is set once for the next
+   * device to be lost, since lost devices are also detected as results arrive, which is all that
+   * is done without an alarm manager.
+   * <p>
    * Cannot be called from emulated devices that don't implement a BluetoothAdapter.
    */
-  LBluetoothLeScannerCompat(BluetoothManager manager) {
+  LBluetoothLeScannerCompat(
+      Context context, BluetoothManager manager, AlarmManager alarmManager) {
     Logger.logInfo("BLE 'L' hardware access layer activated");
-    this.osScanner = manager.getAdapter().getBluetoothLeScanner();
+    BluetoothAdapter adapter = manager.getAdapter();
+    this.osScanner = adapter.getBluetoothLeScanner();
+    Scheduler scheduler = (alarmManager == null) ? null : new AlarmScheduler(alarmManager,
+        PendingIntent.getBroadcast(context, 0 /* requestCode */,
+            new Intent(context, ScanWakefulBroadcastReceiver.class), 0 /* flags */));
+    this.session = new SharedScanSession(nativeScanner, scheduler, new SystemClock(),
+        adapter.isOffloadedScanBatchingSupported());
   }
   
   /** Private constructor for testing purposes. */
   private LBluetoothLeScannerCompat() {
     this.osScanner = null;
+    this.session = new SharedScanSession(nativeScanner, null /* scheduler */, new SystemClock(),
+        false /* hardwareBatching */);
   }
   
   /**
@@ -66,53 +156,159 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
 
   @Override
   public boolean startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
-    if (callbacksMap.containsKey(callback)) {
-      Logger.logInfo("StartScan(): BLE 'L' hardware scan already in progress...");
-      stopScan(callback);
-    }
-    
-    android.bluetooth.le.ScanSettings osSettings = toOs(settings);
-    android.bluetooth.le.ScanCallback osCallback = toOs(callback);
-    List<android.bluetooth.le.ScanFilter> osFilters = toOs(filters);
-
-    callbacksMap.put(callback, osCallback);
-    try {
-      Logger.logInfo("Starting BLE 'L' hardware scan");
-      osScanner.startScan(osFilters, osSettings, osCallback);
-      return true;
-    } catch (Exception e) {
-      Logger.logError("Exception caught calling 'L' BluetoothLeScanner.startScan()", e);
-      return false;
-    }
+    return session.addClient(filters, settings, callback);
   }
 
   @Override
   public void stopScan(ScanCallback callback) {
-    android.bluetooth.le.ScanCallback osCallback = callbacksMap.get(callback);
-
-    if (osCallback != null) {
-      try {
-        Logger.logInfo("Stopping BLE 'L' hardware scan");
-        osScanner.stopScan(osCallback);
-      } catch (Exception e) {
-        Logger.logError("Exception caught calling 'L' BluetoothLeScanner.stopScan()", e);
-      }
-    }
+    session.removeClient(callback);
+  }
+
+  @Override
+  public boolean updateScanSettings(ScanCallback callback, ScanSettings settings) {
+    return session.updateClient(callback, settings);
+  }
+
+  @Override
+  public void flushPendingScanResults(ScanCallback callback) {
+    session.flush(callback);
   }
 
   @Override
   public void setCustomScanTiming(int scanMillis, int idleMillis, long serialScanDurationMillis) {
-    // Do nothing.  This operation is not supported, but calling it is not an error.
+    session.setCustomScanTiming(scanMillis, idleMillis);
   }
   
   @Override
-  public synchronized void setScanLostOverride(long lostOverrideMillis) {
-    // TODO: discuss w/ bentonian how best to implement this here.
+  public void setScanRestartMillis(int restartMillis) {
+    // Do nothing.  The controller manages its own scan sessions.
+  }
+
+  @Override
+  public double getSamplesPerDevicePerSecond() {
+    // Not measured by the hardware scanner.
+    return 0;
+  }
+
+  @Override
+  public int getOffloadedFilterCount() {
+    return session.getOffloadedFilterCount();
+  }
+
+  @Override
+  public int getHostRejectCount() {
+    return session.getHostRejectCount();
+  }
+
+  @Override
+  public void setScanLostOverride(long lostOverrideMillis) {
+    session.setScanLostOverride(lostOverrideMillis);
+  }
+
+  /**
+   * Runs a scan cycle, called from the {@link ScanWakefulService}: the active window of the
+   * custom scan timing, if any, then the check for lost devices.
+   */
+  void blockingScanCycle() {
+    session.blockingScanCycle();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Conversion caches
+
+  /**
+   * Value of the compat {@link ScanSettings} fields that are passed to the OS.
+   */
+  private static final class SettingsKey {
+    private final int scanMode;
+    private final int callbackType;
+    private final int scanResultType;
+    private final long reportDelayMillis;
+
+    SettingsKey(ScanSettings settings) {
+      scanMode = settings.getScanMode();
+      callbackType = settings.getCallbackType();
+      scanResultType = settings.getScanResultType();
+      reportDelayMillis = settings.getReportDelayMillis();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof SettingsKey)) {
+        return false;
+      }
+      SettingsKey other = (SettingsKey) obj;
+      return scanMode == other.scanMode && callbackType == other.callbackType
+          && scanResultType == other.scanResultType
+          && reportDelayMillis == other.reportDelayMillis;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(scanMode, callbackType, scanResultType, reportDelayMillis);
+    }
+  }
+
+  /* @VisibleForTesting */
+  synchronized android.bluetooth.le.ScanSettings getOsSettings(ScanSettings settings) {
+    SettingsKey key = new SettingsKey(settings);
+    android.bluetooth.le.ScanSettings osSettings = osSettingsCache.get(key);
+    if (osSettings == null) {
+      osSettings = toOs(settings);
+      osSettingsCache.put(key, osSettings);
+    }
+    return osSettings;
+  }
+
+  /* @VisibleForTesting */
+  synchronized List<android.bluetooth.le.ScanFilter> getOsFilters(List<ScanFilter> filters) {
+    if (filters == null) {
+      return null;
+    }
+    if (filters.equals(lastFilters)) {
+      return lastOsFilters;
+    }
+    List<android.bluetooth.le.ScanFilter> osFilters =
+        new ArrayList<android.bluetooth.le.ScanFilter>(filters.size());
+    for (ScanFilter filter : filters) {
+      android.bluetooth.le.ScanFilter osFilter = osFilterCache.get(filter);
+      if (osFilter == null) {
+        osFilter = toOs(filter);
+        osFilterCache.put(filter, osFilter);
+      }
+      osFilters.add(osFilter);
+    }
+    lastFilters = new ArrayList<ScanFilter>(filters);
+    lastOsFilters = Collections.unmodifiableList(osFilters);
+    return lastOsFilters;
   }
 
   /////////////////////////////////////////////////////////////////////////////
   // Conversion methods
 
+  /**
+   * Holds the @SystemApi-hidden setters of the OS scan settings builder, resolved on first use
+   * and shared by the whole process.
+   */
+  private static final class HiddenSettingsSetters {
+    static final Method SET_SCAN_RESULT_TYPE;
+    static final Method SET_CALLBACK_TYPE;
+
+    static {
+      Method setScanResultType = null;
+      Method setCallbackType = null;
+      for (Method method : android.bluetooth.le.ScanSettings.Builder.class.getMethods()) {
+        if (method.getName().equals("setScanResultType")) {
+          setScanResultType = method;
+        } else if (method.getName().equals("setCallbackType")) {
+          setCallbackType = method;
+        }
+      }
+      SET_SCAN_RESULT_TYPE = setScanResultType;
+      SET_CALLBACK_TYPE = setCallbackType;
+    }
+  }
+
   private static android.bluetooth.le.ScanSettings toOs(ScanSettings settings) {
     android.bluetooth.le.ScanSettings.Builder builder =
         new android.bluetooth.le.ScanSettings.Builder()
@@ -124,60 +320,27 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     // Eclipse doesn't recognize these methods (yet). To track changes to this, keep an eye on
     // http://cs/#android/frameworks/base/core/java/android/bluetooth/le/ScanSettings.java
     // TODO: Remove--or at least never commit to gcore.
-    Class<?> clazz = builder.getClass();
-    boolean resultTypeSet = false;
-    boolean callbackTypeSet = false;
+    Method setScanResultType = HiddenSettingsSetters.SET_SCAN_RESULT_TYPE;
+    Method setCallbackType = HiddenSettingsSetters.SET_CALLBACK_TYPE;
+    if (setScanResultType == null && setCallbackType == null) {
+      throw new RuntimeException(
+          "Failed to find setScanResultType() and setCallbackType() via reflection");
+    }
     try {
-      for (Method method : clazz.getMethods()) {
-        if (method.toString().contains(".setScanResultType(")) {
-          method.invoke(builder, settings.getScanResultType());
-          resultTypeSet = true;
-        }
-        if (method.toString().contains(".setCallbackType(")) {
-          method.invoke(builder, settings.getCallbackType());
-          callbackTypeSet = true;
-        }
-        if (resultTypeSet && callbackTypeSet) {
-          break;
-        }
+      if (setScanResultType != null) {
+        setScanResultType.invoke(builder, settings.getScanResultType());
+      }
+      if (setCallbackType != null) {
+        setCallbackType.invoke(builder, settings.getCallbackType());
       }
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
-    if (!resultTypeSet && !callbackTypeSet) {
-      throw new RuntimeException(
-          "Failed to find setScanResultType() and setCallbackType() via reflection");
-    }
     // </hack>
 
     return builder.build();
   }
 
-  private static android.bluetooth.le.ScanCallback toOs(final ScanCallback callback) {
-    return new android.bluetooth.le.ScanCallback() {
-
-      @Override
-      public void onScanResult(int callbackType, android.bluetooth.le.ScanResult osResult) {
-        callback.onScanResult(callbackType, fromOs(osResult));
-      }
-
-      @Override
-      public void onScanFailed(int errorCode) {
-        Logger.logInfo("LBluetoothLeScannerCompat::onScanFailed(" + errorCode + ")");
-        callback.onScanFailed(errorCode);
-      }
-    };
-  }
-
-  private static List<android.bluetooth.le.ScanFilter> toOs(List<ScanFilter> filters) {
-    List<android.bluetooth.le.ScanFilter> osFilters =
-        new ArrayList<android.bluetooth.le.ScanFilter>(filters.size());
-    for (ScanFilter filter : filters) {
-      osFilters.add(toOs(filter));
-    }
-    return osFilters;
-  }
-
   private static android.bluetooth.le.ScanFilter toOs(ScanFilter filter) {
     android.bluetooth.le.ScanFilter.Builder builder = new android.bluetooth.le.ScanFilter.Builder();
     if (!isNullOrEmpty(filter.getDeviceAddress())) {
@@ -223,7 +386,7 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
   private static ScanResult fromOs(android.bluetooth.le.ScanResult osResult) {
     return new ScanResult(
         osResult.getDevice(),
-        fromOs(osResult.getScanRecord()),
+        new OsScanRecordSupplier(osResult.getScanRecord()),
         osResult.getRssi(),
         // Convert the osResult timestamp from 'nanos since boot' to 'nanos since epoch'.
         osResult.getTimestampNanos() + getActualBootTimeNanos());
@@ -235,8 +398,35 @@ class LBluetoothLeScannerCompat extends BluetoothLeScannerCompat {
     return currentTimeNanos - elapsedRealtimeNanos;
   }
 
+  /**
+   * Converts the OS scan record only when a caller asks for it, reusing the fields the OS has
+   * already parsed instead of parsing the raw bytes again.
+   */
+  private static class OsScanRecordSupplier implements ScanResult.ScanRecordSupplier {
+    private final android.bluetooth.le.ScanRecord osRecord;
+
+    OsScanRecordSupplier(android.bluetooth.le.ScanRecord osRecord) {
+      this.osRecord = osRecord;
+    }
+
+    @Override
+    public ScanRecord get() {
+      return fromOs(osRecord);
+    }
+  }
+
   private static ScanRecord fromOs(android.bluetooth.le.ScanRecord osRecord) {
-    return ScanRecord.parseFromBytes(osRecord.getBytes());
+    if (osRecord == null) {
+      return null;
+    }
+    return ScanRecord.fromParsedFields(
+        osRecord.getServiceUuids(),
+        osRecord.getManufacturerSpecificData(),
+        osRecord.getServiceData(),
+        osRecord.getAdvertiseFlags(),
+        osRecord.getTxPowerLevel(),
+        osRecord.getDeviceName(),
+        osRecord.getBytes());
   }
 
   private static boolean isNullOrEmpty(String s) {
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Tracks which devices are present, declaring a device lost once it hasn't been sighted for
+ * the lost timeout.
+ * <p>
+ * Sightings are kept in order of their last-seen time, which comes from a monotonic clock, so
+ * expiry only looks at the devices that actually expired: recording a sighting and checking for
+ * expired devices are both constant time.
+ * <p>
+ * This class is not thread safe.
+ */
+class PresenceTracker {
+
+  private static class Sighting {
+    final ScanResult result;
+    final long lastSeenMillis;
+
+    Sighting(ScanResult result, long lastSeenMillis) {
+      this.result = result;
+      this.lastSeenMillis = lastSeenMillis;
+    }
+  }
+
+  // Insertion ordered; every sighting is reinserted, so the eldest entry expires first.
+  private final LinkedHashMap<String, Sighting> sightings = new LinkedHashMap<String, Sighting>();
+
+  /**
+   * Records a sighting of {@code address}.
+   *
+   * @param nowMillis monotonic time of the sighting, not earlier than any previous one
+   * @return true if the device wasn't present before
+   */
+  boolean onSighting(String address, ScanResult result, long nowMillis) {
+    boolean found = sightings.remove(address) == null;
+    sightings.put(address, new Sighting(result, nowMillis));
+    return found;
+  }
+
+  /**
+   * Removes and returns the last results of the devices not sighted since
+   * {@code nowMillis - timeoutMillis}.
+   */
+  List<ScanResult> expire(long nowMillis, long timeoutMillis) {
+    List<ScanResult> lost = null;
+    Iterator<Sighting> iterator = sightings.values().iterator();
+    while (iterator.hasNext()) {
+      Sighting sighting = iterator.next();
+      if (nowMillis - sighting.lastSeenMillis < timeoutMillis) {
+        break;
+      }
+      if (lost == null) {
+        lost = new ArrayList<ScanResult>();
+      }
+      lost.add(sighting.result);
+      iterator.remove();
+    }
+    return (lost == null) ? new ArrayList<ScanResult>(0) : lost;
+  }
+
+  /**
+   * Returns when the next device expires with {@code timeoutMillis}, or {@link Long#MAX_VALUE} if
+   * no device is present.
+   */
+  long getNextExpiryMillis(long timeoutMillis) {
+    if (sightings.isEmpty()) {
+      return Long.MAX_VALUE;
+    }
+    return sightings.values().iterator().next().lastSeenMillis + timeoutMillis;
+  }
+
+  boolean isPresent(String address) {
+    return sightings.containsKey(address);
+  }
+
+  int size() {
+    return sightings.size();
+  }
+
+  void clear() {
+    sightings.clear();
+  }
+}
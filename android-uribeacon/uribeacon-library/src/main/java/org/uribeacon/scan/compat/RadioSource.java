@@ -0,0 +1,57 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * Source of raw Bluetooth LE advertisements for the CPU-bound scanner.
+ * <p>
+ * The default implementation drives {@link android.bluetooth.BluetoothAdapter#startLeScan}. Other
+ * implementations replay recorded packets or generate synthetic traffic so that the scan engine can
+ * run off-device.
+ */
+public interface RadioSource {
+
+  /**
+   * Receives the advertisements reported while the radio is scanning.
+   */
+  public interface Listener {
+    /**
+     * Called for each advertising packet received.
+     *
+     * @param address the Bluetooth address of the advertiser
+     * @param device the advertiser, or null if the source has no {@link BluetoothDevice}
+     * @param rssi the signal strength in dBm it was received at
+     * @param scanRecordBytes the raw advertising payload
+     */
+    public void onAdvertisement(String address, BluetoothDevice device, int rssi,
+        byte[] scanRecordBytes);
+  }
+
+  /**
+   * Starts a scan session reporting to {@code listener}.
+   *
+   * @return true if the scan session started
+   */
+  public boolean start(Listener listener);
+
+  /**
+   * Stops the scan session reporting to {@code listener}.
+   */
+  public void stop(Listener listener);
+}
@@ -20,6 +20,7 @@
 // Changes:
 //   Use package Logger class.
 //   Replace ArrayMap (new in Android L) with HashMap
+//   Added fromParsedFields() to wrap records already parsed by the OS
 
 package org.uribeacon.scan.compat;
 
@@ -166,6 +167,17 @@ public final class ScanRecord {
         mBytes = bytes;
     }
 
+    /**
+     * Creates a {@link ScanRecord} from fields that have already been parsed from {@code bytes},
+     * without parsing them again.
+     */
+    static ScanRecord fromParsedFields(@Nullable List<ParcelUuid> serviceUuids,
+            SparseArray<byte[]> manufacturerData, Map<ParcelUuid, byte[]> serviceData,
+            int advertiseFlags, int txPowerLevel, @Nullable String localName, byte[] bytes) {
+        return new ScanRecord(serviceUuids, manufacturerData, serviceData, advertiseFlags,
+                txPowerLevel, localName, bytes);
+    }
+
     /**
      * Parse scan record bytes to {@link ScanRecord}.
      * <p>
@@ -17,7 +17,9 @@
 // THIS IS MODIFIED COPY OF THE "L" PLATFORM CLASS. BE CAREFUL ABOUT EDITS.
 // THIS CODE SHOULD FOLLOW ANDROID STYLE.
 //
-// Changes: Removed the reference to 'java.util.Objects'.
+// Changes:
+//   Removed the reference to 'java.util.Objects'.
+//   Added a package constructor taking a ScanRecordSupplier, to convert records lazily.
 
 package org.uribeacon.scan.compat;
 
@@ -31,6 +33,14 @@ import android.support.annotation.Nullable;
  * ScanResult for Bluetooth LE scan.
  */
 public final class ScanResult implements Parcelable {
+    /**
+     * Supplies the scan record of a result on first access.
+     */
+    interface ScanRecordSupplier {
+        @Nullable
+        ScanRecord get();
+    }
+
     // Remote bluetooth device.
     private BluetoothDevice mDevice;
 
@@ -38,6 +48,11 @@ public final class ScanResult implements Parcelable {
     @Nullable
     private ScanRecord mScanRecord;
 
+    // Supplies mScanRecord on first access; null once the record is known. Clearing it publishes
+    // mScanRecord to the threads that read it afterwards.
+    @Nullable
+    private volatile ScanRecordSupplier mScanRecordSupplier;
+
     // Received signal strength.
     private int mRssi;
 
@@ -60,6 +75,18 @@ public final class ScanResult implements Parcelable {
         mTimestampNanos = timestampNanos;
     }
 
+    /**
+     * Constructor of scan result whose scan record is obtained from {@code scanRecordSupplier}
+     * the first time it is needed.
+     */
+    ScanResult(BluetoothDevice device, ScanRecordSupplier scanRecordSupplier, int rssi,
+            long timestampNanos) {
+        mDevice = device;
+        mScanRecordSupplier = scanRecordSupplier;
+        mRssi = rssi;
+        mTimestampNanos = timestampNanos;
+    }
+
     private ScanResult(Parcel in) {
         readFromParcel(in);
     }
@@ -72,9 +99,10 @@ public final class ScanResult implements Parcelable {
         } else {
             dest.writeInt(0);
         }
-        if (mScanRecord != null) {
+        ScanRecord scanRecord = getScanRecord();
+        if (scanRecord != null) {
             dest.writeInt(1);
-            dest.writeByteArray(mScanRecord.getBytes());
+            dest.writeByteArray(scanRecord.getBytes());
         } else {
             dest.writeInt(0);
         }
@@ -110,6 +138,15 @@ public final class ScanResult implements Parcelable {
      */
     @Nullable
     public ScanRecord getScanRecord() {
+        if (mScanRecordSupplier != null) {
+            synchronized (this) {
+                ScanRecordSupplier supplier = mScanRecordSupplier;
+                if (supplier != null) {
+                    mScanRecord = supplier.get();
+                    mScanRecordSupplier = null;
+                }
+            }
+        }
         return mScanRecord;
     }
 
@@ -129,7 +166,7 @@ public final class ScanResult implements Parcelable {
 
     @Override
     public int hashCode() {
-        return Objects.hash(mDevice, mRssi, mScanRecord, mTimestampNanos);
+        return Objects.hash(mDevice, mRssi, getScanRecord(), mTimestampNanos);
     }
 
     @Override
@@ -142,14 +179,14 @@ public final class ScanResult implements Parcelable {
         }
         ScanResult other = (ScanResult) obj;
         return Objects.equals(mDevice, other.mDevice) && (mRssi == other.mRssi)
-                && Objects.equals(mScanRecord, other.mScanRecord)
+                && Objects.equals(getScanRecord(), other.getScanRecord())
                 && (mTimestampNanos == other.mTimestampNanos);
     }
 
     @Override
     public String toString() {
         return "ScanResult{" + "mDevice=" + mDevice + ", mScanRecord="
-                + Objects.toString(mScanRecord) + ", mRssi=" + mRssi + ", mTimestampNanos="
+                + Objects.toString(getScanRecord()) + ", mRssi=" + mRssi + ", mTimestampNanos="
                 + mTimestampNanos + '}';
     }
 
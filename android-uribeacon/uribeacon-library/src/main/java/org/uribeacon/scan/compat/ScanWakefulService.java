@@ -40,8 +40,10 @@ public class ScanWakefulService extends IntentService {
     try {
       BluetoothLeScannerCompat bleScanner =
           BluetoothLeScannerCompatProvider.getBluetoothLeScannerCompat(this);
-      if (bleScanner != null && bleScanner instanceof JbBluetoothLeScannerCompat) {
+      if (bleScanner instanceof JbBluetoothLeScannerCompat) {
         ((JbBluetoothLeScannerCompat) bleScanner).blockingScanCycle();
+      } else if (bleScanner instanceof LBluetoothLeScannerCompat) {
+        ((LBluetoothLeScannerCompat) bleScanner).blockingScanCycle();
       }
     } finally {
       ScanWakefulBroadcastReceiver.completeWakefulIntent(intent);
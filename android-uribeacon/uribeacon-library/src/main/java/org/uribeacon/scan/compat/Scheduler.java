@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+/**
+ * Schedules the scan cycles of the CPU-bound scanner and times its active windows.
+ * <p>
+ * The default implementation wakes the device with {@link android.app.AlarmManager} and waits on
+ * the scanner monitor in real time. Other implementations run scan cycles in virtual time.
+ */
+public interface Scheduler {
+
+  /**
+   * Runs {@code scanCycle} every {@code periodMillis}, starting immediately, and replaces any
+   * previous schedule. Unless {@code wakeup} is set, cycles falling while the device sleeps may be
+   * delayed until it wakes up for another reason.
+   * <p>
+   * The Android implementation ignores {@code scanCycle}: its alarm is delivered to
+   * {@link ScanWakefulService}, which runs the cycle of the provided scanner.
+   */
+  public void scheduleRepeating(long periodMillis, boolean wakeup, Runnable scanCycle);
+
+  /**
+   * Runs {@code scanCycle} once, {@code delayMillis} from now, and replaces any previous schedule.
+   * The cycle doesn't wake the device: it may be delayed until the device wakes up for another
+   * reason.
+   * <p>
+   * As for {@link #scheduleRepeating}, the Android implementation ignores {@code scanCycle}.
+   */
+  public void scheduleOnce(long delayMillis, Runnable scanCycle);
+
+  /**
+   * Cancels the schedule, if there is one.
+   */
+  public void cancel();
+
+  /**
+   * Waits for {@code millis} during an active scan window. The calling thread holds the monitor
+   * of {@code lock}, which must be released while waiting so that scan results can be delivered.
+   */
+  public void await(Object lock, long millis) throws InterruptedException;
+}
@@ -0,0 +1,886 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.compat;
+
+import org.uribeacon.scan.util.Clock;
+import org.uribeacon.scan.util.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multiplexes many compat scan clients onto a single native scan.
+ * <p>
+ * The native scan runs with the union of the client filters and the strongest of the client
+ * settings. Results are fanned out to the clients in software, applying each client's own
+ * filters and callback type. The native scan is only restarted when a client change alters its
+ * configuration.
+ * <p>
+ * Filters beyond the controller's offload capacity are widened by a {@link FilterOffloadPlanner}
+ * and the results they let through are refined on the host.
+ * <p>
+ * Clients with a report delay share a hardware batch scan when the controller supports it and
+ * no client needs real-time results. The report delay is capped so that the controller buffer
+ * doesn't overflow at the observed device density, and so that batched devices are reported
+ * before they would be lost. Otherwise batches are assembled in software and delivered once the
+ * client's report delay has passed, with the next result or scan cycle, or on a flush.
+ * <p>
+ * First match and lost callbacks are derived in software, like {@link JbBluetoothLeScannerCompat}
+ * does, rather than relying on controller support. A device is lost once it hasn't been sighted
+ * for {@link JbBluetoothLeScannerCompat#SCAN_LOST_CYCLES} scan cycles of the strongest client
+ * scan mode, or for the lost override. With custom scan timing the native scan is duty cycled,
+ * running only during the active part of each cycle. Both the lost checks and the duty cycle
+ * are driven by the {@link Scheduler}, through {@link #blockingScanCycle}. Only the duty cycle
+ * runs at the cycle rate and wakes the device. Otherwise the controller scans on its own and
+ * lost devices are also checked as results arrive, so a single alarm is set for when the next
+ * device or software batch is due, and it may wait for the device to wake up.
+ * <p>
+ * Results are delivered outside of the session lock, so clients may start or stop scans from
+ * their callbacks.
+ */
+class SharedScanSession {
+
+  /**
+   * The native scanner driven by the session.
+   */
+  interface NativeScanner {
+    /**
+     * Starts the native scan, replacing the running one if any.
+     *
+     * @param filters the filters of the native scan, or null to scan unfiltered
+     * @return true if the scan started
+     */
+    boolean start(List<ScanFilter> filters, ScanSettings settings);
+
+    /**
+     * Stops the native scan.
+     */
+    void stop();
+
+    /**
+     * Asks the controller to deliver its buffered batch results now.
+     */
+    void flush();
+  }
+
+  /**
+   * Results assumed to fit the controller's batch buffer, when its size is unknown.
+   */
+  static final int DEFAULT_BATCH_BUFFER_RESULTS = 256;
+
+  // Part of the batch buffer filled before the report is due, leaving room for bursts.
+  private static final double BATCH_BUFFER_FILL_RATIO = 0.75;
+
+  // Advertising rate assumed for every device, when estimating the batch buffer fill rate.
+  private static final double ADVERTISEMENTS_PER_SECOND = 10;
+
+  // Below this report delay batching saves next to nothing.
+  private static final long MIN_BATCH_REPORT_DELAY_MILLIS = 1000;
+
+  // Part of the lost timeout a hardware batch may take to be reported, leaving room for late
+  // reports.
+  private static final double LOST_TIMEOUT_BATCH_RATIO = 0.75;
+
+  // Flush requests closer together than this share a single controller flush.
+  /* @VisibleForTesting */ static final long MIN_FLUSH_INTERVAL_MILLIS = 1000;
+
+  private static final long NO_CHECK = Long.MAX_VALUE;
+
+  /**
+   * A compat client of the shared scan.
+   */
+  private static class ScanClient {
+    final List<ScanFilter> filters;
+    // Only the scan mode changes once registered, see updateClient.
+    volatile ScanSettings settings;
+    final ScanCallback callback;
+    final Set<String> addressesSeen = new HashSet<String>();
+    // Batch being assembled in software, and when its first result arrived.
+    List<ScanResult> pendingBatch = new ArrayList<ScanResult>();
+    long pendingBatchStartMillis;
+
+    ScanClient(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+      this.filters = (filters == null || filters.isEmpty()) ? null : filters;
+      this.settings = settings;
+      this.callback = callback;
+    }
+
+    boolean wants(int callbackTypeBit) {
+      return (settings.getCallbackType() & callbackTypeBit) != 0;
+    }
+
+    boolean isBatch() {
+      return settings.getReportDelayMillis() > 0;
+    }
+
+    List<ScanResult> takePendingBatch() {
+      List<ScanResult> batch = pendingBatch;
+      pendingBatch = new ArrayList<ScanResult>();
+      return batch;
+    }
+  }
+
+  private final NativeScanner nativeScanner;
+  private final Scheduler scheduler;
+  private final Clock clock;
+  private final boolean hardwareBatching;
+  private final FilterOffloadPlanner planner = new FilterOffloadPlanner();
+  private final Map<ScanCallback, ScanClient> clients =
+      new LinkedHashMap<ScanCallback, ScanClient>();
+
+  // Configuration of the running native scan; nativeSettings is null when it is stopped.
+  private List<ScanFilter> nativeFilters;
+  private ScanSettings nativeSettings;
+  private int nativeStartCount;
+  private int offloadedFilterCount;
+  private int widenedFilterCount;
+  private int hostRejectCount;
+
+  private int batchBufferResults = DEFAULT_BATCH_BUFFER_RESULTS;
+  // Distinct devices in the last hardware batch, setting the expected buffer fill rate.
+  private int batchDeviceEstimate = 1;
+  // Whether the batch report delay is to be replanned on the next scan cycle.
+  private boolean batchDelayOutdated;
+  private long lastNativeFlushMillis = Long.MIN_VALUE / 2;
+
+  private final PresenceTracker presence = new PresenceTracker();
+  private long scanLostOverrideMillis = -1;
+  // Custom scan timing; the native scan is duty cycled when both are positive.
+  private int customActiveMillis = -1;
+  private int customIdleMillis = -1;
+  // Whether the native scan is stopped for the idle part of a duty cycle.
+  private boolean idleWindow;
+  // Period of the repeating duty cycle, or 0.
+  private long scheduledPeriodMillis;
+  // Due time of the pending one-shot check when not duty cycling, or NO_CHECK.
+  private long scheduledCheckMillis = NO_CHECK;
+
+  private final Runnable scanCycle = new Runnable() {
+    @Override
+    public void run() {
+      blockingScanCycle();
+    }
+  };
+
+  /**
+   * @param scheduler the scheduler running the scan cycles, or null to check for lost devices
+   *        only as results arrive and to ignore custom scan timing
+   * @param hardwareBatching whether the controller supports batch scans
+   */
+  SharedScanSession(NativeScanner nativeScanner, Scheduler scheduler, Clock clock,
+      boolean hardwareBatching) {
+    this.nativeScanner = nativeScanner;
+    this.scheduler = scheduler;
+    this.clock = clock;
+    this.hardwareBatching = hardwareBatching;
+  }
+
+  /**
+   * Adds or replaces the client registered with {@code callback}.
+   *
+   * @return true if the native scan is running with a configuration covering the client
+   */
+  synchronized boolean addClient(List<ScanFilter> filters, ScanSettings settings,
+      ScanCallback callback) {
+    clients.put(callback, new ScanClient(filters, settings, callback));
+    if (!reconfigure()) {
+      clients.remove(callback);
+      reconfigure();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Removes the client registered with {@code callback}, stopping the native scan if it was the
+   * last one.
+   */
+  synchronized void removeClient(ScanCallback callback) {
+    if (clients.remove(callback) != null) {
+      if (clients.isEmpty()) {
+        presence.clear();
+      }
+      reconfigure();
+    }
+  }
+
+  /**
+   * Changes the scan mode of the client registered with {@code callback}, keeping the devices
+   * it was told about. The native scan is restarted only if the merged settings change.
+   *
+   * @return false if there is no such client, if the settings differ in more than their scan
+   *         mode, or if the native scan can't be restarted
+   */
+  synchronized boolean updateClient(ScanCallback callback, ScanSettings settings) {
+    ScanClient client = clients.get(callback);
+    if (client == null
+        || !BluetoothLeScannerCompat.differOnlyInScanMode(client.settings, settings)) {
+      return false;
+    }
+    ScanSettings previous = client.settings;
+    client.settings = settings;
+    if (!reconfigure()) {
+      client.settings = previous;
+      reconfigure();
+      return false;
+    }
+    return true;
+  }
+
+  synchronized int getClientCount() {
+    return clients.size();
+  }
+
+  /**
+   * Sets the number of filters the controller can hold, and replans the native scan.
+   */
+  synchronized void setMaxOffloadedFilters(int maxOffloadedFilters) {
+    planner.setMaxOffloadedFilters(maxOffloadedFilters);
+    reconfigure();
+  }
+
+  /**
+   * Sets the number of results the controller can buffer during a batch scan, and replans the
+   * native scan.
+   */
+  synchronized void setBatchBufferResults(int batchBufferResults) {
+    this.batchBufferResults = batchBufferResults;
+    reconfigure();
+  }
+
+  /**
+   * Sets custom scan timing, duty cycling the native scan. Timing with a non-positive active or
+   * idle time scans continuously.
+   */
+  synchronized void setCustomScanTiming(int activeMillis, int idleMillis) {
+    customActiveMillis = activeMillis;
+    customIdleMillis = idleMillis;
+    // The next scan cycle starts the active window.
+    idleWindow = isDutyCycling();
+    reconfigure();
+  }
+
+  /**
+   * Sets the time after which a device that isn't sighted is lost, or a negative value to use
+   * {@link JbBluetoothLeScannerCompat#SCAN_LOST_CYCLES} scan cycles.
+   */
+  synchronized void setScanLostOverride(long scanLostOverrideMillis) {
+    this.scanLostOverrideMillis = scanLostOverrideMillis;
+  }
+
+  /**
+   * Runs a scan cycle: the active window of the duty cycle if custom timing is set, then the
+   * check for lost devices. Called by the {@link Scheduler}, on a thread that may block.
+   */
+  void blockingScanCycle() {
+    synchronized (this) {
+      // The one-shot alarm has fired.
+      scheduledCheckMillis = NO_CHECK;
+      if (batchDelayOutdated) {
+        batchDelayOutdated = false;
+        reconfigure();
+      }
+      if (isDutyCycling() && !clients.isEmpty()) {
+        idleWindow = false;
+        reconfigure();
+        try {
+          // Waiting releases the lock, so results keep flowing.
+          scheduler.await(this, customActiveMillis);
+        } catch (InterruptedException e) {
+          Logger.logError("Exception in ScanCycle Sleep", e);
+          Thread.currentThread().interrupt();
+        } finally {
+          idleWindow = isDutyCycling();
+          reconfigure();
+        }
+      }
+    }
+    deliverDueBatches();
+    deliverLost(expireLost());
+    synchronized (this) {
+      updateSchedule();
+    }
+  }
+
+  /**
+   * Delivers the batch results buffered for {@code callback} now. The controller is flushed
+   * too, at most once per {@link #MIN_FLUSH_INTERVAL_MILLIS}, delivering its buffer to all batch
+   * clients.
+   */
+  void flush(ScanCallback callback) {
+    ScanClient client;
+    List<ScanResult> pending;
+    boolean flushNative;
+    synchronized (this) {
+      client = clients.get(callback);
+      if (client == null) {
+        return;
+      }
+      pending = client.takePendingBatch();
+      long nowMillis = nowMillis();
+      flushNative = isNativeBatching()
+          && nowMillis - lastNativeFlushMillis >= MIN_FLUSH_INTERVAL_MILLIS;
+      if (flushNative) {
+        lastNativeFlushMillis = nowMillis;
+      }
+    }
+    if (!pending.isEmpty()) {
+      deliverBatch(client, pending);
+    }
+    if (flushNative) {
+      nativeScanner.flush();
+    }
+  }
+
+  /**
+   * Returns the number of client filters the running native scan offloads unchanged.
+   */
+  synchronized int getOffloadedFilterCount() {
+    return offloadedFilterCount;
+  }
+
+  /**
+   * Returns the number of client filters the running native scan replaces with coarser ones.
+   */
+  synchronized int getWidenedFilterCount() {
+    return widenedFilterCount;
+  }
+
+  /**
+   * Returns the number of native results matching no client, since the session was created.
+   */
+  synchronized int getHostRejectCount() {
+    return hostRejectCount;
+  }
+
+  /**
+   * Returns the filters of the running native scan, or null if it is unfiltered.
+   */
+  /* @VisibleForTesting */ synchronized List<ScanFilter> getNativeFilters() {
+    return nativeFilters;
+  }
+
+  /**
+   * Returns the settings of the running native scan, or null if it is stopped.
+   */
+  /* @VisibleForTesting */ synchronized ScanSettings getNativeSettings() {
+    return nativeSettings;
+  }
+
+  /**
+   * Returns the number of times the native scan was (re)started.
+   */
+  /* @VisibleForTesting */ synchronized int getNativeStartCount() {
+    return nativeStartCount;
+  }
+
+  /**
+   * Applies the configuration required by the current clients to the native scan and the scan
+   * cycle schedule.
+   *
+   * @return false if the native scan failed to start
+   */
+  private boolean reconfigure() {
+    boolean started = applyNativeScan();
+    updateSchedule();
+    return started;
+  }
+
+  /**
+   * Starts, stops or restarts the native scan as the clients and the duty cycle require. A
+   * running scan is only restarted if its configuration changed.
+   *
+   * @return false if the native scan failed to start
+   */
+  private boolean applyNativeScan() {
+    if (clients.isEmpty() || idleWindow) {
+      if (nativeSettings != null) {
+        nativeScanner.stop();
+        nativeSettings = null;
+        nativeFilters = null;
+      }
+      return true;
+    }
+    FilterOffloadPlanner.Plan plan = planner.plan(mergeFilters());
+    List<ScanFilter> filters = plan.filters;
+    ScanSettings settings = mergeSettings();
+    if (nativeSettings != null && sameSettings(settings, nativeSettings)
+        && Objects.equals(filters, nativeFilters)) {
+      return true;
+    }
+    if (nativeSettings != null) {
+      if (isNativeBatching()) {
+        // Don't lose what the controller buffered so far.
+        nativeScanner.flush();
+      }
+      nativeScanner.stop();
+    }
+    nativeStartCount++;
+    if (!nativeScanner.start(filters, settings)) {
+      nativeSettings = null;
+      nativeFilters = null;
+      return false;
+    }
+    nativeSettings = settings;
+    nativeFilters = filters;
+    offloadedFilterCount = plan.offloadedCount;
+    widenedFilterCount = plan.widenedCount;
+    if (plan.widenedCount > 0) {
+      Logger.logInfo("Offloading " + plan.offloadedCount + " scan filters unchanged, widening "
+          + plan.widenedCount + (filters == null ? " to an unfiltered scan" : ""));
+    }
+    return true;
+  }
+
+  /**
+   * Schedules the scan cycles at the custom scan timing, waking the device. Otherwise sets a
+   * single alarm for the next check, unless one is pending already: a check that runs early
+   * sets the alarm again for what is due then. Cancels the scan cycles when there are no clients.
+   */
+  private void updateSchedule() {
+    if (scheduler == null) {
+      return;
+    }
+    if (clients.isEmpty()) {
+      if (scheduledPeriodMillis != 0 || scheduledCheckMillis != NO_CHECK) {
+        scheduledPeriodMillis = 0;
+        scheduledCheckMillis = NO_CHECK;
+        scheduler.cancel();
+      }
+      return;
+    }
+    if (isDutyCycling()) {
+      long periodMillis = getScanCycleMillis();
+      if (periodMillis != scheduledPeriodMillis) {
+        scheduledPeriodMillis = periodMillis;
+        scheduledCheckMillis = NO_CHECK;
+        scheduler.scheduleRepeating(periodMillis, true /* wakeup */, scanCycle);
+      }
+      return;
+    }
+    long checkMillis = getNextCheckMillis();
+    if (scheduledPeriodMillis == 0 && checkMillis >= scheduledCheckMillis) {
+      return;
+    }
+    if (checkMillis == NO_CHECK) {
+      // Leaving the duty cycle with nothing to check.
+      scheduledPeriodMillis = 0;
+      scheduler.cancel();
+      return;
+    }
+    scheduledPeriodMillis = 0;
+    scheduledCheckMillis = checkMillis;
+    scheduler.scheduleOnce(Math.max(0, checkMillis - nowMillis()), scanCycle);
+  }
+
+  /**
+   * Returns when the next present device would be lost or the next software batch is due, or
+   * {@link #NO_CHECK}. A batch delay to replan is due now.
+   */
+  private long getNextCheckMillis() {
+    if (batchDelayOutdated) {
+      return nowMillis();
+    }
+    long checkMillis = presence.getNextExpiryMillis(getLostTimeoutMillis());
+    for (ScanClient client : clients.values()) {
+      if (!client.pendingBatch.isEmpty()) {
+        checkMillis = Math.min(checkMillis, client.pendingBatchStartMillis
+            + Math.max(MIN_BATCH_REPORT_DELAY_MILLIS, client.settings.getReportDelayMillis()));
+      }
+    }
+    return checkMillis;
+  }
+
+  private boolean isDutyCycling() {
+    return scheduler != null && customActiveMillis > 0 && customIdleMillis > 0;
+  }
+
+  /**
+   * Returns the length of a scan cycle, as the JB scanner would run it for the same clients.
+   */
+  private long getScanCycleMillis() {
+    if (isDutyCycling()) {
+      return customActiveMillis + customIdleMillis;
+    }
+    return JbBluetoothLeScannerCompat.getScanCycleMillisForMode(getMaxScanMode());
+  }
+
+  /* @VisibleForTesting */ synchronized long getLostTimeoutMillis() {
+    if (scanLostOverrideMillis >= 0) {
+      return scanLostOverrideMillis;
+    }
+    return JbBluetoothLeScannerCompat.SCAN_LOST_CYCLES * getScanCycleMillis();
+  }
+
+  private int getMaxScanMode() {
+    int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+    for (ScanClient client : clients.values()) {
+      scanMode = Math.max(scanMode, client.settings.getScanMode());
+    }
+    return scanMode;
+  }
+
+  /**
+   * Returns the union of the client filters, or null if any client scans unfiltered.
+   */
+  private List<ScanFilter> mergeFilters() {
+    Set<ScanFilter> union = new LinkedHashSet<ScanFilter>();
+    for (ScanClient client : clients.values()) {
+      if (client.filters == null) {
+        return null;
+      }
+      union.addAll(client.filters);
+    }
+    return new ArrayList<ScanFilter>(union);
+  }
+
+  /**
+   * Returns settings at least as strong as those of every client: the highest duty cycle, the
+   * shortest report delay and full results if any client needs them. The native scan reports
+   * all matches, from which first match and lost callbacks are derived. The scan is real-time
+   * unless every client batches and the controller supports it.
+   */
+  private ScanSettings mergeSettings() {
+    int scanMode = getMaxScanMode();
+    int scanResultType = ScanSettings.SCAN_RESULT_TYPE_ABBREVIATED;
+    long reportDelayMillis = Long.MAX_VALUE;
+    for (ScanClient client : clients.values()) {
+      ScanSettings settings = client.settings;
+      scanResultType = Math.min(scanResultType, settings.getScanResultType());
+      reportDelayMillis = Math.min(reportDelayMillis, settings.getReportDelayMillis());
+    }
+    if (!hardwareBatching || reportDelayMillis == 0) {
+      reportDelayMillis = 0;
+    } else {
+      reportDelayMillis = Math.min(reportDelayMillis, getMaxBatchReportDelayMillis(scanMode));
+    }
+    return new ScanSettings.Builder()
+        .setScanMode(scanMode)
+        .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+        .setScanResultType(scanResultType)
+        .setReportDelayMillis(reportDelayMillis)
+        .build();
+  }
+
+  /**
+   * Returns the longest report delay after which the controller buffer is still unlikely to
+   * have overflowed, given the device density seen in the last batch. The delay is also kept
+   * below the lost timeout, so that devices in the batch are reported before they are lost.
+   */
+  private long getMaxBatchReportDelayMillis(int scanMode) {
+    double resultsPerSecond =
+        batchDeviceEstimate * ADVERTISEMENTS_PER_SECOND * getDutyCycle(scanMode);
+    long fillMillis = (long) (batchBufferResults * BATCH_BUFFER_FILL_RATIO * 1000
+        / resultsPerSecond);
+    long lostMillis = (long) (getLostTimeoutMillis() * LOST_TIMEOUT_BATCH_RATIO);
+    return Math.max(MIN_BATCH_REPORT_DELAY_MILLIS, Math.min(fillMillis, lostMillis));
+  }
+
+  // Approximate share of time the controller listens in each scan mode.
+  private static double getDutyCycle(int scanMode) {
+    switch (scanMode) {
+      case ScanSettings.SCAN_MODE_LOW_LATENCY:
+        return 1.0;
+      case ScanSettings.SCAN_MODE_BALANCED:
+        return 0.25;
+      default:
+        return 0.1;
+    }
+  }
+
+  private boolean isNativeBatching() {
+    return nativeSettings != null && nativeSettings.getReportDelayMillis() > 0;
+  }
+
+  private long nowMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(clock.elapsedRealtimeNanos());
+  }
+
+  private static boolean sameSettings(ScanSettings a, ScanSettings b) {
+    return a.getScanMode() == b.getScanMode()
+        && a.getCallbackType() == b.getCallbackType()
+        && a.getScanResultType() == b.getScanResultType()
+        && a.getReportDelayMillis() == b.getReportDelayMillis();
+  }
+
+  /////////////////////////////////////////////////////////////////////////////
+  // Fan out
+
+  private synchronized List<ScanClient> getClients() {
+    return new ArrayList<ScanClient>(clients.values());
+  }
+
+  /**
+   * Delivers a native result to the matching clients, with the callback type each client asked
+   * for. Batch clients collect the result and receive their batch once their report delay has
+   * passed.
+   */
+  void onScanResult(int callbackType, ScanResult result) {
+    if (callbackType == ScanSettings.CALLBACK_TYPE_MATCH_LOST) {
+      // Lost devices are detected in software.
+      return;
+    }
+    onSighting(result);
+    boolean matched = false;
+    for (ScanClient client : getClients()) {
+      if (!matches(client, result)) {
+        continue;
+      }
+      matched = true;
+      if (client.isBatch()) {
+        addToPendingBatch(client, result);
+      } else {
+        deliverResult(client, result);
+      }
+    }
+    if (!matched) {
+      synchronized (this) {
+        hostRejectCount++;
+      }
+    }
+    deliverLost(expireLost());
+  }
+
+  /**
+   * Delivers the matching part of a native batch to each client, along with any results
+   * already collected for it in software.
+   */
+  void onBatchScanResults(List<ScanResult> results) {
+    for (ScanResult result : results) {
+      onSighting(result);
+    }
+    updateBatchDeviceEstimate(results);
+    boolean[] matched = new boolean[results.size()];
+    for (ScanClient client : getClients()) {
+      List<ScanResult> clientResults;
+      synchronized (this) {
+        clientResults = client.takePendingBatch();
+      }
+      for (int i = 0; i < matched.length; i++) {
+        ScanResult result = results.get(i);
+        if (matches(client, result)) {
+          matched[i] = true;
+          if (client.isBatch()) {
+            clientResults.add(result);
+          } else {
+            // The client joined after the batch was buffered.
+            deliverResult(client, result);
+          }
+        }
+      }
+      if (!clientResults.isEmpty()) {
+        deliverBatch(client, clientResults);
+      }
+    }
+    int rejects = 0;
+    for (boolean resultMatched : matched) {
+      if (!resultMatched) {
+        rejects++;
+      }
+    }
+    synchronized (this) {
+      hostRejectCount += rejects;
+    }
+    deliverLost(expireLost());
+  }
+
+  /**
+   * Tracks the device density seen by the hardware batch scan, shortening the report delay
+   * before the controller buffer overflows and lengthening it when the density drops. The native
+   * scan is restarted with the new delay on the next scan cycle, rather than from the thread
+   * reporting its results.
+   */
+  private synchronized void updateBatchDeviceEstimate(List<ScanResult> results) {
+    Set<String> addresses = new HashSet<String>();
+    for (ScanResult result : results) {
+      addresses.add(result.getDevice().getAddress());
+    }
+    batchDeviceEstimate = Math.max(1, addresses.size());
+    if (!isNativeBatching()) {
+      return;
+    }
+    long nativeDelayMillis = nativeSettings.getReportDelayMillis();
+    long delayMillis = mergeSettings().getReportDelayMillis();
+    if (delayMillis < nativeDelayMillis || delayMillis >= 2 * nativeDelayMillis) {
+      if (scheduler == null) {
+        reconfigure();
+      } else {
+        batchDelayOutdated = true;
+        updateSchedule();
+      }
+    }
+  }
+
+  private void addToPendingBatch(ScanClient client, ScanResult result) {
+    List<ScanResult> batch;
+    synchronized (this) {
+      boolean started = client.pendingBatch.isEmpty();
+      if (started) {
+        client.pendingBatchStartMillis = nowMillis();
+      }
+      client.pendingBatch.add(result);
+      batch = takeBatchIfDue(client);
+      if (started && batch == null) {
+        updateSchedule();
+      }
+    }
+    if (batch != null) {
+      deliverBatch(client, batch);
+    }
+  }
+
+  /**
+   * Delivers the software batches whose report delay has passed.
+   */
+  private void deliverDueBatches() {
+    for (ScanClient client : getClients()) {
+      List<ScanResult> batch;
+      synchronized (this) {
+        batch = takeBatchIfDue(client);
+      }
+      if (batch != null) {
+        deliverBatch(client, batch);
+      }
+    }
+  }
+
+  /**
+   * Returns the software batch of {@code client} if its report delay has passed, or null.
+   */
+  private List<ScanResult> takeBatchIfDue(ScanClient client) {
+    if (client.pendingBatch.isEmpty()
+        || nowMillis() - client.pendingBatchStartMillis < client.settings.getReportDelayMillis()) {
+      return null;
+    }
+    return client.takePendingBatch();
+  }
+
+  private synchronized void onSighting(ScanResult result) {
+    if (presence.onSighting(result.getDevice().getAddress(), result, nowMillis())) {
+      // Devices sighted again only expire later than the pending check.
+      updateSchedule();
+    }
+  }
+
+  private synchronized List<ScanResult> expireLost() {
+    return presence.expire(nowMillis(), getLostTimeoutMillis());
+  }
+
+  /**
+   * Delivers a result to a real-time client: a first match if the client hasn't seen the device
+   * since it was last lost, an update otherwise.
+   */
+  private void deliverResult(ScanClient client, ScanResult result) {
+    int clientCallbackType = 0;
+    synchronized (this) {
+      if (client.addressesSeen.add(result.getDevice().getAddress())) {
+        if (client.wants(ScanSettings.CALLBACK_TYPE_FIRST_MATCH
+            | ScanSettings.CALLBACK_TYPE_ALL_MATCHES)) {
+          clientCallbackType = ScanSettings.CALLBACK_TYPE_FIRST_MATCH;
+        }
+      } else if (client.wants(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)) {
+        clientCallbackType = ScanSettings.CALLBACK_TYPE_ALL_MATCHES;
+      }
+    }
+    if (clientCallbackType != 0) {
+      // Catch any exceptions and log them but continue processing other listeners.
+      try {
+        client.callback.onScanResult(clientCallbackType, result);
+      } catch (Exception e) {
+        Logger.logError("Failure while handling scan result", e);
+      }
+    }
+  }
+
+  /**
+   * Tells the real-time clients that saw the devices of {@code lostResults} that they are lost.
+   */
+  private void deliverLost(List<ScanResult> lostResults) {
+    if (lostResults.isEmpty()) {
+      return;
+    }
+    List<ScanClient> snapshot = getClients();
+    for (ScanResult result : lostResults) {
+      String address = result.getDevice().getAddress();
+      for (ScanClient client : snapshot) {
+        boolean lost;
+        synchronized (this) {
+          lost = client.addressesSeen.remove(address);
+        }
+        if (lost && client.wants(ScanSettings.CALLBACK_TYPE_MATCH_LOST
+            | ScanSettings.CALLBACK_TYPE_ALL_MATCHES)) {
+          // Catch any exceptions and log them but continue processing other scan results.
+          try {
+            client.callback.onScanResult(ScanSettings.CALLBACK_TYPE_MATCH_LOST, result);
+          } catch (Exception e) {
+            Logger.logError("Failure while sending 'lost' scan result to listener", e);
+          }
+        }
+      }
+    }
+  }
+
+  private static void deliverBatch(ScanClient client, List<ScanResult> batch) {
+    try {
+      client.callback.onBatchScanResults(Collections.unmodifiableList(batch));
+    } catch (Exception e) {
+      Logger.logError("Failure while handling batch scan results", e);
+    }
+  }
+
+  /**
+   * Reports a native scan failure to every client.
+   */
+  void onScanFailed(int errorCode) {
+    synchronized (this) {
+      nativeSettings = null;
+      nativeFilters = null;
+    }
+    for (ScanClient client : getClients()) {
+      client.callback.onScanFailed(errorCode);
+    }
+  }
+
+  /**
+   * Returns true if the result matches the client filters. Results of a native scan that uses
+   * exactly the client filters need no further check.
+   */
+  private boolean matches(ScanClient client, ScanResult result) {
+    List<ScanFilter> filters = client.filters;
+    if (filters == null) {
+      return true;
+    }
+    synchronized (this) {
+      if (filters.equals(nativeFilters)) {
+        return true;
+      }
+    }
+    for (ScanFilter filter : filters) {
+      if (filter.matches(result)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
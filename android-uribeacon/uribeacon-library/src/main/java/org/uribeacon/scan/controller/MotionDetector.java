@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.controller;
+
+/**
+ * Tells motion from stillness from the readings of a motion sensor, calling a
+ * {@link MotionManager.MotionListener} on each transition. Not thread safe: the
+ * {@link MotionManager} calls it on its sensor thread.
+ */
+class MotionDetector {
+  private final MotionManager.MotionListener mListener;
+  // Time at which the device is considered still, or Long.MAX_VALUE while it is
+  private long mIdleTimestampNanos = Long.MAX_VALUE;
+
+  MotionDetector(MotionManager.MotionListener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Reports movement, which lasts until {@code idleNanos} pass without further movement.
+   */
+  void onMovement(long timestampNanos, long idleNanos) {
+    // Only send event if state transition to MOTION
+    if (mIdleTimestampNanos == Long.MAX_VALUE) {
+      mListener.onMotion();
+    }
+    mIdleTimestampNanos = timestampNanos + idleNanos;
+  }
+
+  /**
+   * Reports that there was no movement, ending the motion once its idle time has passed.
+   */
+  void onStill(long timestampNanos) {
+    // Only send event if state transition to MOTION_TIMEOUT
+    if (timestampNanos >= mIdleTimestampNanos) {
+      mIdleTimestampNanos = Long.MAX_VALUE;
+      mListener.onMotionTimeout();
+    }
+  }
+
+  /**
+   * Reports an accelerometer reading, in m/s^2. Because this implements a retriggerable
+   * monostable, every reading is tested.
+   */
+  void onAcceleration(float accX, float accY, float accZ, long timestampNanos) {
+    float vector = accX * accX + accY * accY + accZ * accZ;
+    // Measure if acceleration changes by +/- 0.4g where g ~= 9.8 m/s^2
+    // Low acc(-0.4) = 9.4 and (9.4)^2 ~= 88.36
+    // High acc(+0.4) = 10.2 and (10.2)^2 ~= 104.04
+    if ((vector < 88) || (vector > 104)) {
+      // Leave Motion flagged for 10 seconds before timeout
+      onMovement(timestampNanos, MotionManager.IDLE_TIME_NANO);
+    } else {
+      onStill(timestampNanos);
+    }
+  }
+
+  /**
+   * Returns the time at which the device is considered still, or Long.MAX_VALUE while it is.
+   */
+  long getIdleTimestampNanos() {
+    return mIdleTimestampNanos;
+  }
+
+  boolean isMoving() {
+    return mIdleTimestampNanos != Long.MAX_VALUE;
+  }
+}
@@ -16,23 +16,44 @@
 
 package org.uribeacon.scan.controller;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.util.concurrent.TimeUnit;
 
 /**
- * Class MotionManager - an interface to the Android ACC sensor X Y Z, which 
- * provides a Significant Motion Detection and Timeout interface
+ * Class MotionManager - an interface to the Android motion sensors, which
+ * provides a Significant Motion Detection and Timeout interface.
+ * <p>
+ * The lowest power {@link Backend} available on the device is used unless one is given, and
+ * sensor events are processed on a background thread, from which the {@link MotionListener} is
+ * called. Significant motion, the lowest power backend, reports motion after several seconds of
+ * movement and times it out after {@link #SIGNIFICANT_MOTION_IDLE_TIME_MILLIS} rather than
+ * {@link #IDLE_TIME_MILLIS}; pass {@link Backend#ACCELEROMETER} for the quicker accelerometer
+ * detection used before backends were selected.
  */
 public class MotionManager implements SensorEventListener {
   private static final String TAG = MotionManager.class.getSimpleName();
   static final long IDLE_TIME_NANO = TimeUnit.SECONDS.toNanos(10);
+  static final long IDLE_TIME_MILLIS = TimeUnit.NANOSECONDS.toMillis(IDLE_TIME_NANO);
+  // Significant motion fires again only after several more seconds of movement, so it is
+  // given longer before the device is considered still.
+  static final long SIGNIFICANT_MOTION_IDLE_TIME_MILLIS = TimeUnit.SECONDS.toMillis(60);
+  // Time the sensor hub may buffer accelerometer events while the application processor sleeps.
+  static final int MAX_REPORT_LATENCY_US = (int) TimeUnit.SECONDS.toMicros(5);
 
   /** 
    * Interface for Motion Listener.
@@ -42,74 +63,290 @@ public class MotionManager implements SensorEventListener {
     void onMotionTimeout();
   }
 
+  /**
+   * Sensors motion can be detected with, from the lowest power to the highest.
+   */
+  public enum Backend {
+    /** One-shot wake-up sensor, armed again after each trigger. Slowest to report motion. */
+    SIGNIFICANT_MOTION,
+    /** Step detector, typically computed on the sensor hub. */
+    STEP_DETECTOR,
+    /** Accelerometer with its events buffered by the sensor hub. */
+    BATCHED_ACCELEROMETER,
+    /** Accelerometer delivering every event. */
+    ACCELEROMETER
+  }
+
+  /**
+   * Runs the motion timeout on the sensor thread, in elapsed realtime.
+   */
+  interface TaskRunner {
+    long elapsedRealtimeNanos();
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    void removeCallbacks(Runnable task);
+  }
+
   private final SensorManager mSensorManager;
-  private final Sensor mAccelerometer;
-  private MotionListener mMotionListener;
+  private final TaskRunner mTaskRunner;
+  private final Backend mBackend;
+  private final Sensor mSensor;
+  private volatile MotionListener mMotionListener;
+  private HandlerThread mThread;
+  private volatile Handler mHandler;
+
+  // Created on register, and then used on the sensor thread
+  private volatile MotionDetector mDetector;
+
+  private final TriggerEventListener mTriggerListener = new TriggerEventListener() {
+    @Override
+    public void onTrigger(TriggerEvent event) {
+      // Trigger events are delivered on the main thread.
+      Handler handler = mHandler;
+      if (handler != null) {
+        handler.post(mSignificantMotion);
+      }
+    }
+  };
+
+  private final Runnable mSignificantMotion = new Runnable() {
+    @Override
+    public void run() {
+      if (mMotionListener != null) {
+        requestTrigger();
+        onMovement(SIGNIFICANT_MOTION_IDLE_TIME_MILLIS);
+      }
+    }
+  };
+
+  private final Runnable mMotionTimeout = new Runnable() {
+    @Override
+    public void run() {
+      if (mMotionListener == null) {
+        return;
+      }
+      MotionDetector detector = mDetector;
+      detector.onStill(mTaskRunner.elapsedRealtimeNanos());
+      if (detector.isMoving()) {
+        // The handler runs on uptime, which may fire a little before the idle deadline in
+        // elapsed realtime: wait for the rest.
+        long remainingNanos = detector.getIdleTimestampNanos() - mTaskRunner.elapsedRealtimeNanos();
+        mTaskRunner.postDelayed(this, TimeUnit.NANOSECONDS.toMillis(remainingNanos) + 1);
+      }
+    }
+  };
+
+  private final TaskRunner mHandlerTaskRunner = new TaskRunner() {
+    @Override
+    public long elapsedRealtimeNanos() {
+      return SystemClock.elapsedRealtimeNanos();
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+      Handler handler = mHandler;
+      if (handler != null) {
+        handler.postDelayed(task, delayMillis);
+      }
+    }
 
-  private long mStopTimestamp = Long.MAX_VALUE;
+    @Override
+    public void removeCallbacks(Runnable task) {
+      Handler handler = mHandler;
+      if (handler != null) {
+        handler.removeCallbacks(task);
+      }
+    }
+  };
 
+  /**
+   * Creates a MotionManager using the lowest power backend available on the device.
+   */
   public MotionManager(Context context) {
-    Log.i(TAG, "MotionManager Created");
-    mSensorManager =
-        (SensorManager) context.getApplicationContext().getSystemService(Activity.SENSOR_SERVICE);
-    mAccelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    this(getSensorManager(context), null, null);
+  }
+
+  /**
+   * Creates a MotionManager using the given backend.
+   *
+   * @throws IllegalArgumentException if the backend isn't supported on this version of Android,
+   *         or the device doesn't have its sensor
+   */
+  public MotionManager(Context context, Backend backend) {
+    this(getSensorManager(context), backend, null);
+  }
+
+  /**
+   * @VisibleForTesting
+   */
+  MotionManager(Context context, Backend backend, TaskRunner taskRunner) {
+    this(getSensorManager(context), backend, taskRunner);
+  }
+
+  private MotionManager(SensorManager sensorManager, Backend backend, TaskRunner taskRunner) {
+    if (backend != null && !isSupported(backend, Build.VERSION.SDK_INT)) {
+      throw new IllegalArgumentException(backend + " requires KitKat");
+    }
+    mSensorManager = sensorManager;
+    mTaskRunner = (taskRunner != null) ? taskRunner : mHandlerTaskRunner;
+    mBackend = (backend != null) ? backend : selectBackend(sensorManager);
+    mSensor = mSensorManager.getDefaultSensor(getSensorType(mBackend));
+    if (backend != null && mSensor == null) {
+      throw new IllegalArgumentException("No sensor for " + backend);
+    }
+    Log.i(TAG, "MotionManager Created, backend=" + mBackend);
+  }
+
+  private static SensorManager getSensorManager(Context context) {
+    return (SensorManager) context.getApplicationContext().getSystemService(
+        Activity.SENSOR_SERVICE);
+  }
+
+  /**
+   * Returns the lowest power backend the device has the sensor for.
+   */
+  private static Backend selectBackend(SensorManager sensorManager) {
+    boolean kitKat = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    return selectBackend(
+        sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION) != null,
+        kitKat && sensorManager.getDefaultSensor(Sensor.TYPE_STEP_DETECTOR) != null,
+        kitKat && hasBatchedAccelerometer(sensorManager));
+  }
+
+  /**
+   * Returns the lowest power backend among those available.
+   */
+  static Backend selectBackend(boolean hasSignificantMotion, boolean hasStepDetector,
+      boolean hasBatchedAccelerometer) {
+    if (hasSignificantMotion) {
+      return Backend.SIGNIFICANT_MOTION;
+    }
+    if (hasStepDetector) {
+      return Backend.STEP_DETECTOR;
+    }
+    if (hasBatchedAccelerometer) {
+      return Backend.BATCHED_ACCELEROMETER;
+    }
+    return Backend.ACCELEROMETER;
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private static boolean hasBatchedAccelerometer(SensorManager sensorManager) {
+    Sensor accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+    return accelerometer != null && accelerometer.getFifoMaxEventCount() > 0;
+  }
+
+  /**
+   * Returns true if the backend can be used on the given version of Android.
+   */
+  static boolean isSupported(Backend backend, int sdkInt) {
+    switch (backend) {
+      case STEP_DETECTOR:
+      case BATCHED_ACCELEROMETER:
+        return sdkInt >= Build.VERSION_CODES.KITKAT;
+      default:
+        return true;
+    }
+  }
+
+  private static int getSensorType(Backend backend) {
+    switch (backend) {
+      case SIGNIFICANT_MOTION:
+        return Sensor.TYPE_SIGNIFICANT_MOTION;
+      case STEP_DETECTOR:
+        return Sensor.TYPE_STEP_DETECTOR;
+      default:
+        return Sensor.TYPE_ACCELEROMETER;
+    }
+  }
+
+  public Backend getBackend() {
+    return mBackend;
   }
 
-  public void register(MotionListener ml) {
+  public synchronized void register(MotionListener ml) {
     if (mMotionListener != null) {
       return;
     }
+    mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+    mThread.start();
+    mHandler = new Handler(mThread.getLooper());
+    mDetector = new MotionDetector(ml);
     mMotionListener = ml;
-    mStopTimestamp = Long.MAX_VALUE;
-    // Note to change effective sample rate, chose another SensorManger parameter
-    mSensorManager.registerListener(this, mAccelerometer, SensorManager.SENSOR_DELAY_NORMAL);
-    Log.i(TAG, "ACC Motion Provider Listener Registered");
+    switch (mBackend) {
+      case SIGNIFICANT_MOTION:
+        requestTrigger();
+        break;
+      case BATCHED_ACCELEROMETER:
+        registerBatchedListener();
+        break;
+      default:
+        // Note to change effective sample rate, chose another SensorManger parameter
+        mSensorManager.registerListener(
+            this, mSensor, SensorManager.SENSOR_DELAY_NORMAL, mHandler);
+        break;
+    }
+    Log.i(TAG, mBackend + " Motion Provider Listener Registered");
   }
 
-  public void unregister() {
-    mSensorManager.unregisterListener(this);
-    Log.i(TAG, "ACC Motion Provider Listener Unregistered");
+  public synchronized void unregister() {
+    if (mBackend == Backend.SIGNIFICANT_MOTION) {
+      mSensorManager.cancelTriggerSensor(mTriggerListener, mSensor);
+    } else {
+      mSensorManager.unregisterListener(this);
+    }
+    Log.i(TAG, mBackend + " Motion Provider Listener Unregistered");
     mMotionListener = null;
+    if (mThread != null) {
+      mHandler.removeCallbacksAndMessages(null);
+      mThread.quitSafely();
+      mThread = null;
+    }
   }
 
+  private void requestTrigger() {
+    mSensorManager.requestTriggerSensor(mTriggerListener, mSensor);
+  }
+
+  @TargetApi(Build.VERSION_CODES.KITKAT)
+  private void registerBatchedListener() {
+    mSensorManager.registerListener(this, mSensor, SensorManager.SENSOR_DELAY_NORMAL,
+        MAX_REPORT_LATENCY_US, mHandler);
+  }
 
   @Override
   public void onAccuracyChanged(Sensor sensor, int accuracy) {}
 
   @Override
   public void onSensorChanged(SensorEvent event) {
+    if (mMotionListener == null) {
+      return;
+    }
     switch (event.sensor.getType()) {
       case (Sensor.TYPE_ACCELEROMETER):
-        handleAccelChange(event);
+        mDetector.onAcceleration(event.values[0], event.values[1], event.values[2],
+            event.timestamp);
+      break;
+      case (Sensor.TYPE_STEP_DETECTOR):
+        onMovement(IDLE_TIME_MILLIS);
       break;
     }
   }
 
   /**
-   * Handle Accelerometer changes, sending them to the main Activity
-   *
-   * @param event
+   * Reports motion for sensors that are silent while the device is still, and times it out
+   * after {@code idleMillis} without further movement.
    */
-  private void handleAccelChange(SensorEvent event) {
-    // Because this implements a Retriggerable Monostable, always do the acc test
-    float accX = event.values[0];
-    float accY = event.values[1];
-    float accZ = event.values[2];
-    double vector = Math.pow(accX, 2) + Math.pow(accY, 2) + Math.pow(accZ, 2);
-    // Measure if acceleration changes by +/- 0.4g where g ~= 9.8 m/s^2
-    // Low acc(-0.4) = 9.4 and (9.4)^2 ~= 88.36
-    // High acc(+0.4) = 10.2 and (10.2)^2 ~= 104.04
-    if ((vector < 88) || (vector > 104)) {
-      // Leave Motion flagged for 10 seconds before timeout
-      // Only send event if state transition to MOTION
-      if (mStopTimestamp == Long.MAX_VALUE) {
-        mMotionListener.onMotion();
-      }
-      mStopTimestamp = event.timestamp + IDLE_TIME_NANO;
-    } else if (event.timestamp > mStopTimestamp) {
-      // Only send event if state transition to MOTION_TIMEOUT
-      mStopTimestamp = Long.MAX_VALUE;
-      mMotionListener.onMotionTimeout();
+  /* @VisibleForTesting */
+  void onMovement(long idleMillis) {
+    if (mMotionListener == null) {
+      return;
     }
+    // Stamp the idle deadline before the timeout is posted, so that it isn't due before it runs.
+    mDetector.onMovement(mTaskRunner.elapsedRealtimeNanos(),
+        TimeUnit.MILLISECONDS.toNanos(idleMillis));
+    mTaskRunner.removeCallbacks(mMotionTimeout);
+    mTaskRunner.postDelayed(mMotionTimeout, idleMillis);
   }
 }
@@ -20,49 +20,106 @@ import org.uribeacon.scan.compat.BluetoothLeScannerCompat;
 import org.uribeacon.scan.compat.BluetoothLeScannerCompatProvider;
 import org.uribeacon.scan.compat.ScanCallback;
 import org.uribeacon.scan.compat.ScanFilter;
+import org.uribeacon.scan.compat.ScanResult;
 import org.uribeacon.scan.compat.ScanSettings;
+import org.uribeacon.scan.controller.ScanPolicy.Event;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.util.Log;
 
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class ScanController processes events and makes FSM transitions to decide on the lowest power
- * states
+ * states. The states and transitions are defined by a {@link ScanPolicy}.
+ * <p>
+ * Besides screen and motion events, the controller feeds the policy with the charging state,
+ * the battery level, whether the app is in the foreground (see {@link #setForeground}) and the
+ * rate at which its scans discover new devices. A device counts once however many clients find it,
+ * and again only once it wasn't found for {@link #REDISCOVERY_MILLIS}.
+ * <p>
+ * Transitions are debounced as set by the policy, and a transition only reconfigures the scans
+ * whose scan mode actually changes, in place when the scanner supports it. An optional
+ * {@link SchedulePredictor} may replace the scan mode of a state with one learned from past scans
+ * at the same place and hour.
+ * <p>
+ * All inputs are handled in order on a single event thread, which is the only one to change the
+ * controller state and reconfigure the scanner. Events are queued, while {@link #startScan} and
+ * {@link #stopScan} wait for their turn so that they can report their outcome. The scanners call
+ * back without holding their locks, so scan callbacks may start and stop scans. The state can be
+ * read from any thread without locking.
  */
 public class ScanController implements MotionManager.MotionListener {
   private static final String TAG = ScanController.class.getSimpleName();
-  private BluetoothLeScannerCompat mLeScanner;
+  private static final int NO_PENDING_STATE = -1;
+  // Time after which a device found again counts as a new discovery. Each client, and each
+  // restart of the scans, reports the devices in range again.
+  static final long REDISCOVERY_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  private volatile BluetoothLeScannerCompat mLeScanner;
 
   /**
    * ScanState Constants
    */
   public enum ScanState {
-    NO_SCAN, SLOW_SCAN, FAST_SCAN;
+    NO_SCAN, SLOW_SCAN, BALANCED_SCAN, FAST_SCAN;
   }
 
   /**
-   * Event Constants
+   * Modifies the behavior of the controller.
    */
-  private enum Event {
-    SCREEN_ON, SCREEN_OFF, MOTION, MOTION_TIMEOUT;
+  public enum ScreenOffMode {
+    NO_SCAN, SLOW_SCAN
   }
 
   /**
-   * Modifies the behavior of the controller.
+   * State of the controller published by the event thread after each change.
    */
-  public enum ScreenOffMode {
-    NO_SCAN, SLOW_SCAN
+  private static final class Snapshot {
+    final ScanPolicy.State mState;
+    final ScanPolicy.State mEffectiveState;
+    final int mNumScanners;
+
+    Snapshot(ScanPolicy.State state, ScanPolicy.State effectiveState, int numScanners) {
+      mState = state;
+      mEffectiveState = effectiveState;
+      mNumScanners = numScanners;
+    }
   }
 
-  private Map<ScanState, Map<Event, ScanState>> mScanStateTable;
+  // Fields below are only accessed on the event thread, except where noted.
+
+  private ScanPolicy mPolicy;
+  // Index of the current state in the policy
+  private int mStateIndex;
+  // Index of the state a debounced transition leads to, or NO_PENDING_STATE
+  private int mPendingStateIndex = NO_PENDING_STATE;
+  // When the current state was entered, to keep it for its minimum dwell time
+  private long mStateEnteredMillis;
+  // State the scanner runs in, which the predictor may choose instead of the current state
+  private ScanPolicy.State mEffectiveState;
+  private SchedulePredictor mPredictor;
+  // Wall clock time the scanner started running in the effective state
+  private long mEffectiveStateStartMillis;
+  // Read from any thread
+  private volatile Snapshot mSnapshot;
 
   private class ControllerScanSettings {
     public ScanSettings mSettings;
@@ -89,70 +146,196 @@ public class ScanController implements MotionManager.MotionListener {
     }
   }
 
+  /**
+   * Forwards scan callbacks to a client, counting the devices it discovers.
+   */
+  private class DiscoveryCountingCallback extends ScanCallback {
+    private final ScanCallback mCallback;
+
+    DiscoveryCountingCallback(ScanCallback callback) {
+      mCallback = callback;
+    }
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+      if (callbackType == ScanSettings.CALLBACK_TYPE_FIRST_MATCH) {
+        final long nowMillis = SystemClock.elapsedRealtime();
+        final String address =
+            (result.getDevice() != null) ? result.getDevice().getAddress() : null;
+        post(new Runnable() {
+          @Override
+          public void run() {
+            onDiscovery(nowMillis, address);
+          }
+        });
+      }
+      mCallback.onScanResult(callbackType, result);
+    }
+
+    @Override
+    public void onBatchScanResults(List<ScanResult> results) {
+      mCallback.onBatchScanResults(results);
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+      mCallback.onScanFailed(errorCode);
+    }
+  }
+
   private Map<ScanSettings, ControllerScanSettings> mDeviceCallbacks;
+  private int mFlushCount;
 
   // System ScanState
   private final Context mContext;
   private final MotionManager mMotionManager;
 
-  // Scan ScanState Variable (default value is the first state)
-  private ScanState mScanState = ScanState.FAST_SCAN;
+  // Policy inputs, reported to the policy as events when they change
+  private boolean mCharging;
+  private boolean mBatteryLow;
+  private boolean mDiscoveryHigh;
+  // Custom timing the scanner runs with, -1 for the scan mode defaults
+  private int mActiveMillis = -1;
+  private int mIdleMillis = -1;
+  // Times of the recent discoveries, within the policy discovery window
+  private final ArrayDeque<Long> mDiscoveryMillis = new ArrayDeque<Long>();
+  // Time each device was last found, within REDISCOVERY_MILLIS, in that order
+  private final LinkedHashMap<String, Long> mFoundMillis = new LinkedHashMap<String, Long>();
+
+  // Event thread, running from init() to unregister()
+  private HandlerThread mThread;
+  private volatile Handler mHandler;
+
+  private final Runnable mPendingTransition = new Runnable() {
+    @Override
+    public void run() {
+      applyPendingTransition();
+    }
+  };
+
+  private final Runnable mDiscoveryWindowEnd = new Runnable() {
+    @Override
+    public void run() {
+      updateDiscoveryRate();
+    }
+  };
 
   // Listen for broadcast events that will effect the scan state
   private final BroadcastReceiver mScanEventListener = new BroadcastReceiver() {
     @Override
-    public void onReceive(Context context, Intent intent) {
+    public void onReceive(Context context, final Intent intent) {
       Log.d(TAG, "DEBUG onReceive");
-      String action = intent.getAction();
-      if (action.equals(Intent.ACTION_SCREEN_ON)) {
-        stateEvent(Event.SCREEN_ON);
-      } else if (action.equals(Intent.ACTION_SCREEN_OFF)) {
-        stateEvent(Event.SCREEN_OFF);
-      } else {
-        Log.d(TAG, "Undefined Event: Intent Action=" + action);
-      }
+      post(new Runnable() {
+        @Override
+        public void run() {
+          onIntent(intent);
+        }
+      });
     }
   };
 
   public ScanController(Context context, ScreenOffMode scanMode) {
-    mContext = context;
-    mMotionManager = new MotionManager(mContext);
-    init(scanMode);
+    this(context, new MotionManager(context), ScanPolicy.forScreenOffMode(scanMode));
   }
 
   public ScanController(Context context, MotionManager motionManager,
       ScreenOffMode scanMode) {
+    this(context, motionManager, ScanPolicy.forScreenOffMode(scanMode));
+  }
+
+  public ScanController(Context context, MotionManager motionManager, ScanPolicy policy) {
     mContext = context;
     mMotionManager = motionManager;
-    init(scanMode);
+    init(policy);
+  }
+
+  public boolean startScan(final ScanSettings settings, final List<ScanFilter> filters,
+        final ScanCallback callback) {
+    return call(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        return startScanOnEventThread(settings, filters, callback);
+      }
+    });
   }
 
-  public boolean startScan(ScanSettings settings, List<ScanFilter> filters,
+  private boolean startScanOnEventThread(ScanSettings settings, List<ScanFilter> filters,
         ScanCallback callback) {
     if (mDeviceCallbacks.containsKey(settings)) {
-      stopScan(settings);
+      stopScanOnEventThread(settings);
     }
 
-    ControllerScanSettings scanSettings = new ControllerScanSettings(settings, filters, callback);
+    ControllerScanSettings scanSettings = new ControllerScanSettings(settings, filters,
+        new DiscoveryCountingCallback(callback));
     mDeviceCallbacks.put(settings, scanSettings);
+    publishSnapshot();
 
     // Use the current state to start the scan.
-    if (mScanState != ScanState.NO_SCAN) {
-      int mode = getModeFromScanState(mScanState);
-      ScanSettings modeSettings = scanSettings.setScanMode(mode);
-      return mLeScanner.startScan(filters, modeSettings, callback);
+    ScanPolicy.State state = mEffectiveState;
+    if (state.isScanning()) {
+      ScanSettings modeSettings = scanSettings.setScanMode(state.getScanMode());
+      return mLeScanner.startScan(filters, modeSettings, scanSettings.mCallback);
     }
 
     return true;
   }
 
-  public void stopScan(ScanSettings settings) {
+  public void stopScan(final ScanSettings settings) {
+    call(new Callable<Void>() {
+      @Override
+      public Void call() {
+        stopScanOnEventThread(settings);
+        return null;
+      }
+    });
+  }
+
+  private void stopScanOnEventThread(ScanSettings settings) {
     if (mDeviceCallbacks.containsKey(settings)) {
       mLeScanner.stopScan(mDeviceCallbacks.get(settings).mCallback);
     } else {
       throw new RuntimeException("Asked to stop an unknown settings object callback");
     }
     mDeviceCallbacks.remove(settings);
+    publishSnapshot();
+  }
+
+  /**
+   * Asks for the results batched by all scans to be delivered now.
+   */
+  public void flushPendingScanResults() {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        flushOnEventThread();
+      }
+    });
+  }
+
+  private void flushOnEventThread() {
+    mFlushCount++;
+    for (ControllerScanSettings scanSettings : mDeviceCallbacks.values()) {
+      mLeScanner.flushPendingScanResults(scanSettings.mCallback);
+    }
+  }
+
+  /**
+   * Tells the controller whether the app is in the foreground, typically from the
+   * {@code onResume()} and {@code onPause()} of its activities.
+   */
+  public void setForeground(final boolean foreground) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        if (foreground) {
+          stateEvent(Event.FOREGROUND);
+          // As on screen on, the user is likely to look at results now.
+          flushOnEventThread();
+        } else {
+          stateEvent(Event.BACKGROUND);
+        }
+      }
+    });
   }
 
   public BluetoothLeScannerCompat getScanner() {
@@ -160,32 +343,189 @@ public class ScanController implements MotionManager.MotionListener {
   }
 
   /**
-   * Returns the current state of the controller.
+   * Sets the predictor choosing the scan mode of each state from past scans, or null to scan as
+   * the policy states say. The predictor is trained from then on, and used from the next state
+   * change.
+   */
+  public void setSchedulePredictor(final SchedulePredictor predictor) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        mPredictor = predictor;
+        mEffectiveStateStartMillis = System.currentTimeMillis();
+      }
+    });
+  }
+
+  /**
+   * Returns the state the scanner currently runs in, which differs from the state of the policy
+   * when the {@link SchedulePredictor} chose another scan mode.
    */
   public ScanState getScanState() {
-    return mScanState;
+    return mSnapshot.mEffectiveState.getScanState();
+  }
+
+  /**
+   * Returns the current state of the controller policy.
+   */
+  public ScanPolicy.State getPolicyState() {
+    return mSnapshot.mState;
   }
 
   public int getNumScanners() {
-    return mDeviceCallbacks.size();
+    return mSnapshot.mNumScanners;
   }
 
-  private void setState(ScanState toState) {
-    if (toState == ScanState.NO_SCAN) {
+  /**
+   * Waits until the events queued so far have been handled.
+   *
+   * @VisibleForTesting
+   */
+  void waitForIdle() {
+    call(new Callable<Void>() {
+      @Override
+      public Void call() {
+        return null;
+      }
+    });
+  }
+
+  private void publishSnapshot() {
+    mSnapshot = new Snapshot(
+        mPolicy.getState(mStateIndex), mEffectiveState, mDeviceCallbacks.size());
+  }
+
+  /**
+   * Queues {@code task} on the event thread. Tasks queued after {@link #unregister} are dropped.
+   */
+  private void post(Runnable task) {
+    Handler handler = mHandler;
+    if (handler != null) {
+      handler.post(task);
+    }
+  }
+
+  /**
+   * Runs {@code task} on the event thread and returns its result, rethrowing its runtime
+   * exceptions. Runs it right away when called from the event thread itself, such as from a
+   * callback replaying past sightings to a scan being started.
+   * <p>
+   * Other callbacks come on the scanner threads while the scanner holds no lock, so they may
+   * wait here for the event thread to reconfigure the scanner.
+   *
+   * @throws IllegalStateException if the controller is unregistered
+   */
+  private <T> T call(Callable<T> task) {
+    Handler handler = mHandler;
+    if (handler == null) {
+      throw new IllegalStateException("ScanController is unregistered");
+    }
+    FutureTask<T> future = new FutureTask<T>(task);
+    if (Looper.myLooper() == handler.getLooper()) {
+      future.run();
+    } else if (!handler.post(future)) {
+      throw new IllegalStateException("ScanController is unregistered");
+    }
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void onIntent(Intent intent) {
+    String action = intent.getAction();
+    if (action.equals(Intent.ACTION_SCREEN_ON)) {
+      stateEvent(Event.SCREEN_ON);
+      // The user is likely to look at results now, so don't wait for the batches.
+      flushOnEventThread();
+    } else if (action.equals(Intent.ACTION_SCREEN_OFF)) {
+      stateEvent(Event.SCREEN_OFF);
+    } else if (action.equals(Intent.ACTION_POWER_CONNECTED)) {
+      setCharging(true);
+    } else if (action.equals(Intent.ACTION_POWER_DISCONNECTED)) {
+      setCharging(false);
+    } else if (action.equals(Intent.ACTION_BATTERY_CHANGED)) {
+      onBatteryChanged(intent);
+    } else {
+      Log.d(TAG, "Undefined Event: Intent Action=" + action);
+    }
+  }
+
+  private void setState(int toStateIndex) {
+    boolean wasScanning = mPolicy.getState(mStateIndex).isScanning();
+    boolean scanning = mPolicy.getState(toStateIndex).isScanning();
+    if (!scanning) {
       mMotionManager.unregister();
-    } else if (mScanState == ScanState.NO_SCAN) {
+    } else if (!wasScanning) {
       mMotionManager.register(this);
     }
 
-    updateState(toState);
+    updateState(toStateIndex);
   }
 
+  private void postStateEvent(final Event event) {
+    post(new Runnable() {
+      @Override
+      public void run() {
+        stateEvent(event);
+      }
+    });
+  }
+
+  /**
+   * Moves to the state following the current one, or the pending one if a transition is being
+   * debounced, on {@code event}. The transition is made once the debounce delay of the policy
+   * has passed and the minimum dwell time of the current state is over.
+   */
   private void stateEvent(Event event) {
-    if (!mScanStateTable.get(mScanState).containsKey(event)) {
+    int from = (mPendingStateIndex != NO_PENDING_STATE) ? mPendingStateIndex : mStateIndex;
+    int next = mPolicy.next(from, event);
+    if (next == from) {
       return;
     }
     Log.d(TAG, "STATE EVENT " + event.toString());
-    setState(mScanStateTable.get(mScanState).get(event));
+    cancelPendingTransition();
+    if (next == mStateIndex) {
+      // The inputs came back before the transition was made.
+      return;
+    }
+    long dwellMillis = mStateEnteredMillis + mPolicy.getMinDwellMillis(mStateIndex)
+        - SystemClock.elapsedRealtime();
+    long delayMillis = Math.max(mPolicy.getDebounceMillis(), dwellMillis);
+    if (delayMillis <= 0) {
+      setState(next);
+    } else {
+      mPendingStateIndex = next;
+      mHandler.postDelayed(mPendingTransition, delayMillis);
+    }
+  }
+
+  private void applyPendingTransition() {
+    if (mPendingStateIndex != NO_PENDING_STATE) {
+      int next = mPendingStateIndex;
+      mPendingStateIndex = NO_PENDING_STATE;
+      setState(next);
+    }
+  }
+
+  private void cancelPendingTransition() {
+    mHandler.removeCallbacks(mPendingTransition);
+    mPendingStateIndex = NO_PENDING_STATE;
   }
 
   /**
@@ -193,7 +533,7 @@ public class ScanController implements MotionManager.MotionListener {
    */
   @Override
   public void onMotion() {
-    stateEvent(Event.MOTION);
+    postStateEvent(Event.MOTION);
   }
 
   /**
@@ -201,104 +541,210 @@ public class ScanController implements MotionManager.MotionListener {
    */
   @Override
   public void onMotionTimeout() {
-    stateEvent(Event.MOTION_TIMEOUT);
+    postStateEvent(Event.MOTION_TIMEOUT);
+  }
+
+  private void setCharging(boolean charging) {
+    if (charging != mCharging) {
+      mCharging = charging;
+      stateEvent(charging ? Event.CHARGING : Event.DISCHARGING);
+    }
+  }
+
+  private void onBatteryChanged(Intent intent) {
+    int plugged = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0);
+    setCharging(plugged != 0);
+    int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+    int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+    if (level < 0 || scale <= 0) {
+      return;
+    }
+    boolean batteryLow = level * 100 / scale <= mPolicy.getBatteryLowPercent();
+    if (batteryLow != mBatteryLow) {
+      mBatteryLow = batteryLow;
+      stateEvent(batteryLow ? Event.BATTERY_LOW : Event.BATTERY_OKAY);
+    }
+  }
+
+  private void onDiscovery(long discoveryMillis, String address) {
+    if (address == null || !isNewDevice(address, discoveryMillis)) {
+      return;
+    }
+    if (mPredictor != null) {
+      mPredictor.recordDiscovery(address, System.currentTimeMillis());
+    }
+    mDiscoveryMillis.addLast(discoveryMillis);
+    updateDiscoveryRate();
+  }
+
+  /**
+   * Returns true if the device wasn't found within REDISCOVERY_MILLIS, and remembers it found at
+   * {@code foundMillis}.
+   */
+  private boolean isNewDevice(String address, long foundMillis) {
+    Iterator<Long> oldest = mFoundMillis.values().iterator();
+    while (oldest.hasNext() && oldest.next() <= foundMillis - REDISCOVERY_MILLIS) {
+      oldest.remove();
+    }
+    boolean found = mFoundMillis.remove(address) != null;
+    mFoundMillis.put(address, foundMillis);
+    return !found;
+  }
+
+  /**
+   * Returns the number of times the batched results of all scans were flushed.
+   *
+   * @VisibleForTesting
+   */
+  int getFlushCount() {
+    return call(new Callable<Integer>() {
+      @Override
+      public Integer call() {
+        return mFlushCount;
+      }
+    });
   }
 
-  private void updateState(ScanState state) {
-    if (state == mScanState) {
+  /**
+   * Returns the callback the scanner calls for the scan started with {@code settings}.
+   *
+   * @VisibleForTesting
+   */
+  ScanCallback getScannerCallback(final ScanSettings settings) {
+    return call(new Callable<ScanCallback>() {
+      @Override
+      public ScanCallback call() {
+        return mDeviceCallbacks.get(settings).mCallback;
+      }
+    });
+  }
+
+  /**
+   * Reports a high discovery rate when the policy threshold of discoveries is reached within its
+   * window, and a low rate once it is not, checking again when the oldest discovery leaves the
+   * window.
+   */
+  private void updateDiscoveryRate() {
+    long nowMillis = SystemClock.elapsedRealtime();
+    long windowMillis = mPolicy.getDiscoveryWindowMillis();
+    long windowStartMillis = nowMillis - windowMillis;
+    while (!mDiscoveryMillis.isEmpty() && mDiscoveryMillis.peekFirst() <= windowStartMillis) {
+      mDiscoveryMillis.removeFirst();
+    }
+    mHandler.removeCallbacks(mDiscoveryWindowEnd);
+    if (!mDiscoveryMillis.isEmpty()) {
+      mHandler.postDelayed(mDiscoveryWindowEnd,
+          mDiscoveryMillis.peekFirst() + windowMillis - nowMillis);
+    }
+    boolean discoveryHigh = mDiscoveryMillis.size() >= mPolicy.getDiscoveryHighCount();
+    if (discoveryHigh != mDiscoveryHigh) {
+      mDiscoveryHigh = discoveryHigh;
+      stateEvent(discoveryHigh ? Event.DISCOVERY_HIGH : Event.DISCOVERY_LOW);
+    }
+  }
+
+  private void updateState(int stateIndex) {
+    if (stateIndex == mStateIndex) {
+      return;
+    }
+    boolean wasScanning = mEffectiveState.isScanning();
+    mStateIndex = stateIndex;
+    mStateEnteredMillis = SystemClock.elapsedRealtime();
+    ScanPolicy.State state = mPolicy.getState(mStateIndex);
+    long nowMillis = System.currentTimeMillis();
+    if (mPredictor != null) {
+      if (wasScanning) {
+        mPredictor.recordScanning(
+            mEffectiveStateStartMillis, nowMillis - mEffectiveStateStartMillis);
+      }
+      state = mPredictor.predict(state, nowMillis);
+    }
+    mEffectiveState = state;
+    mEffectiveStateStartMillis = nowMillis;
+    publishSnapshot();
+    Log.d(TAG, "NEW STATE=" + state.toString());
+    if (!state.isScanning()) {
+      for (ControllerScanSettings scanSettings : mDeviceCallbacks.values()) {
+        mLeScanner.stopScan(scanSettings.mCallback);
+      }
       return;
     }
-    mScanState = state;
-    Log.d(TAG, "NEW STATE=" + mScanState.toString());
-    for (Map.Entry<ScanSettings, ControllerScanSettings> entry : mDeviceCallbacks.entrySet()) {
-      ControllerScanSettings scanSettings = entry.getValue();
-      mLeScanner.stopScan(scanSettings.mCallback);
-      if (state != ScanState.NO_SCAN) {
-        int mode = getModeFromScanState(mScanState);
-        ScanSettings settings = scanSettings.setScanMode(mode);
+    if (state.getActiveMillis() != mActiveMillis || state.getIdleMillis() != mIdleMillis) {
+      mActiveMillis = state.getActiveMillis();
+      mIdleMillis = state.getIdleMillis();
+      mLeScanner.setCustomScanTiming(mActiveMillis, mIdleMillis, 0);
+    }
+    for (ControllerScanSettings scanSettings : mDeviceCallbacks.values()) {
+      int previousMode = scanSettings.mSettings.getScanMode();
+      ScanSettings settings = scanSettings.setScanMode(state.getScanMode());
+      if (!wasScanning) {
+        mLeScanner.startScan(scanSettings.mFilters, settings, scanSettings.mCallback);
+      } else if (settings.getScanMode() != previousMode
+          && !mLeScanner.updateScanSettings(scanSettings.mCallback, settings)) {
+        mLeScanner.stopScan(scanSettings.mCallback);
         mLeScanner.startScan(scanSettings.mFilters, settings, scanSettings.mCallback);
       }
     }
   }
 
-  private int getModeFromScanState(ScanState state) {
-    return (state == ScanState.SLOW_SCAN) ? ScanSettings.SCAN_MODE_LOW_POWER
-        : ScanSettings.SCAN_MODE_LOW_LATENCY;
+  /**
+   * Register broadcast listener with all Intent filters we need, using the policy matching the
+   * {@code scanMode}.
+   */
+  public void init(ScreenOffMode scanMode) {
+    init(ScanPolicy.forScreenOffMode(scanMode));
   }
 
   /**
    * Register broadcast listener with all Intent filters we need
    */
-  public void init(ScreenOffMode scanMode) {
-    mScanState = ScanState.NO_SCAN;
-
-    if (scanMode == ScreenOffMode.NO_SCAN) {
-      /*
-       * NO_SCAN
-       *    SCREEN_ON -> FAST_SCAN
-       * SLOW_SCAN
-       *    MOTION  ->  FAST_SCAN
-       *    SCREEN_OFF -> NO_SCAN
-       * FAST_SCAN
-       *    MOTION_TIMEOUT -> SLOW_SCAN
-       *    SCREEN_OFF -> NO_SCAN
-       */
-      mScanStateTable = new HashMap<ScanState, Map<Event, ScanState>>() {{
-        put(ScanState.NO_SCAN, new HashMap<Event, ScanState>() {{
-          put(Event.SCREEN_ON, ScanState.FAST_SCAN);
-        }});
-
-        put(ScanState.SLOW_SCAN, new HashMap<Event, ScanState>() {{
-          put(Event.MOTION, ScanState.FAST_SCAN);
-          put(Event.SCREEN_OFF, ScanState.NO_SCAN);
-        }});
-
-        put(ScanState.FAST_SCAN, new HashMap<Event, ScanState>() {{
-          put(Event.MOTION_TIMEOUT, ScanState.SLOW_SCAN);
-          put(Event.SCREEN_OFF, ScanState.NO_SCAN);
-        }});
-      }};
-    } else if (scanMode == ScreenOffMode.SLOW_SCAN) {
-      /*
-       * NO_SCAN
-       *    SCREEN_ON -> FAST_SCAN
-       * SLOW_SCAN
-       *    MOTION  ->  FAST_SCAN
-       *    SCREEN_OFF -> SLOW_SCAN
-       * FAST_SCAN
-       *    MOTION_TIMEOUT -> SLOW_SCAN
-       *    SCREEN_OFF -> SLOW_SCAN
-       */
-      mScanStateTable = new HashMap<ScanState, Map<Event, ScanState>>() {{
-        put(ScanState.NO_SCAN, new HashMap<Event, ScanState>() {{
-          put(Event.SCREEN_ON, ScanState.FAST_SCAN);
-        }});
-
-        put(ScanState.SLOW_SCAN, new HashMap<Event, ScanState>() {{
-          put(Event.MOTION, ScanState.FAST_SCAN);
-          put(Event.SCREEN_OFF, ScanState.SLOW_SCAN);
-        }});
-
-        put(ScanState.FAST_SCAN, new HashMap<Event, ScanState>() {{
-          put(Event.MOTION_TIMEOUT, ScanState.SLOW_SCAN);
-          put(Event.SCREEN_OFF, ScanState.SLOW_SCAN);
-        }});
-      }};
+  public void init(final ScanPolicy policy) {
+    synchronized (this) {
+      if (mThread == null) {
+        mThread = new HandlerThread(TAG);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+      }
     }
-
-    mDeviceCallbacks = new HashMap<ScanSettings, ControllerScanSettings>();
-    mLeScanner = BluetoothLeScannerCompatProvider.getBluetoothLeScannerCompat(mContext);
+    call(new Callable<Void>() {
+      @Override
+      public Void call() {
+        initOnEventThread(policy);
+        return null;
+      }
+    });
 
     IntentFilter intentFilter = new IntentFilter();
     intentFilter.addAction(Intent.ACTION_SCREEN_ON);
     intentFilter.addAction(Intent.ACTION_SCREEN_OFF);
+    intentFilter.addAction(Intent.ACTION_POWER_CONNECTED);
+    intentFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+    intentFilter.addAction(Intent.ACTION_BATTERY_CHANGED);
+    // The battery status is sticky, so the receiver gets the current one right away.
     mContext.registerReceiver(mScanEventListener, intentFilter);
 
     // Only register the MotionProvider if the screen is already on
     PowerManager powerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
 
     if (powerManager.isScreenOn()) {
-      setState(ScanState.FAST_SCAN);
+      postStateEvent(Event.SCREEN_ON);
+    }
+    waitForIdle();
+  }
+
+  private void initOnEventThread(ScanPolicy policy) {
+    cancelPendingTransition();
+    mPolicy = policy;
+    mStateIndex = policy.getInitialState();
+    mStateEnteredMillis = SystemClock.elapsedRealtime();
+    mEffectiveState = policy.getState(mStateIndex);
+
+    mDeviceCallbacks = new HashMap<ScanSettings, ControllerScanSettings>();
+    mLeScanner = BluetoothLeScannerCompatProvider.getBluetoothLeScannerCompat(mContext);
+    publishSnapshot();
+
+    if (mPolicy.getState(mStateIndex).isScanning()) {
+      mMotionManager.register(this);
     }
   }
 
@@ -307,6 +753,21 @@ public class ScanController implements MotionManager.MotionListener {
    */
   public void unregister() {
     mContext.unregisterReceiver(mScanEventListener);
-    mMotionManager.unregister();
+    call(new Callable<Void>() {
+      @Override
+      public Void call() {
+        cancelPendingTransition();
+        mHandler.removeCallbacks(mDiscoveryWindowEnd);
+        mMotionManager.unregister();
+        return null;
+      }
+    });
+    synchronized (this) {
+      if (mThread != null) {
+        mHandler = null;
+        mThread.quitSafely();
+        mThread = null;
+      }
+    }
   }
 }
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.controller;
+
+import org.uribeacon.scan.compat.ScanSettings;
+import org.uribeacon.scan.controller.ScanController.ScanState;
+import org.uribeacon.scan.controller.ScanController.ScreenOffMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A declarative description of how the {@link ScanController} scans: a set of states, each with
+ * a scan mode and optionally custom scan timing, and the transitions between them on events.
+ * <p>
+ * Policies are assembled with a {@link Builder} and compiled to array lookups, so handling an
+ * event costs no allocation or hashing. This allows the power/latency trade-off to be tuned,
+ * for instance per venue, without changing the controller.
+ * <p>
+ * Transitions may be damped with a debounce delay and per-state minimum dwell times, so that
+ * events flickering around a threshold, such as motion or the screen, don't restart the scans
+ * on every flicker.
+ * <p>
+ * Example: a policy that balances scanning while charging in the background.
+ * <pre>
+ * ScanPolicy.State charging = new ScanPolicy.State("CHARGING", ScanSettings.SCAN_MODE_BALANCED);
+ * ScanPolicy policy = new ScanPolicy.Builder(ScanPolicy.NO_SCAN)
+ *     .addTransition(ScanPolicy.NO_SCAN, ScanPolicy.Event.SCREEN_ON, ScanPolicy.FAST_SCAN)
+ *     .addTransition(ScanPolicy.NO_SCAN, ScanPolicy.Event.CHARGING, charging)
+ *     .addTransition(charging, ScanPolicy.Event.DISCHARGING, ScanPolicy.NO_SCAN)
+ *     .addTransition(charging, ScanPolicy.Event.SCREEN_ON, ScanPolicy.FAST_SCAN)
+ *     .addTransition(ScanPolicy.FAST_SCAN, ScanPolicy.Event.SCREEN_OFF, ScanPolicy.NO_SCAN)
+ *     .build();
+ * </pre>
+ */
+public class ScanPolicy {
+
+  /**
+   * Inputs of the policy.
+   */
+  public enum Event {
+    SCREEN_ON, SCREEN_OFF,
+    MOTION, MOTION_TIMEOUT,
+    CHARGING, DISCHARGING,
+    BATTERY_LOW, BATTERY_OKAY,
+    FOREGROUND, BACKGROUND,
+    DISCOVERY_HIGH, DISCOVERY_LOW;
+  }
+
+  /**
+   * Scan mode of states that don't scan.
+   */
+  public static final int SCAN_MODE_NONE = -1;
+
+  /**
+   * A state of the policy. States are compared by identity, and may be shared between policies.
+   */
+  public static final class State {
+    private final String mName;
+    private final int mScanMode;
+    private final int mActiveMillis;
+    private final int mIdleMillis;
+
+    /**
+     * Creates a state scanning in the given mode with its default timing.
+     *
+     * @param scanMode one of the {@code ScanSettings.SCAN_MODE_*} values, or
+     *        {@link #SCAN_MODE_NONE} to stop scanning
+     */
+    public State(String name, int scanMode) {
+      this(name, scanMode, -1, -1);
+    }
+
+    /**
+     * Creates a state scanning in the given mode with custom timing, see
+     * {@link org.uribeacon.scan.compat.BluetoothLeScannerCompat#setCustomScanTiming}.
+     */
+    public State(String name, int scanMode, int activeMillis, int idleMillis) {
+      if (scanMode != SCAN_MODE_NONE
+          && scanMode != ScanSettings.SCAN_MODE_LOW_POWER
+          && scanMode != ScanSettings.SCAN_MODE_BALANCED
+          && scanMode != ScanSettings.SCAN_MODE_LOW_LATENCY) {
+        throw new IllegalArgumentException("invalid scan mode " + scanMode);
+      }
+      mName = name;
+      mScanMode = scanMode;
+      mActiveMillis = activeMillis;
+      mIdleMillis = idleMillis;
+    }
+
+    public String getName() {
+      return mName;
+    }
+
+    public int getScanMode() {
+      return mScanMode;
+    }
+
+    /**
+     * Returns the custom active time of a scan cycle, or -1 to use the scan mode default.
+     */
+    public int getActiveMillis() {
+      return mActiveMillis;
+    }
+
+    /**
+     * Returns the custom idle time of a scan cycle, or -1 to use the scan mode default.
+     */
+    public int getIdleMillis() {
+      return mIdleMillis;
+    }
+
+    public boolean isScanning() {
+      return mScanMode != SCAN_MODE_NONE;
+    }
+
+    /**
+     * Returns the {@link ScanState} closest to this state.
+     */
+    public ScanState getScanState() {
+      switch (mScanMode) {
+        case ScanSettings.SCAN_MODE_LOW_POWER:
+          return ScanState.SLOW_SCAN;
+        case ScanSettings.SCAN_MODE_BALANCED:
+          return ScanState.BALANCED_SCAN;
+        case ScanSettings.SCAN_MODE_LOW_LATENCY:
+          return ScanState.FAST_SCAN;
+        default:
+          return ScanState.NO_SCAN;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return mName;
+    }
+  }
+
+  public static final State NO_SCAN = new State("NO_SCAN", SCAN_MODE_NONE);
+  public static final State SLOW_SCAN = new State("SLOW_SCAN", ScanSettings.SCAN_MODE_LOW_POWER);
+  public static final State BALANCED_SCAN =
+      new State("BALANCED_SCAN", ScanSettings.SCAN_MODE_BALANCED);
+  public static final State FAST_SCAN = new State("FAST_SCAN", ScanSettings.SCAN_MODE_LOW_LATENCY);
+
+  private static final int NO_TRANSITION = -1;
+  private static final int NUM_EVENTS = Event.values().length;
+
+  private final State[] mStates;
+  // Index of the next state for each state index and event ordinal, or NO_TRANSITION.
+  private final int[][] mTransitions;
+  private final int mInitialState;
+  private final int mBatteryLowPercent;
+  private final int mDiscoveryHighCount;
+  private final long mDiscoveryWindowMillis;
+  private final long mDebounceMillis;
+  // Minimum time spent in each state index before leaving it.
+  private final long[] mMinDwellMillis;
+
+  private ScanPolicy(Builder builder) {
+    mStates = builder.mStates.toArray(new State[builder.mStates.size()]);
+    mTransitions = new int[mStates.length][NUM_EVENTS];
+    for (int i = 0; i < mStates.length; i++) {
+      Arrays.fill(mTransitions[i], NO_TRANSITION);
+      EnumMap<Event, State> stateTransitions = builder.mTransitions.get(i);
+      for (Map.Entry<Event, State> transition : stateTransitions.entrySet()) {
+        mTransitions[i][transition.getKey().ordinal()] = builder.mIndices.get(transition.getValue());
+      }
+    }
+    mInitialState = builder.mIndices.get(builder.mInitialState);
+    mBatteryLowPercent = builder.mBatteryLowPercent;
+    mDiscoveryHighCount = builder.mDiscoveryHighCount;
+    mDiscoveryWindowMillis = builder.mDiscoveryWindowMillis;
+    mDebounceMillis = builder.mDebounceMillis;
+    mMinDwellMillis = new long[mStates.length];
+    for (Map.Entry<State, Long> minDwell : builder.mMinDwellMillis.entrySet()) {
+      mMinDwellMillis[builder.mIndices.get(minDwell.getKey())] = minDwell.getValue();
+    }
+  }
+
+  /**
+   * Returns the policy the controller used before policies could be configured: scan fast while
+   * the screen is on, slowly once the device stops moving, and either stop or keep scanning
+   * slowly when the screen goes off.
+   */
+  public static ScanPolicy forScreenOffMode(ScreenOffMode screenOffMode) {
+    State screenOffState = (screenOffMode == ScreenOffMode.SLOW_SCAN) ? SLOW_SCAN : NO_SCAN;
+    return new Builder(NO_SCAN)
+        .addTransition(NO_SCAN, Event.SCREEN_ON, FAST_SCAN)
+        .addTransition(SLOW_SCAN, Event.MOTION, FAST_SCAN)
+        .addTransition(SLOW_SCAN, Event.SCREEN_OFF, screenOffState)
+        .addTransition(FAST_SCAN, Event.MOTION_TIMEOUT, SLOW_SCAN)
+        .addTransition(FAST_SCAN, Event.SCREEN_OFF, screenOffState)
+        .build();
+  }
+
+  /**
+   * Returns the index of the state the policy starts in.
+   */
+  int getInitialState() {
+    return mInitialState;
+  }
+
+  /**
+   * Returns the index of the state following {@code stateIndex} on {@code event}, or
+   * {@code stateIndex} if the event doesn't cause a transition.
+   */
+  int next(int stateIndex, Event event) {
+    int next = mTransitions[stateIndex][event.ordinal()];
+    return (next == NO_TRANSITION) ? stateIndex : next;
+  }
+
+  State getState(int stateIndex) {
+    return mStates[stateIndex];
+  }
+
+  /**
+   * Returns the battery level, in percent, at or below which the battery is low.
+   */
+  public int getBatteryLowPercent() {
+    return mBatteryLowPercent;
+  }
+
+  /**
+   * Returns the number of discoveries within the discovery window at or above which the
+   * discovery rate is high.
+   */
+  public int getDiscoveryHighCount() {
+    return mDiscoveryHighCount;
+  }
+
+  public long getDiscoveryWindowMillis() {
+    return mDiscoveryWindowMillis;
+  }
+
+  /**
+   * Returns how long a transition must remain wanted before it is made.
+   */
+  public long getDebounceMillis() {
+    return mDebounceMillis;
+  }
+
+  /**
+   * Returns the minimum time spent in the state at {@code stateIndex} before leaving it.
+   */
+  long getMinDwellMillis(int stateIndex) {
+    return mMinDwellMillis[stateIndex];
+  }
+
+  /**
+   * Builder for {@link ScanPolicy}.
+   */
+  public static class Builder {
+    private final List<State> mStates = new ArrayList<State>();
+    private final Map<State, Integer> mIndices = new IdentityHashMap<State, Integer>();
+    private final List<EnumMap<Event, State>> mTransitions = new ArrayList<EnumMap<Event, State>>();
+    private final State mInitialState;
+    private int mBatteryLowPercent = 15;
+    private int mDiscoveryHighCount = 5;
+    private long mDiscoveryWindowMillis = 60000;
+    private long mDebounceMillis = 0;
+    private final Map<State, Long> mMinDwellMillis = new IdentityHashMap<State, Long>();
+
+    /**
+     * @param initialState the state of the policy until the first transition
+     */
+    public Builder(State initialState) {
+      mInitialState = initialState;
+      addState(initialState);
+    }
+
+    /**
+     * Adds a state, which is needed only for states without transitions from or to them.
+     */
+    public Builder addState(State state) {
+      if (!mIndices.containsKey(state)) {
+        mIndices.put(state, mStates.size());
+        mStates.add(state);
+        mTransitions.add(new EnumMap<Event, State>(Event.class));
+      }
+      return this;
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} on {@code event}, replacing any transition from
+     * {@code from} on that event.
+     */
+    public Builder addTransition(State from, Event event, State to) {
+      addState(from);
+      addState(to);
+      mTransitions.get(mIndices.get(from)).put(event, to);
+      return this;
+    }
+
+    public Builder setBatteryLowPercent(int batteryLowPercent) {
+      mBatteryLowPercent = batteryLowPercent;
+      return this;
+    }
+
+    /**
+     * Sets the number of discoveries of new devices within {@code windowMillis} that makes the
+     * discovery rate high.
+     */
+    public Builder setDiscoveryHighRate(int count, long windowMillis) {
+      if (count < 1 || windowMillis <= 0) {
+        throw new IllegalArgumentException("invalid discovery rate");
+      }
+      mDiscoveryHighCount = count;
+      mDiscoveryWindowMillis = windowMillis;
+      return this;
+    }
+
+    /**
+     * Delays transitions by {@code debounceMillis}. A transition is dropped if the events
+     * received meanwhile lead back to the current state, so a flickering input doesn't cause
+     * any change. The default is 0, making transitions immediately.
+     */
+    public Builder setDebounceMillis(long debounceMillis) {
+      if (debounceMillis < 0) {
+        throw new IllegalArgumentException("invalid debounce " + debounceMillis);
+      }
+      mDebounceMillis = debounceMillis;
+      return this;
+    }
+
+    /**
+     * Keeps the policy in {@code state} for at least {@code minDwellMillis} once entered. A
+     * transition out of the state wanted earlier is delayed until then.
+     */
+    public Builder setMinDwellMillis(State state, long minDwellMillis) {
+      if (minDwellMillis < 0) {
+        throw new IllegalArgumentException("invalid dwell " + minDwellMillis);
+      }
+      addState(state);
+      mMinDwellMillis.put(state, minDwellMillis);
+      return this;
+    }
+
+    public ScanPolicy build() {
+      return new ScanPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.controller;
+
+import org.uribeacon.scan.compat.ScanSettings;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns how many devices the scans discover by place and hour of the day, and adjusts the scan
+ * mode of the {@link ScanController} states accordingly: scanning harder where and when devices
+ * are usually found, and sparsely where they usually aren't.
+ * <p>
+ * A place is recognized by the devices last discovered, each setting two bits of a 64 bit
+ * signature. A known place is only replaced once several discoveries in a row match no place, so
+ * that a stranger met on arrival doesn't wipe what was learned. The model is a fixed histogram of discoveries and scan time for a few places by hour, so recording
+ * and predicting cost no allocation and a handful of bit operations. The histogram can be saved
+ * with {@link #toByteArray} and restored with {@link #restore}.
+ */
+public class SchedulePredictor {
+
+  static final int NUM_PLACES = 8;
+  static final int NUM_HOURS = 24;
+  // Row of the scans made while no place is recognized.
+  static final int NO_PLACE = NUM_PLACES;
+  // Number of devices last discovered that identify the current place.
+  static final int NUM_RECENT_DEVICES = 4;
+  // Fraction of these devices a place must already know to be recognized.
+  static final float MIN_PLACE_OVERLAP = 0.5f;
+  // Bits beyond which the signature of a place stops growing, so that it can't match everything:
+  // a full place knows about 12 devices, and matches an unknown device 14% of the time.
+  static final int MAX_PLACE_BITS = 24;
+  // Discoveries in a row matching no place before the least recently seen place is replaced.
+  static final int MIN_NEW_PLACE_DISCOVERIES = 3;
+  // Time without discoveries after which the device is assumed to have left the place.
+  static final long VISIT_GAP_MILLIS = TimeUnit.MINUTES.toMillis(30);
+  // Scan time needed in a bucket before its yield is trusted.
+  static final float MIN_SCAN_MINUTES = 2;
+  // Scan time at which the history of a bucket is halved, so that it follows changes.
+  static final float MAX_SCAN_MINUTES = 60;
+  // Discoveries per minute of scanning above which scans are made stronger.
+  static final float HIGH_YIELD_PER_MINUTE = 1;
+  // Discoveries per minute of scanning below which scans are made weaker.
+  static final float LOW_YIELD_PER_MINUTE = 0.1f;
+
+  private static final int VERSION = 2;
+
+  /**
+   * State replacing low power scans where devices are rarely found: a short window every 30
+   * seconds.
+   */
+  public static final ScanPolicy.State SPARSE_SCAN = new ScanPolicy.State(
+      "SPARSE_SCAN", ScanSettings.SCAN_MODE_LOW_POWER, 1000, 30000);
+
+  private final TimeZone mTimeZone;
+  private final long[] mPlaceSignatures = new long[NUM_PLACES];
+  private final long[] mPlaceLastSeenMillis = new long[NUM_PLACES];
+  // Histograms by place, including NO_PLACE, and hour: index = place * NUM_HOURS + hour.
+  private final float[] mDiscoveries = new float[(NUM_PLACES + 1) * NUM_HOURS];
+  private final float[] mScanMinutes = new float[(NUM_PLACES + 1) * NUM_HOURS];
+
+  // Signature bits of the devices last discovered, and the place they were recognized as.
+  private final long[] mRecentDevices = new long[NUM_RECENT_DEVICES];
+  private int mNumRecentDevices;
+  private int mNextRecentDevice;
+  private int mUnknownDiscoveries;
+  private long mLastDiscoveryMillis;
+  private int mPlace = NO_PLACE;
+
+  public SchedulePredictor() {
+    this(TimeZone.getDefault());
+  }
+
+  /**
+   * @param timeZone the time zone defining the hours of the day
+   */
+  public SchedulePredictor(TimeZone timeZone) {
+    mTimeZone = timeZone;
+  }
+
+  /**
+   * Records the discovery of the device with the given address.
+   *
+   * @param nowMillis the wall clock time of the discovery
+   */
+  public synchronized void recordDiscovery(String address, long nowMillis) {
+    if (nowMillis - mLastDiscoveryMillis > VISIT_GAP_MILLIS) {
+      mNumRecentDevices = 0;
+      mNextRecentDevice = 0;
+      mUnknownDiscoveries = 0;
+    }
+    mLastDiscoveryMillis = nowMillis;
+    mRecentDevices[mNextRecentDevice] = getDeviceBits(address);
+    mNextRecentDevice = (mNextRecentDevice + 1) % NUM_RECENT_DEVICES;
+    mNumRecentDevices = Math.min(mNumRecentDevices + 1, NUM_RECENT_DEVICES);
+    mPlace = findPlace(nowMillis);
+    mDiscoveries[getBucket(mPlace, nowMillis)]++;
+  }
+
+  /**
+   * Records that the controller scanned for {@code scanMillis} from {@code startMillis}, in wall
+   * clock time.
+   */
+  public synchronized void recordScanning(long startMillis, long scanMillis) {
+    long endMillis = startMillis + scanMillis;
+    int place = getPlace(endMillis);
+    // Book the scan time to each hour it spans.
+    for (long fromMillis = startMillis; fromMillis < endMillis; ) {
+      long toMillis = Math.min(endMillis, getNextHourMillis(fromMillis));
+      int bucket = getBucket(place, fromMillis);
+      mScanMinutes[bucket] += (toMillis - fromMillis) / (float) TimeUnit.MINUTES.toMillis(1);
+      if (mScanMinutes[bucket] > MAX_SCAN_MINUTES) {
+        mScanMinutes[bucket] /= 2;
+        mDiscoveries[bucket] /= 2;
+      }
+      fromMillis = toMillis;
+    }
+  }
+
+  /**
+   * Returns the state to scan in instead of {@code state} at the current place and hour. States
+   * that don't scan or that have custom timing are kept, as are all states until enough scans
+   * were recorded.
+   *
+   * @param nowMillis the wall clock time
+   */
+  public synchronized ScanPolicy.State predict(ScanPolicy.State state, long nowMillis) {
+    if (!state.isScanning() || state.getActiveMillis() > 0 || state.getIdleMillis() > 0) {
+      return state;
+    }
+    int bucket = getBucket(getPlace(nowMillis), nowMillis);
+    if (mScanMinutes[bucket] < MIN_SCAN_MINUTES) {
+      return state;
+    }
+    float yieldPerMinute = mDiscoveries[bucket] / mScanMinutes[bucket];
+    if (yieldPerMinute >= HIGH_YIELD_PER_MINUTE) {
+      return (state.getScanMode() == ScanSettings.SCAN_MODE_LOW_POWER)
+          ? ScanPolicy.BALANCED_SCAN : ScanPolicy.FAST_SCAN;
+    }
+    if (yieldPerMinute < LOW_YIELD_PER_MINUTE) {
+      switch (state.getScanMode()) {
+        case ScanSettings.SCAN_MODE_LOW_LATENCY:
+          return ScanPolicy.BALANCED_SCAN;
+        case ScanSettings.SCAN_MODE_BALANCED:
+          return ScanPolicy.SLOW_SCAN;
+        default:
+          return SPARSE_SCAN;
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Returns the learned histogram, to be given to {@link #restore} later.
+   */
+  public synchronized byte[] toByteArray() {
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 16 * NUM_PLACES + 8 * mDiscoveries.length);
+    buffer.putInt(VERSION);
+    for (int i = 0; i < NUM_PLACES; i++) {
+      buffer.putLong(mPlaceSignatures[i]);
+      buffer.putLong(mPlaceLastSeenMillis[i]);
+    }
+    for (int i = 0; i < mDiscoveries.length; i++) {
+      buffer.putFloat(mDiscoveries[i]);
+      buffer.putFloat(mScanMinutes[i]);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Replaces the learned histogram with one returned by {@link #toByteArray}.
+   *
+   * @throws IllegalArgumentException if {@code bytes} isn't a histogram of this version
+   */
+  public synchronized void restore(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    try {
+      if (buffer.getInt() != VERSION) {
+        throw new IllegalArgumentException("unknown histogram version");
+      }
+      for (int i = 0; i < NUM_PLACES; i++) {
+        mPlaceSignatures[i] = buffer.getLong();
+        mPlaceLastSeenMillis[i] = buffer.getLong();
+      }
+      for (int i = 0; i < mDiscoveries.length; i++) {
+        mDiscoveries[i] = buffer.getFloat();
+        mScanMinutes[i] = buffer.getFloat();
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("truncated histogram", e);
+    }
+    mNumRecentDevices = 0;
+    mNextRecentDevice = 0;
+    mUnknownDiscoveries = 0;
+    mPlace = NO_PLACE;
+  }
+
+  /**
+   * Returns the place recognized at {@code nowMillis}, or NO_PLACE if no device was discovered
+   * recently.
+   */
+  int getPlace(long nowMillis) {
+    return (nowMillis - mLastDiscoveryMillis > VISIT_GAP_MILLIS) ? NO_PLACE : mPlace;
+  }
+
+  /**
+   * Returns the place knowing most of the devices last discovered. If none knows enough of them,
+   * returns an unused place, or replaces the least recently seen place once
+   * MIN_NEW_PLACE_DISCOVERIES discoveries in a row agree, returning NO_PLACE until then.
+   */
+  private int findPlace(long nowMillis) {
+    long signature = 0;
+    for (int i = 0; i < mNumRecentDevices; i++) {
+      signature |= mRecentDevices[i];
+    }
+    int bestPlace = -1;
+    int bestOverlap = 0;
+    int oldestPlace = 0;
+    for (int i = 0; i < NUM_PLACES; i++) {
+      int overlap = 0;
+      for (int j = 0; j < mNumRecentDevices; j++) {
+        if ((mPlaceSignatures[i] & mRecentDevices[j]) == mRecentDevices[j]) {
+          overlap++;
+        }
+      }
+      if (overlap > bestOverlap) {
+        bestOverlap = overlap;
+        bestPlace = i;
+      }
+      if (mPlaceLastSeenMillis[i] < mPlaceLastSeenMillis[oldestPlace]) {
+        oldestPlace = i;
+      }
+    }
+    if (bestPlace < 0 || bestOverlap < MIN_PLACE_OVERLAP * mNumRecentDevices) {
+      if (mPlaceSignatures[oldestPlace] != 0
+          && ++mUnknownDiscoveries < MIN_NEW_PLACE_DISCOVERIES) {
+        return NO_PLACE;
+      }
+      bestPlace = oldestPlace;
+      mPlaceSignatures[bestPlace] = 0;
+      Arrays.fill(mDiscoveries, bestPlace * NUM_HOURS, (bestPlace + 1) * NUM_HOURS, 0);
+      Arrays.fill(mScanMinutes, bestPlace * NUM_HOURS, (bestPlace + 1) * NUM_HOURS, 0);
+    }
+    mUnknownDiscoveries = 0;
+    if (Long.bitCount(mPlaceSignatures[bestPlace] | signature) <= MAX_PLACE_BITS) {
+      mPlaceSignatures[bestPlace] |= signature;
+    }
+    mPlaceLastSeenMillis[bestPlace] = nowMillis;
+    return bestPlace;
+  }
+
+  /**
+   * Returns the signature bits of a device: two bits of a mixed hash of its address.
+   */
+  private static long getDeviceBits(String address) {
+    int hash = address.hashCode() * 0x9E3779B9;
+    return (1L << (hash >>> 26)) | (1L << ((hash >>> 20) & 63));
+  }
+
+  /**
+   * Returns the start of the hour of the day following {@code nowMillis}.
+   */
+  private long getNextHourMillis(long nowMillis) {
+    long localMillis = nowMillis + mTimeZone.getOffset(nowMillis);
+    long hourMillis = TimeUnit.HOURS.toMillis(1);
+    return nowMillis + hourMillis - localMillis % hourMillis;
+  }
+
+  private int getBucket(int place, long nowMillis) {
+    long localMillis = nowMillis + mTimeZone.getOffset(nowMillis);
+    int hour = (int) (TimeUnit.MILLISECONDS.toHours(localMillis) % NUM_HOURS);
+    return place * NUM_HOURS + hour;
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.testing;
+
+import org.uribeacon.scan.compat.RadioSource;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A fake radio that emits advertisements in virtual time, for testing and off-device benchmarks.
+ * <p>
+ * Time only moves when {@link #advance} is called, usually by a {@link FakeScheduler}. Packets
+ * sent while no scan session is running are dropped, like on a real radio.
+ */
+public abstract class FakeRadioSource implements RadioSource {
+
+  /**
+   * A single advertising packet.
+   */
+  public static class Advertisement {
+    public final long timeMillis;
+    public final String address;
+    public final int rssi;
+    public final byte[] scanRecordBytes;
+
+    public Advertisement(long timeMillis, String address, int rssi, byte[] scanRecordBytes) {
+      this.timeMillis = timeMillis;
+      this.address = address;
+      this.rssi = rssi;
+      this.scanRecordBytes = scanRecordBytes;
+    }
+  }
+
+  protected final FakeClock clock;
+  private Listener listener;
+  private boolean reportOncePerSession;
+  private final Set<String> sessionAddresses = new HashSet<String>();
+  private int sessionCount;
+  private long deliveredCount;
+  private long droppedCount;
+
+  protected FakeRadioSource(FakeClock clock) {
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the next advertisement sent before {@code endMillis}, or null if there is none.
+   */
+  protected abstract Advertisement nextAdvertisement(long endMillis);
+
+  /**
+   * Emulates controllers that report each address only once per scan session.
+   */
+  public void setReportOncePerSession(boolean reportOncePerSession) {
+    this.reportOncePerSession = reportOncePerSession;
+  }
+
+  @Override
+  public boolean start(Listener listener) {
+    this.listener = listener;
+    sessionAddresses.clear();
+    sessionCount++;
+    return true;
+  }
+
+  @Override
+  public void stop(Listener listener) {
+    if (this.listener == listener) {
+      this.listener = null;
+    }
+  }
+
+  /**
+   * Advances the clock by {@code millis}, delivering the advertisements sent meanwhile to the
+   * listener of the running scan session.
+   */
+  public void advance(long millis) {
+    long endMillis = clock.currentTimeMillis() + millis;
+    Advertisement advertisement;
+    while ((advertisement = nextAdvertisement(endMillis)) != null) {
+      if (advertisement.timeMillis > clock.currentTimeMillis()) {
+        clock.advance(advertisement.timeMillis - clock.currentTimeMillis());
+      }
+      deliver(advertisement);
+    }
+    clock.advance(endMillis - clock.currentTimeMillis());
+  }
+
+  private void deliver(Advertisement advertisement) {
+    if (listener == null
+        || (reportOncePerSession && !sessionAddresses.add(advertisement.address))) {
+      droppedCount++;
+      return;
+    }
+    deliveredCount++;
+    listener.onAdvertisement(advertisement.address, null /* device */, advertisement.rssi,
+        advertisement.scanRecordBytes);
+  }
+
+  /**
+   * Returns the number of scan sessions started.
+   */
+  public int getSessionCount() {
+    return sessionCount;
+  }
+
+  /**
+   * Returns the number of advertisements delivered to a scan session.
+   */
+  public long getDeliveredCount() {
+    return deliveredCount;
+  }
+
+  /**
+   * Returns the number of advertisements sent while not scanning, or filtered by the
+   * once-per-session emulation.
+   */
+  public long getDroppedCount() {
+    return droppedCount;
+  }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.uribeacon.scan.testing;
+
+import android.bluetooth.BluetoothAdapter;
+
+import org.uribeacon.scan.compat.ScanRecord;
+import org.uribeacon.scan.compat.ScanResult;
+
+/**
+ * Builds scan results without a scan record, for testing ranging.
+ */
+public class FakeScanResults {
+
+  private FakeScanResults() {
+  }
+
+  /**
+   * Returns a sighting of the device at {@code address} received at {@code timestampMillis}.
+   */
+  public static ScanResult create(String address, int rssi, long timestampMillis) {
+    return new ScanResult(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address),
+        (ScanRecord) null, rssi, timestampMillis * 1000 * 1000);
+  }
+}
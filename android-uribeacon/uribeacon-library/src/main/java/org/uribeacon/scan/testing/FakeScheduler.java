@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.testing;
+
+import org.uribeacon.scan.compat.Scheduler;
+
+/**
+ * A fake scheduler running scan cycles in virtual time on the calling thread, for testing and
+ * off-device benchmarks. Active scan windows advance the {@link FakeRadioSource}, which delivers
+ * its advertisements as the clock moves.
+ */
+public class FakeScheduler implements Scheduler {
+  private final FakeClock clock;
+  private final FakeRadioSource radio;
+  private Runnable scanCycle;
+  private long periodMillis;
+  private long nextCycleMillis;
+  private int cycleCount;
+
+  public FakeScheduler(FakeClock clock, FakeRadioSource radio) {
+    this.clock = clock;
+    this.radio = radio;
+  }
+
+  @Override
+  public void scheduleRepeating(long periodMillis, boolean wakeup, Runnable scanCycle) {
+    this.periodMillis = periodMillis;
+    this.scanCycle = scanCycle;
+    this.nextCycleMillis = clock.currentTimeMillis();
+  }
+
+  @Override
+  public void scheduleOnce(long delayMillis, Runnable scanCycle) {
+    this.periodMillis = 0;
+    this.scanCycle = scanCycle;
+    this.nextCycleMillis = clock.currentTimeMillis() + delayMillis;
+  }
+
+  @Override
+  public void cancel() {
+    scanCycle = null;
+  }
+
+  @Override
+  public void await(Object lock, long millis) {
+    radio.advance(millis);
+  }
+
+  /**
+   * Runs the scheduled scan cycles for {@code millis} of virtual time.
+   */
+  public void runFor(long millis) {
+    long endMillis = clock.currentTimeMillis() + millis;
+    while (scanCycle != null && nextCycleMillis < endMillis) {
+      if (nextCycleMillis > clock.currentTimeMillis()) {
+        radio.advance(nextCycleMillis - clock.currentTimeMillis());
+      }
+      Runnable cycle = scanCycle;
+      if (periodMillis > 0) {
+        // A cycle that reschedules the scanner moves the next cycle to now.
+        nextCycleMillis += periodMillis;
+      } else {
+        // A one-shot cycle only runs again if it schedules itself.
+        scanCycle = null;
+      }
+      cycleCount++;
+      cycle.run();
+    }
+    if (endMillis > clock.currentTimeMillis()) {
+      radio.advance(endMillis - clock.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Returns the number of scan cycles run.
+   */
+  public int getCycleCount() {
+    return cycleCount;
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.testing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A fake radio replaying recorded advertisements. The recording timestamps are offsets in
+ * milliseconds from the time the radio is created.
+ */
+public class ReplayRadioSource extends FakeRadioSource {
+  private final List<Advertisement> recording;
+  private final long startMillis;
+  private long loopPeriodMillis;
+  private long loopOffsetMillis;
+  private int nextIndex;
+
+  public ReplayRadioSource(FakeClock clock, List<Advertisement> recording) {
+    super(clock);
+    this.recording = new ArrayList<Advertisement>(recording);
+    Collections.sort(this.recording, new Comparator<Advertisement>() {
+      @Override
+      public int compare(Advertisement a, Advertisement b) {
+        return Long.valueOf(a.timeMillis).compareTo(b.timeMillis);
+      }
+    });
+    this.startMillis = clock.currentTimeMillis();
+  }
+
+  /**
+   * Replays the recording again every {@code loopPeriodMillis}, or only once if 0.
+   */
+  public void setLoopPeriodMillis(long loopPeriodMillis) {
+    this.loopPeriodMillis = loopPeriodMillis;
+  }
+
+  @Override
+  protected Advertisement nextAdvertisement(long endMillis) {
+    if (nextIndex == recording.size()) {
+      if (loopPeriodMillis <= 0 || recording.isEmpty()) {
+        return null;
+      }
+      nextIndex = 0;
+      loopOffsetMillis += loopPeriodMillis;
+    }
+    Advertisement recorded = recording.get(nextIndex);
+    long timeMillis = startMillis + loopOffsetMillis + recorded.timeMillis;
+    if (timeMillis >= endMillis) {
+      return null;
+    }
+    nextIndex++;
+    return new Advertisement(timeMillis, recorded.address, recorded.rssi,
+        recorded.scanRecordBytes);
+  }
+}
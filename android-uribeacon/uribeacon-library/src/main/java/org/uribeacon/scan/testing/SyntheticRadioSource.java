@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.testing;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * A fake radio generating traffic from a set of simulated advertisers. Each advertiser sends at
+ * its advertising interval plus the random 0-10ms delay of the Bluetooth specification, with a
+ * normally distributed RSSI.
+ */
+public class SyntheticRadioSource extends FakeRadioSource {
+  private static final int MAX_ADVERTISING_DELAY_MILLIS = 10;
+
+  private static class Advertiser {
+    final String address;
+    final byte[] scanRecordBytes;
+    final int meanRssi;
+    final double rssiDeviation;
+    final long intervalMillis;
+    long nextMillis;
+
+    Advertiser(String address, byte[] scanRecordBytes, int meanRssi, double rssiDeviation,
+        long intervalMillis, long nextMillis) {
+      this.address = address;
+      this.scanRecordBytes = scanRecordBytes;
+      this.meanRssi = meanRssi;
+      this.rssiDeviation = rssiDeviation;
+      this.intervalMillis = intervalMillis;
+      this.nextMillis = nextMillis;
+    }
+  }
+
+  private final Random random;
+  private final Map<String, Advertiser> advertisers = new HashMap<String, Advertiser>();
+  private final PriorityQueue<Advertiser> schedule = new PriorityQueue<Advertiser>(11,
+      new Comparator<Advertiser>() {
+        @Override
+        public int compare(Advertiser a, Advertiser b) {
+          return Long.valueOf(a.nextMillis).compareTo(b.nextMillis);
+        }
+      });
+
+  public SyntheticRadioSource(FakeClock clock, long seed) {
+    super(clock);
+    random = new Random(seed);
+  }
+
+  /**
+   * Adds an advertiser, which sends its first packet within one advertising interval.
+   */
+  public void addAdvertiser(String address, byte[] scanRecordBytes, int meanRssi,
+      double rssiDeviation, long intervalMillis) {
+    removeAdvertiser(address);
+    long firstMillis = clock.currentTimeMillis() + (long) (random.nextDouble() * intervalMillis);
+    Advertiser advertiser = new Advertiser(address, scanRecordBytes, meanRssi, rssiDeviation,
+        intervalMillis, firstMillis);
+    advertisers.put(address, advertiser);
+    schedule.add(advertiser);
+  }
+
+  /**
+   * Removes an advertiser, which stops sending immediately.
+   */
+  public void removeAdvertiser(String address) {
+    Advertiser advertiser = advertisers.remove(address);
+    if (advertiser != null) {
+      schedule.remove(advertiser);
+    }
+  }
+
+  @Override
+  protected Advertisement nextAdvertisement(long endMillis) {
+    Advertiser advertiser = schedule.peek();
+    if (advertiser == null || advertiser.nextMillis >= endMillis) {
+      return null;
+    }
+    schedule.poll();
+    long timeMillis = advertiser.nextMillis;
+    int rssi = (int) Math.round(advertiser.meanRssi
+        + random.nextGaussian() * advertiser.rssiDeviation);
+    rssi = Math.max(-127, Math.min(20, rssi));
+    advertiser.nextMillis += advertiser.intervalMillis
+        + random.nextInt(MAX_ADVERTISING_DELAY_MILLIS + 1);
+    schedule.add(advertiser);
+    return new Advertisement(timeMillis, advertiser.address, rssi, advertiser.scanRecordBytes);
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing table assigning dense indices to device addresses, so that per-device state can
+ * be kept in parallel primitive arrays indexed from 0 to {@link #size()}.
+ * <p>
+ * Bluetooth addresses ("00:11:22:33:44:55") are keyed by their packed 48 bit value, so a lookup
+ * costs one parse, one probe sequence and no allocation. Other strings are accepted as well, and
+ * compared by value.
+ * <p>
+ * Removing an entry moves the last entry into its index, and callers move their own state the
+ * same way. This class is not thread safe.
+ */
+class AddressTable {
+  private static final int INITIAL_CAPACITY = 16;
+  // Keys at or above this value are hashes of addresses that aren't Bluetooth addresses.
+  private static final long NON_MAC_KEY = 1L << 48;
+
+  // Dense entries
+  private long[] mKeys = new long[INITIAL_CAPACITY];
+  private String[] mAddresses = new String[INITIAL_CAPACITY];
+  private int mSize;
+  // Hash slots holding the dense index + 1 of an entry, or 0 if empty. Kept at most half full.
+  private int[] mSlots = new int[INITIAL_CAPACITY * 2];
+
+  /**
+   * Returns the number of entries, whose indices range from 0 to size() - 1.
+   */
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Returns the number of entries the table can hold before growing. Callers size their arrays to
+   * it.
+   */
+  int capacity() {
+    return mKeys.length;
+  }
+
+  String getAddress(int index) {
+    return mAddresses[index];
+  }
+
+  /**
+   * Returns the index of {@code address}, or -1 if it isn't in the table.
+   */
+  int find(String address) {
+    long key = keyOf(address);
+    int mask = mSlots.length - 1;
+    for (int slot = hash(key) & mask; mSlots[slot] != 0; slot = (slot + 1) & mask) {
+      int index = mSlots[slot] - 1;
+      if (mKeys[index] == key && (key < NON_MAC_KEY || mAddresses[index].equals(address))) {
+        return index;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Adds {@code address}, which must not be in the table, and returns its index, which is the
+   * previous {@link #size()}. The capacity may grow.
+   */
+  int add(String address) {
+    if (mSize == mKeys.length) {
+      int capacity = mKeys.length * 2;
+      mKeys = Arrays.copyOf(mKeys, capacity);
+      mAddresses = Arrays.copyOf(mAddresses, capacity);
+      mSlots = new int[capacity * 2];
+      for (int i = 0; i < mSize; i++) {
+        insertSlot(mKeys[i], i);
+      }
+    }
+    long key = keyOf(address);
+    int index = mSize++;
+    mKeys[index] = key;
+    mAddresses[index] = address;
+    insertSlot(key, index);
+    return index;
+  }
+
+  /**
+   * Removes the entry at {@code index}. If it wasn't the last entry, the last entry is moved to
+   * {@code index}, and its former index, the new {@link #size()}, is returned so that callers
+   * can move their state. Returns -1 otherwise.
+   */
+  int remove(int index) {
+    removeSlot(findSlot(index));
+    int last = --mSize;
+    if (index != last) {
+      int lastSlot = findSlot(last);
+      mSlots[lastSlot] = index + 1;
+      mKeys[index] = mKeys[last];
+      mAddresses[index] = mAddresses[last];
+    }
+    mAddresses[last] = null;
+    return (index != last) ? last : -1;
+  }
+
+  void clear() {
+    Arrays.fill(mAddresses, 0, mSize, null);
+    Arrays.fill(mSlots, 0);
+    mSize = 0;
+  }
+
+  private void insertSlot(long key, int index) {
+    int mask = mSlots.length - 1;
+    int slot = hash(key) & mask;
+    while (mSlots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    mSlots[slot] = index + 1;
+  }
+
+  private int findSlot(int index) {
+    int mask = mSlots.length - 1;
+    int slot = hash(mKeys[index]) & mask;
+    while (mSlots[slot] != index + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  /**
+   * Empties {@code slot}, shifting back the entries of its probe sequence that follow it so that
+   * lookups don't need tombstones.
+   */
+  private void removeSlot(int slot) {
+    int mask = mSlots.length - 1;
+    int hole = slot;
+    for (int next = (hole + 1) & mask; mSlots[next] != 0; next = (next + 1) & mask) {
+      int home = hash(mKeys[mSlots[next] - 1]) & mask;
+      // Move the entry into the hole unless its home slot lies cyclically in (hole, next].
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        mSlots[hole] = mSlots[next];
+        hole = next;
+      }
+    }
+    mSlots[hole] = 0;
+  }
+
+  /**
+   * Returns the packed value of a Bluetooth address, or a hash at or above NON_MAC_KEY for other
+   * strings.
+   */
+  static long keyOf(String address) {
+    if (address.length() == 17) {
+      long key = 0;
+      for (int i = 0; i < 17; i++) {
+        char c = address.charAt(i);
+        if (i % 3 == 2) {
+          if (c != ':') {
+            return NON_MAC_KEY | (address.hashCode() & 0xffffffffL);
+          }
+          continue;
+        }
+        int digit = Character.digit(c, 16);
+        if (digit < 0) {
+          return NON_MAC_KEY | (address.hashCode() & 0xffffffffL);
+        }
+        key = (key << 4) | digit;
+      }
+      return key;
+    }
+    return NON_MAC_KEY | (address.hashCode() & 0xffffffffL);
+  }
+
+  private static int hash(long key) {
+    // Mix the bits, since the low bytes of addresses from one vendor are often sequential.
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
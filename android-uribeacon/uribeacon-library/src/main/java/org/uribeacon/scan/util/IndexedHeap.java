@@ -0,0 +1,244 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of dense indices, such as those of an {@link AddressTable}, ordered by an int
+ * key of each index. Setting, changing or removing the key of an index takes O(log n) time, and
+ * the k lowest keys are listed in O(k log k) without changing the heap.
+ * <p>
+ * Like the address table, an index can be moved to another one. This class is not thread safe.
+ */
+class IndexedHeap {
+  private static final int NONE = -1;
+
+  // Key of each index
+  private int[] mKeys;
+  // Heap of indices, and position of each index in it or NONE
+  private int[] mHeap;
+  private int[] mPosition;
+  private int mSize;
+  // Heap of the positions to visit while listing the lowest keys
+  private int[] mCandidates;
+
+  IndexedHeap(int capacity) {
+    mKeys = new int[capacity];
+    mHeap = new int[capacity];
+    mPosition = new int[capacity];
+    mCandidates = new int[capacity];
+    Arrays.fill(mPosition, NONE);
+  }
+
+  /**
+   * Grows the range of indices to {@code capacity}.
+   */
+  void ensureCapacity(int capacity) {
+    int oldCapacity = mKeys.length;
+    if (capacity > oldCapacity) {
+      mKeys = Arrays.copyOf(mKeys, capacity);
+      mHeap = Arrays.copyOf(mHeap, capacity);
+      mPosition = Arrays.copyOf(mPosition, capacity);
+      mCandidates = new int[capacity];
+      Arrays.fill(mPosition, oldCapacity, capacity, NONE);
+    }
+  }
+
+  int size() {
+    return mSize;
+  }
+
+  boolean contains(int index) {
+    return mPosition[index] != NONE;
+  }
+
+  int getKey(int index) {
+    return mKeys[index];
+  }
+
+  /**
+   * Returns the index of the lowest key, or -1 if the heap is empty.
+   */
+  int peek() {
+    return mSize > 0 ? mHeap[0] : NONE;
+  }
+
+  /**
+   * Adds {@code index} with {@code key}, or changes its key.
+   */
+  void set(int index, int key) {
+    int position = mPosition[index];
+    if (position == NONE) {
+      mKeys[index] = key;
+      place(index, mSize++);
+      siftUp(mSize - 1);
+    } else {
+      int oldKey = mKeys[index];
+      mKeys[index] = key;
+      if (key < oldKey) {
+        siftUp(position);
+      } else if (key > oldKey) {
+        siftDown(position);
+      }
+    }
+  }
+
+  /**
+   * Removes {@code index}, if present.
+   */
+  void remove(int index) {
+    int position = mPosition[index];
+    if (position == NONE) {
+      return;
+    }
+    mPosition[index] = NONE;
+    int last = mHeap[--mSize];
+    if (position < mSize) {
+      place(last, position);
+      siftUp(position);
+      siftDown(mPosition[last]);
+    }
+  }
+
+  /**
+   * Moves the entry of index {@code from}, if present, to index {@code to}, which must not be in
+   * the heap.
+   */
+  void move(int from, int to) {
+    int position = mPosition[from];
+    if (position != NONE) {
+      mPosition[from] = NONE;
+      mKeys[to] = mKeys[from];
+      place(to, position);
+    }
+  }
+
+  void clear() {
+    for (int i = 0; i < mSize; i++) {
+      mPosition[mHeap[i]] = NONE;
+    }
+    mSize = 0;
+  }
+
+  /**
+   * Lists in {@code out} the indices of the lowest keys, by increasing key, stopping after
+   * {@code maxCount} indices or at the first key above {@code maxKey}.
+   *
+   * @return The number of indices listed.
+   */
+  int listLowest(int maxCount, int maxKey, int[] out) {
+    int count = 0;
+    int candidates = 0;
+    if (mSize > 0) {
+      mCandidates[candidates++] = 0;
+    }
+    // Best first traversal: the next lowest key is the root or a child of a listed entry.
+    while (candidates > 0 && count < maxCount) {
+      int position = mCandidates[0];
+      int index = mHeap[position];
+      if (mKeys[index] > maxKey) {
+        break;
+      }
+      out[count++] = index;
+      mCandidates[0] = mCandidates[--candidates];
+      siftDownCandidate(0, candidates);
+      for (int child = 2 * position + 1; child <= 2 * position + 2 && child < mSize; child++) {
+        mCandidates[candidates] = child;
+        siftUpCandidate(candidates++);
+      }
+    }
+    return count;
+  }
+
+  private void place(int index, int position) {
+    mHeap[position] = index;
+    mPosition[index] = position;
+  }
+
+  private void siftUp(int position) {
+    int index = mHeap[position];
+    int key = mKeys[index];
+    while (position > 0) {
+      int parent = (position - 1) / 2;
+      if (mKeys[mHeap[parent]] <= key) {
+        break;
+      }
+      place(mHeap[parent], position);
+      position = parent;
+    }
+    place(index, position);
+  }
+
+  private void siftDown(int position) {
+    int index = mHeap[position];
+    int key = mKeys[index];
+    while (true) {
+      int child = 2 * position + 1;
+      if (child >= mSize) {
+        break;
+      }
+      if (child + 1 < mSize && mKeys[mHeap[child + 1]] < mKeys[mHeap[child]]) {
+        child++;
+      }
+      if (key <= mKeys[mHeap[child]]) {
+        break;
+      }
+      place(mHeap[child], position);
+      position = child;
+    }
+    place(index, position);
+  }
+
+  private int candidateKey(int candidate) {
+    return mKeys[mHeap[mCandidates[candidate]]];
+  }
+
+  private void siftUpCandidate(int candidate) {
+    while (candidate > 0) {
+      int parent = (candidate - 1) / 2;
+      if (candidateKey(parent) <= candidateKey(candidate)) {
+        break;
+      }
+      swapCandidates(parent, candidate);
+      candidate = parent;
+    }
+  }
+
+  private void siftDownCandidate(int candidate, int candidates) {
+    while (true) {
+      int child = 2 * candidate + 1;
+      if (child >= candidates) {
+        break;
+      }
+      if (child + 1 < candidates && candidateKey(child + 1) < candidateKey(child)) {
+        child++;
+      }
+      if (candidateKey(candidate) <= candidateKey(child)) {
+        break;
+      }
+      swapCandidates(candidate, child);
+      candidate = child;
+    }
+  }
+
+  private void swapCandidates(int first, int second) {
+    int position = mCandidates[first];
+    mCandidates[first] = mCandidates[second];
+    mCandidates[second] = position;
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smooths values with a one dimensional Kalman filter tracking the value and its rate of change,
+ * so a device moving towards or away from the observer is followed without the lag of an
+ * exponential moving average.
+ * <p>
+ * The measurement noise is not fixed: it is estimated from the variance of the innovations, the
+ * differences between each value and its prediction, so a steady signal is trusted and the
+ * filter settles in fewer values than a {@link WeightedAverage}.
+ */
+public class KalmanSmoother implements Smoother {
+  // Variance of the rate of change added per second, in (units/s)^2.
+  private static final double DEFAULT_PROCESS_NOISE = 10.0;
+  // Measurement noise variance assumed until estimated from the values.
+  private static final double INITIAL_MEASUREMENT_NOISE = 16.0;
+  private static final double MIN_MEASUREMENT_NOISE = 1.0;
+  // Weight of each innovation in the measurement noise estimate.
+  private static final double NOISE_SMOOTH_FACTOR = 0.1;
+  private static final double INITIAL_RATE_VARIANCE = 4.0;
+  // The value is deemed converged once its standard deviation is under 2 units.
+  private static final double CONVERGED_VARIANCE = 4.0;
+
+  private final double mProcessNoise;
+  // State: the value and its rate of change per second, with their covariance.
+  private double mValue;
+  private double mRate;
+  private double mVariance;
+  private double mCovariance;
+  private double mRateVariance;
+  private double mMeasurementNoise;
+  private long mLastTimestampNanos;
+  private boolean mReset;
+
+  public KalmanSmoother() {
+    this(DEFAULT_PROCESS_NOISE);
+  }
+
+  /**
+   * @param processNoise The variance of the rate of change added per second; the higher it is, the
+   *                     faster the filter follows changes and the less it smooths.
+   */
+  public KalmanSmoother(double processNoise) {
+    checkProcessNoise(processNoise);
+    mProcessNoise = processNoise;
+    mReset = true;
+  }
+
+  /**
+   * Returns a factory of filters with the given process noise, for
+   * {@link RegionResolver#setSmoother}.
+   */
+  public static Smoother.Factory factory(final double processNoise) {
+    checkProcessNoise(processNoise);
+    return new Smoother.Factory() {
+      @Override
+      public Smoother create() {
+        return new KalmanSmoother(processNoise);
+      }
+    };
+  }
+
+  private static void checkProcessNoise(double processNoise) {
+    if (!(processNoise > 0.0)) {
+      throw new IllegalArgumentException("invalid process noise " + processNoise);
+    }
+  }
+
+  @Override
+  public double addValue(double value, long timestampNanos) {
+    if (mReset) {
+      mValue = value;
+      mRate = 0.0;
+      mMeasurementNoise = INITIAL_MEASUREMENT_NOISE;
+      mVariance = mMeasurementNoise;
+      mCovariance = 0.0;
+      mRateVariance = INITIAL_RATE_VARIANCE;
+      mLastTimestampNanos = timestampNanos;
+      mReset = false;
+      return mValue;
+    }
+
+    // Predict, with a constant rate of change; values out of order are taken as simultaneous.
+    long elapsedNanos = timestampNanos - mLastTimestampNanos;
+    if (elapsedNanos > 0) {
+      double dt = (double) elapsedNanos / TimeUnit.SECONDS.toNanos(1);
+      double qdt = mProcessNoise * dt;
+      mValue += mRate * dt;
+      mVariance += dt * (2.0 * mCovariance + dt * mRateVariance) + qdt * dt * dt / 3.0;
+      mCovariance += dt * mRateVariance + qdt * dt / 2.0;
+      mRateVariance += qdt;
+      mLastTimestampNanos = timestampNanos;
+    }
+
+    // Estimate the measurement noise from the innovation, whose expected square is the
+    // measurement noise plus the predicted variance.
+    double innovation = value - mValue;
+    double noise = (1.0 - NOISE_SMOOTH_FACTOR) * (mMeasurementNoise + mVariance)
+        + NOISE_SMOOTH_FACTOR * innovation * innovation - mVariance;
+    mMeasurementNoise = Math.max(MIN_MEASUREMENT_NOISE, noise);
+
+    // Update.
+    double innovationVariance = mVariance + mMeasurementNoise;
+    double valueGain = mVariance / innovationVariance;
+    double rateGain = mCovariance / innovationVariance;
+    mValue += valueGain * innovation;
+    mRate += rateGain * innovation;
+    mRateVariance -= rateGain * mCovariance;
+    mVariance *= 1.0 - valueGain;
+    mCovariance *= 1.0 - valueGain;
+    return mValue;
+  }
+
+  @Override
+  public double getValue() {
+    return mReset ? 0.0 : mValue;
+  }
+
+  @Override
+  public void reset() {
+    mReset = true;
+  }
+
+  /**
+   * Returns the estimated rate of change of the value, per second.
+   */
+  public double getRate() {
+    return mRate;
+  }
+
+  /**
+   * Returns the estimated measurement noise variance.
+   */
+  public double getMeasurementNoise() {
+    return mMeasurementNoise;
+  }
+
+  /**
+   * Returns true once the variance of the smoothed value is small enough for decisions on it,
+   * such as a region change, to be stable.
+   */
+  public boolean isConverged() {
+    return !mReset && mVariance < CONVERGED_VARIANCE;
+  }
+}
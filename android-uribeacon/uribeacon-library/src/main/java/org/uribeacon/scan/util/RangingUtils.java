@@ -20,6 +20,10 @@ package org.uribeacon.scan.util;
  * Ranging utilities embody the physics of converting RF path loss to distance. The free space
  * path loss is proportional to the square of the distance from transmitter to receiver, and to the
  * square of the frequency of the propagation signal.
+ * <p>
+ * RSSI and calibrated transmit power are small integers, so the conversions from path loss and
+ * the region boundaries are precomputed in tables, and ranging a sample costs no transcendental
+ * function.
  */
 public class RangingUtils {
 
@@ -88,6 +92,28 @@ public class RangingUtils {
   // Approximate value for unknown sources
   public static final int DEFAULT_TX_POWER_LEVEL = -36;
 
+  // Range of the tables, covering any RSSI and calibrated transmit power that fit in a byte.
+  private static final int MIN_TABLE_VALUE = -256;
+  private static final int MAX_TABLE_VALUE = 255;
+  private static final int TABLE_SIZE = MAX_TABLE_VALUE - MIN_TABLE_VALUE + 1;
+
+  // Distance and region by path loss - MIN_TABLE_VALUE
+  private static final double[] DISTANCE_BY_PATH_LOSS = new double[TABLE_SIZE];
+  private static final byte[] REGION_BY_PATH_LOSS = new byte[TABLE_SIZE];
+  // Path loss at the region boundaries by calibrated transmit power - MIN_TABLE_VALUE
+  private static final int[] NEAR_TO_MID_PATH_LOSS = new int[TABLE_SIZE];
+  private static final int[] MID_TO_FAR_PATH_LOSS = new int[TABLE_SIZE];
+
+  static {
+    for (int i = 0; i < TABLE_SIZE; i++) {
+      int value = MIN_TABLE_VALUE + i;
+      DISTANCE_BY_PATH_LOSS[i] = computeDistanceFromPathLoss(value);
+      REGION_BY_PATH_LOSS[i] = (byte) regionFromDistance(DISTANCE_BY_PATH_LOSS[i]);
+      NEAR_TO_MID_PATH_LOSS[i] = value - rssiFromDistance(NEAR_TO_MID_METERS, value);
+      MID_TO_FAR_PATH_LOSS[i] = value - rssiFromDistance(MID_TO_FAR_METERS, value);
+    }
+  }
+
   /**
    * @constructor
    */
@@ -127,11 +153,67 @@ public class RangingUtils {
    * @return the distance at which that rssi value would occur in meters
    */
   public static double distanceFromRssi(int rssi, int txPowerAtSource) {
-    int pathLoss = txPowerAtSource - rssi;
+    return distanceFromPathLoss(pathLossFromRssi(rssi, txPowerAtSource));
+  }
+
+  /**
+   * Convert path loss to distance using the free space path loss equation, see
+   * {@link #distanceFromRssi}.
+   *
+   * @param pathLoss the path loss (dBm)
+   * @return the distance at which that path loss would occur in meters
+   */
+  public static double distanceFromPathLoss(int pathLoss) {
+    int i = pathLoss - MIN_TABLE_VALUE;
+    if (i >= 0 && i < TABLE_SIZE) {
+      return DISTANCE_BY_PATH_LOSS[i];
+    }
+    return computeDistanceFromPathLoss(pathLoss);
+  }
+
+  private static double computeDistanceFromPathLoss(int pathLoss) {
     // Distance calculation
     return Math.pow(10, (pathLoss - FREE_SPACE_PATH_LOSS_CONSTANT_FOR_BLE) / 20.0);
   }
 
+  /**
+   * Determine the region of a beacon given its path loss, as
+   * {@code regionFromDistance(distanceFromPathLoss(pathLoss))}.
+   *
+   * @return the region as one of the constants in {@link Region}.
+   */
+  public static int regionFromPathLoss(int pathLoss) {
+    int i = pathLoss - MIN_TABLE_VALUE;
+    if (i >= 0 && i < TABLE_SIZE) {
+      return REGION_BY_PATH_LOSS[i];
+    }
+    return regionFromDistance(computeDistanceFromPathLoss(pathLoss));
+  }
+
+  /**
+   * Returns the path loss at the boundary of the NEAR and MID regions, as measured from the RSSI
+   * at {@link #NEAR_TO_MID_METERS} for a beacon of the given calibrated transmit power.
+   */
+  public static int nearToMidPathLoss(int txPowerAtSource) {
+    int i = txPowerAtSource - MIN_TABLE_VALUE;
+    if (i >= 0 && i < TABLE_SIZE) {
+      return NEAR_TO_MID_PATH_LOSS[i];
+    }
+    return txPowerAtSource - rssiFromDistance(NEAR_TO_MID_METERS, txPowerAtSource);
+  }
+
+  /**
+   * Returns the path loss at the boundary of the MID and FAR regions, as measured from the RSSI
+   * at {@link #MID_TO_FAR_METERS} for a beacon of the given calibrated transmit power.
+   */
+  public static int midToFarPathLoss(int txPowerAtSource) {
+    int i = txPowerAtSource - MIN_TABLE_VALUE;
+    if (i >= 0 && i < TABLE_SIZE) {
+      return MID_TO_FAR_PATH_LOSS[i];
+    }
+    return txPowerAtSource - rssiFromDistance(MID_TO_FAR_METERS, txPowerAtSource);
+  }
+
   /**
    * Determine the region of a beacon given its perceived distance.
    *
@@ -16,8 +16,14 @@
 
 package org.uribeacon.scan.util;
 
-import java.util.HashMap;
-import java.util.Map;
+import org.uribeacon.scan.compat.ScanResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides the beacon that is nearest to the observer, and stabilizes the
@@ -26,6 +32,22 @@ import java.util.Map;
  * For example, the hysteresis function transitions to the NEAR region when the
  * path loss rises above N, but does not transition out of NEAR until the path
  * loss drops below N-H, preventing a ping-pong effect on boundaries.
+ * <p>
+ * The state of each device is kept in primitive arrays indexed through an {@link AddressTable},
+ * so an update costs one lookup and no allocation.
+ * <p>
+ * The number of devices is bounded: devices not updated within the idle timeout are dropped, and
+ * the least recently updated device is dropped to make room once the maximum is reached. See
+ * {@link #setLimits}.
+ * <p>
+ * RSSI is smoothed with a fixed factor per sample by default, or with a {@link Smoother} of each
+ * device, such as a {@link TimeDecayedAverage} that keeps region changes from depending on the
+ * scan schedule, a {@link KalmanSmoother} that settles in fewer samples or a
+ * {@link SlidingWindowSmoother} that ignores isolated drops. See {@link #setSmoother}.
+ * <p>
+ * Devices are also ordered by smoothed path loss, so the nearest devices can be listed at any
+ * time, and the next nearest device takes over as soon as the nearest one leaves the NEAR region
+ * or is lost.
  */
 public class RegionResolver {
   // The default hysteresis values for the near, mid and far regions,
@@ -38,77 +60,139 @@ public class RegionResolver {
   private static final int DEFAULT_FAR_HYSTERESIS_HIGH = 2;
   private static final double START_SMOOTHING_METERS = 1.0;
   private static final double DEFAULT_SMOOTH_FACTOR = 0.5;
+  private static final int DEFAULT_MAX_DEVICES = 512;
+  private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  // End of the least recently used list
+  private static final int NONE = -1;
+  private static final Comparator<ScanResult> TIMESTAMP_ORDER = new Comparator<ScanResult>() {
+    @Override
+    public int compare(ScanResult lhs, ScanResult rhs) {
+      long lhsNanos = lhs.getTimestampNanos();
+      long rhsNanos = rhs.getTimestampNanos();
+      return lhsNanos < rhsNanos ? -1 : (lhsNanos == rhsNanos ? 0 : 1);
+    }
+  };
 
-  private class DeviceSighting {
-    private int mPathLoss;
-    private int mRegion;
-    private double mDistance;
+  /**
+   * Provides the calibrated transmit power of the beacon behind a ScanResult, for
+   * {@link #onUpdateBatch}.
+   */
+  public interface TxPowerLookup {
+    /**
+     * Returned for ScanResults to skip.
+     */
+    int UNKNOWN = Integer.MIN_VALUE;
 
-    public DeviceSighting(int pathLoss, int region, double distance) {
-      mPathLoss = pathLoss;
-      mRegion = region;
-      mDistance = distance;
-    }
+    int getCalibratedTxPower(ScanResult result);
+  }
 
-    public int getPathLoss() {
-      return mPathLoss;
+  /**
+   * The changes made by a batch of ScanResults, see {@link #onUpdateBatch}.
+   */
+  public static class ChangeSet {
+    private final List<String> mEntered = new ArrayList<>();
+    private final List<String> mExited = new ArrayList<>();
+    private final List<String> mRegionChanged = new ArrayList<>();
+    private boolean mNearestChanged;
+    private String mNearestAddress;
+
+    /**
+     * Returns the addresses of the devices tracked from this batch on.
+     */
+    public List<String> getEntered() {
+      return mEntered;
     }
 
-    public int getRegion() {
-      return mRegion;
+    /**
+     * Returns the addresses of the devices dropped during this batch, because they were idle or
+     * to make room for new devices.
+     */
+    public List<String> getExited() {
+      return mExited;
     }
 
-    public double getDistance() {
-      return mDistance;
+    /**
+     * Returns the addresses of the devices, tracked before this batch, whose stabilized region
+     * changed.
+     */
+    public List<String> getRegionChanged() {
+      return mRegionChanged;
     }
 
-    public void setDistance(double distance) {
-      mDistance = distance;
+    public boolean isNearestChanged() {
+      return mNearestChanged;
     }
 
-    public void setPathloss(int pathloss) {
-      mPathLoss = pathloss;
+    /**
+     * Returns the address of the nearest device after this batch, or null.
+     */
+    public String getNearestAddress() {
+      return mNearestAddress;
     }
 
-    public void setRegion(int region) {
-      mRegion = region;
+    public boolean isEmpty() {
+      return !mNearestChanged && mEntered.isEmpty() && mExited.isEmpty()
+          && mRegionChanged.isEmpty();
     }
   }
 
-  private Map<String, DeviceSighting> mStabilizedDeviceRegion;
-  private Integer mNearestHysteresis;
-  private Integer mMidHysteresisLow;
-  private Integer mFarHysteresisLow;
-  private Integer mMidHysteresisHigh;
-  private Integer mFarHysteresisHigh;
+  // Device state, by index in mDevices
+  private final AddressTable mDevices = new AddressTable();
+  private int[] mPathLoss;
+  private int[] mRegion;
+  private double[] mDistance;
+  private double[] mSmoothedRssi;
+  // Smoothers of tracked devices, then of dropped devices kept for reuse
+  private Smoother[] mSmoothers;
+  // Latest sample of a batch, and the batch that last updated the device
+  private int[] mLastRssi;
+  private int[] mLastTxPower;
+  private int[] mBatchGeneration;
+  private boolean[] mBatchEntered;
+  private int mCurrentBatchGeneration;
+  private ChangeSet mBatchChanges;
+  // Least recently updated list, linking device indices from mLruHead to mLruTail
+  private long[] mLastUpdateNanos;
+  private int[] mLruPrevious;
+  private int[] mLruNext;
+  private int mLruHead = NONE;
+  private int mLruTail = NONE;
+  // Devices by smoothed path loss
+  private final IndexedHeap mPathLossOrder = new IndexedHeap(mDevices.capacity());
+  private final int[] mNearestCandidates = new int[2];
+
+  private int mMaxDevices = DEFAULT_MAX_DEVICES;
+  private long mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_IDLE_TIMEOUT_MILLIS);
+  private int mCapacityEvictionCount;
+  private int mIdleEvictionCount;
+  private Clock mClock = new SystemClock();
+
+  private int mNearestHysteresis;
+  private int mMidHysteresisLow;
+  private int mFarHysteresisLow;
+  private int mMidHysteresisHigh;
+  private int mFarHysteresisHigh;
   private String mNearestAddress;
-  private Integer mNearestPathLoss;
+  private int mNearestPathLoss;
   private boolean mNotifyOnSameNearestDevice;
   private double mSmoothFactor;
-  private Map<String, WeightedAverage> mSmoothedRssi =
-      new HashMap<String, WeightedAverage>();
+  private Smoother.Factory mSmootherFactory;
 
   public RegionResolver() {
-    mStabilizedDeviceRegion = new HashMap<String, DeviceSighting>();
-    mNearestHysteresis = DEFAULT_NEAREST_HYSTERESIS;
-    mMidHysteresisLow = DEFAULT_MID_HYSTERESIS_LOW;
-    mMidHysteresisHigh = DEFAULT_MID_HYSTERESIS_HIGH;
-    mFarHysteresisLow = DEFAULT_FAR_HYSTERESIS_LOW;
-    mFarHysteresisHigh = DEFAULT_FAR_HYSTERESIS_HIGH;
-    mNotifyOnSameNearestDevice = false;
-    mSmoothFactor = DEFAULT_SMOOTH_FACTOR;
+    this(DEFAULT_NEAREST_HYSTERESIS, DEFAULT_MID_HYSTERESIS_LOW, DEFAULT_MID_HYSTERESIS_HIGH,
+        DEFAULT_FAR_HYSTERESIS_LOW, DEFAULT_FAR_HYSTERESIS_HIGH, DEFAULT_SMOOTH_FACTOR);
   }
 
   public RegionResolver(int nearestHysteresis, int midHysteresisLow, int midHysteresisHigh,
       int farHysteresisLow, int farHysteresisHigh, double smoothFactor) {
-    mStabilizedDeviceRegion = new HashMap<String, DeviceSighting>();
     mNearestHysteresis = nearestHysteresis;
     mMidHysteresisLow = midHysteresisLow;
-    mMidHysteresisHigh = midHysteresisHigh;   
+    mMidHysteresisHigh = midHysteresisHigh;
     mFarHysteresisLow = farHysteresisLow;
     mFarHysteresisHigh = farHysteresisHigh;
     mNotifyOnSameNearestDevice = false;
     mSmoothFactor = smoothFactor;
+    allocate(mDevices.capacity());
   }
 
   /**
@@ -124,28 +208,31 @@ public class RegionResolver {
    * @return true if device is the new nearest.
    */
   public boolean onUpdate(String address, int rssi, int calibratedTxPower) {
+    return onUpdate(address, rssi, calibratedTxPower, mClock.elapsedRealtimeNanos());
+  }
+
+  /**
+   * Updates the stabilized region of a beacon with a sample received at {@code timestampNanos},
+   * such as {@link org.uribeacon.scan.compat.ScanResult#getTimestampNanos}. See
+   * {@link #onUpdate(String, int, int)}.
+   *
+   * @return true if device is the new nearest.
+   */
+  public boolean onUpdate(String address, int rssi, int calibratedTxPower, long timestampNanos) {
     // Check to see if the beacon gets qualified as the beacon closest to the
     // listener.
     String currentNearest = mNearestAddress;
     boolean nearestHasChanged = false;
+    boolean nearestHasLeft = false;
 
-    int newPathLoss = RangingUtils.pathLossFromRssi(rssi, calibratedTxPower);
-    double newDistance = RangingUtils.distanceFromRssi(rssi, calibratedTxPower);
-    int newRegion = RangingUtils.regionFromDistance(newDistance);
-
-    int smoothedRssi = getSmoothedRssi(address, rssi);
+    dropIdle(timestampNanos);
 
-    // Don't apply smoothing to devices that are "close enough". These
-    // will have a small region of error anyways, so no need to introduce
-    // lag from the smoothing filter.
-    boolean noSmoothing = newDistance < START_SMOOTHING_METERS;
+    int index = mDevices.find(address);
+    boolean newDevice = index < 0;
+    index = track(address, index, rssi, timestampNanos);
 
-    int smoothedPathLoss = noSmoothing ? newPathLoss
-        : RangingUtils.pathLossFromRssi(smoothedRssi, calibratedTxPower);
-    double smoothedDistance = noSmoothing ? newDistance
-        : RangingUtils.distanceFromRssi(smoothedRssi, calibratedTxPower);
-    int smoothedRegion = noSmoothing ? newRegion
-        : RangingUtils.regionFromDistance(smoothedDistance);
+    int newPathLoss = RangingUtils.pathLossFromRssi(rssi, calibratedTxPower);
+    int newRegion = RangingUtils.regionFromPathLoss(newPathLoss);
 
     if (!address.equals(currentNearest)) {
       // Check the new sighting is in the NEAR region to continue
@@ -162,8 +249,7 @@ public class RegionResolver {
       // Only allow a device to be considered "nearest" if it is within the
       // nearest region.
       if (newRegion != RangingUtils.Region.NEAR) {
-        mNearestAddress = null;
-        mNearestPathLoss = 0;
+        nearestHasLeft = true;
         nearestHasChanged = true;
       } else {
         // Address EQUAL, so update path loss of nearest device
@@ -171,68 +257,116 @@ public class RegionResolver {
       }
     }
 
-    if (!mStabilizedDeviceRegion.containsKey(address)) {
-      mStabilizedDeviceRegion.put(address, new DeviceSighting(smoothedPathLoss, smoothedRegion,
-          smoothedDistance));
-    } else {
-      // If this is a device we've seen before, determine if the device has
-      // changed its region classification.
-      DeviceSighting sighting = mStabilizedDeviceRegion.get(address);
-      int oldRegion = sighting.getRegion();
+    updateRange(index, newDevice, rssi, calibratedTxPower);
 
-      sighting.setPathloss(smoothedPathLoss);
-      sighting.setDistance(smoothedDistance);
+    if (nearestHasLeft) {
+      promoteNearest(index);
+    }
+    return nearestHasChanged;
+  }
 
-      int midRssi = RangingUtils.rssiFromDistance(RangingUtils.NEAR_TO_MID_METERS, 
-          calibratedTxPower);
-      double midPathLoss = RangingUtils.pathLossFromRssi(midRssi, calibratedTxPower);
+  /**
+   * Updates the smoothed RSSI and the stabilized regions of beacons with a batch of ScanResults,
+   * such as those of {@link org.uribeacon.scan.compat.ScanCallback#onBatchScanResults}.
+   * <p>
+   * The samples are smoothed in timestamp order, but the region of each beacon is updated once,
+   * from its latest sample, and the nearest beacon is chosen once among the beacons of the batch,
+   * with the same hysteresis as {@link #onUpdate(String, int, int)}.
+   *
+   * @param results       The ScanResults, in any order.
+   * @param txPowerLookup The calibrated transmit power of each ScanResult.
+   * @return The changes made by the batch.
+   */
+  public ChangeSet onUpdateBatch(List<ScanResult> results, TxPowerLookup txPowerLookup) {
+    ChangeSet changes = new ChangeSet();
+    String previousNearest = mNearestAddress;
+    int generation = ++mCurrentBatchGeneration;
+    mBatchChanges = changes;
+
+    List<ScanResult> ordered = new ArrayList<>(results);
+    Collections.sort(ordered, TIMESTAMP_ORDER);
+    List<String> updated = new ArrayList<>();
+    for (ScanResult result : ordered) {
+      int txPower = txPowerLookup.getCalibratedTxPower(result);
+      if (txPower == TxPowerLookup.UNKNOWN) {
+        continue;
+      }
+      String address = result.getDevice().getAddress();
+      long timestampNanos = result.getTimestampNanos();
+      dropIdle(timestampNanos);
+      int index = mDevices.find(address);
+      boolean newDevice = index < 0;
+      index = track(address, index, result.getRssi(), timestampNanos);
+      if (newDevice) {
+        changes.mEntered.add(address);
+      }
+      if (newDevice || mBatchGeneration[index] != generation) {
+        mBatchGeneration[index] = generation;
+        mBatchEntered[index] = newDevice;
+        updated.add(address);
+      }
+      mLastRssi[index] = result.getRssi();
+      mLastTxPower[index] = txPower;
+    }
 
-      int farRssi = RangingUtils.rssiFromDistance(RangingUtils.MID_TO_FAR_METERS, 
-          calibratedTxPower);
-      double farPathLoss = RangingUtils.pathLossFromRssi(farRssi, calibratedTxPower);
+    // Range each beacon from its latest sample, and find the nearest of those in the NEAR region.
+    int nearestIndex = NONE;
+    int nearestPathLoss = 0;
+    boolean nearestHasLeft = false;
+    for (String address : updated) {
+      int index = mDevices.find(address);
+      // Skip beacons dropped by the batch, and those listed again after being dropped.
+      if (index < 0 || mBatchGeneration[index] != generation) {
+        continue;
+      }
+      mBatchGeneration[index] = 0;
+      int oldRegion = mRegion[index];
+      updateRange(index, mBatchEntered[index], mLastRssi[index], mLastTxPower[index]);
+      if (!mBatchEntered[index] && mRegion[index] != oldRegion) {
+        changes.mRegionChanged.add(address);
+      }
 
-      // If the region of the beacon has changed since the last time we recorded
-      // the beacon, we check to see if the change in path loss is beyond the hysteresis
-      // threshold for the region. This has the effect of requiring the device
-      // to change path loss by a factor significant enough to be an actual region change
-      // rather than just a random fluctuation of the radio signal, and reduces the amount
-      // of region transitions for beacons near the region boundaries.
-      if (smoothedRegion != oldRegion) {
-        switch (oldRegion) {
-          case RangingUtils.Region.NEAR:
-            if (smoothedPathLoss > midPathLoss + mMidHysteresisHigh) {
-              sighting.setRegion(smoothedRegion);
-            }
-            break;
-          case RangingUtils.Region.MID:
-            if (smoothedPathLoss < midPathLoss - mMidHysteresisLow
-                || smoothedPathLoss > farPathLoss + mFarHysteresisHigh) {
-              sighting.setRegion(smoothedRegion);
-            }
-            break;
-          case RangingUtils.Region.FAR:
-            if (smoothedPathLoss < midPathLoss - mFarHysteresisLow) {
-              sighting.setRegion(smoothedRegion);
-            }
-            break;
+      int pathLoss = RangingUtils.pathLossFromRssi(mLastRssi[index], mLastTxPower[index]);
+      boolean near = RangingUtils.regionFromPathLoss(pathLoss) == RangingUtils.Region.NEAR;
+      if (address.equals(mNearestAddress)) {
+        if (near) {
+          mNearestPathLoss = pathLoss;
+        } else {
+          nearestHasLeft = true;
         }
+      } else if (near && (nearestIndex == NONE || pathLoss < nearestPathLoss)) {
+        nearestIndex = index;
+        nearestPathLoss = pathLoss;
       }
     }
+    if (nearestIndex != NONE && (mNearestAddress == null || nearestHasLeft
+        || nearestPathLoss < mNearestPathLoss - mNearestHysteresis)) {
+      mNearestAddress = mDevices.getAddress(nearestIndex);
+      mNearestPathLoss = nearestPathLoss;
+    } else if (nearestHasLeft) {
+      promoteNearest(mDevices.find(mNearestAddress));
+    }
 
-    return nearestHasChanged;
+    mBatchChanges = null;
+    changes.mNearestAddress = mNearestAddress;
+    changes.mNearestChanged = mNearestAddress == null ? previousNearest != null
+        : !mNearestAddress.equals(previousNearest);
+    return changes;
   }
 
   /**
-   * Removes the a device from the region tracking data structure.
+   * Removes the a device from the region tracking data structure, including its smoothed RSSI.
    *
    * @return true if the device was the nearest.
    */
   public boolean onLost(String address) {
-    mStabilizedDeviceRegion.remove(address);
+    int index = mDevices.find(address);
+    if (index >= 0) {
+      remove(index);
+    }
 
     if (address.equals(mNearestAddress)) {
-      mNearestAddress = null;
-      mNearestPathLoss = 0;
+      promoteNearest(NONE);
       return true;
     }
 
@@ -246,12 +380,29 @@ public class RegionResolver {
     return mNearestAddress;
   }
 
+  /**
+   * Returns the addresses of the {@code count} devices with the lowest smoothed path loss,
+   * nearest first. Unlike {@link #getNearestAddress}, no hysteresis is applied.
+   */
+  public List<String> getNearestAddresses(int count) {
+    return listNearest(count, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the addresses of the devices whose smoothed path loss is at most {@code pathLoss},
+   * nearest first.
+   */
+  public List<String> getAddressesWithinPathLoss(int pathLoss) {
+    return listNearest(Integer.MAX_VALUE, pathLoss);
+  }
+
   /**
    * Returns stabilized region for that device
    */
   public int getRegion(String address) {
-    if (mStabilizedDeviceRegion.containsKey(address)) {
-      return mStabilizedDeviceRegion.get(address).getRegion();
+    int index = mDevices.find(address);
+    if (index >= 0) {
+      return mRegion[index];
     }
     return RangingUtils.Region.FAR;
   }
@@ -260,8 +411,9 @@ public class RegionResolver {
    * Return the current distance of the device.
    */
   public double getDistance(String address) {
-    if (mStabilizedDeviceRegion.containsKey(address)) {
-      return mStabilizedDeviceRegion.get(address).getDistance();
+    int index = mDevices.find(address);
+    if (index >= 0) {
+      return mDistance[index];
     }
     return 0.0;
   }
@@ -285,18 +437,369 @@ public class RegionResolver {
     mNotifyOnSameNearestDevice = flag;
   }
 
-  private int getSmoothedRssi(String address, int rssi) {
-    if (mSmoothedRssi.get(address) == null) {
-      mSmoothedRssi.put(address, new WeightedAverage(mSmoothFactor));
-    }
-    return (int) mSmoothedRssi.get(address).addValue(rssi);
-  }
-
+  /**
+   * Returns the smoothed RSSI of the device, or 0 if it isn't tracked.
+   */
   public int getSmoothedRssi(String address) {
-    return (int) mSmoothedRssi.get(address).getValue();
+    int index = mDevices.find(address);
+    if (index >= 0) {
+      return (int) mSmoothedRssi[index];
+    }
+    return 0;
   }
 
+  /**
+   * Sets the factor of the RSSI smoothing applied when no smoother is set.
+   */
   public void setSmoothFactor(double smoothFactor) {
     mSmoothFactor = smoothFactor;
   }
-}
\ No newline at end of file
+
+  /**
+   * Smooths the RSSI of each device with a smoother from {@code factory}, or with the smooth
+   * factor if null. Tracked devices restart their smoothing on their next update.
+   */
+  public void setSmoother(Smoother.Factory factory) {
+    mSmootherFactory = factory;
+    Arrays.fill(mSmoothers, null);
+  }
+
+  /**
+   * Bounds the devices tracked, dropping those not updated for {@code idleTimeoutMillis} and,
+   * beyond {@code maxDevices}, the least recently updated one. A dropped device is tracked again
+   * from scratch on its next update.
+   */
+  public void setLimits(int maxDevices, long idleTimeoutMillis) {
+    if (maxDevices < 1 || idleTimeoutMillis <= 0) {
+      throw new IllegalArgumentException("invalid limits");
+    }
+    mMaxDevices = maxDevices;
+    mIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    while (mDevices.size() > mMaxDevices) {
+      mCapacityEvictionCount++;
+      evict(mLruHead);
+    }
+  }
+
+  /**
+   * Returns true if the smoothed RSSI of the device has settled enough for its region to be
+   * trusted, as estimated by a {@link KalmanSmoother}. Devices smoothed otherwise are deemed
+   * settled as soon as they are tracked.
+   */
+  public boolean isConverged(String address) {
+    int index = mDevices.find(address);
+    if (index < 0) {
+      return false;
+    }
+    Smoother smoother = mSmoothers[index];
+    return !(smoother instanceof KalmanSmoother) || ((KalmanSmoother) smoother).isConverged();
+  }
+
+  /**
+   * Returns true if the device is tracked, that is updated and neither lost nor dropped since.
+   */
+  public boolean isTracked(String address) {
+    return mDevices.find(address) >= 0;
+  }
+
+  /**
+   * Returns the number of devices tracked.
+   */
+  public int getDeviceCount() {
+    return mDevices.size();
+  }
+
+  /**
+   * Returns the number of devices dropped to stay within the maximum number of devices.
+   */
+  public int getCapacityEvictionCount() {
+    return mCapacityEvictionCount;
+  }
+
+  /**
+   * Returns the number of devices dropped because they weren't updated within the idle timeout.
+   */
+  public int getIdleEvictionCount() {
+    return mIdleEvictionCount;
+  }
+
+  /* @VisibleForTesting */
+  void setClock(Clock clock) {
+    mClock = clock;
+  }
+
+  /**
+   * Adds a sample to the smoothed RSSI of the device at {@code index}, or of a new device if
+   * {@code index} is negative, and returns the index of the device.
+   */
+  private int track(String address, int index, int rssi, long timestampNanos) {
+    boolean newDevice = index < 0;
+    if (newDevice) {
+      if (mDevices.size() >= mMaxDevices) {
+        mCapacityEvictionCount++;
+        evict(mLruHead);
+      }
+      index = mDevices.add(address);
+      if (mDevices.capacity() > mPathLoss.length) {
+        allocate(mDevices.capacity());
+      }
+      linkLast(index);
+    } else {
+      unlink(index);
+      linkLast(index);
+    }
+    mLastUpdateNanos[index] = timestampNanos;
+    if (mSmootherFactory != null) {
+      Smoother smoother = mSmoothers[index];
+      if (smoother == null) {
+        smoother = mSmootherFactory.create();
+        mSmoothers[index] = smoother;
+      } else if (newDevice) {
+        smoother.reset();
+      }
+      mSmoothedRssi[index] = smoother.addValue(rssi, timestampNanos);
+    } else if (newDevice) {
+      mSmoothedRssi[index] = rssi;
+    } else {
+      // Using exponential moving average smoothing, see WeightedAverage.
+      mSmoothedRssi[index] = mSmoothFactor * rssi + (1.0 - mSmoothFactor) * mSmoothedRssi[index];
+    }
+    return index;
+  }
+
+  /**
+   * Updates the path loss, distance and stabilized region of the device at {@code index} from its
+   * smoothed RSSI and its latest sample.
+   */
+  private void updateRange(int index, boolean newDevice, int rssi, int calibratedTxPower) {
+    int newPathLoss = RangingUtils.pathLossFromRssi(rssi, calibratedTxPower);
+    double newDistance = RangingUtils.distanceFromPathLoss(newPathLoss);
+    int newRegion = RangingUtils.regionFromPathLoss(newPathLoss);
+
+    int smoothedRssi = (int) mSmoothedRssi[index];
+
+    // Don't apply smoothing to devices that are "close enough". These
+    // will have a small region of error anyways, so no need to introduce
+    // lag from the smoothing filter.
+    boolean noSmoothing = newDistance < START_SMOOTHING_METERS;
+
+    int smoothedPathLoss = noSmoothing ? newPathLoss
+        : RangingUtils.pathLossFromRssi(smoothedRssi, calibratedTxPower);
+    double smoothedDistance = noSmoothing ? newDistance
+        : RangingUtils.distanceFromPathLoss(smoothedPathLoss);
+    int smoothedRegion = noSmoothing ? newRegion
+        : RangingUtils.regionFromPathLoss(smoothedPathLoss);
+
+    mPathLoss[index] = smoothedPathLoss;
+    mPathLossOrder.set(index, smoothedPathLoss);
+    mDistance[index] = smoothedDistance;
+    if (newDevice) {
+      mRegion[index] = smoothedRegion;
+    } else {
+      // If this is a device we've seen before, determine if the device has
+      // changed its region classification.
+      int oldRegion = mRegion[index];
+
+      int midPathLoss = RangingUtils.nearToMidPathLoss(calibratedTxPower);
+      int farPathLoss = RangingUtils.midToFarPathLoss(calibratedTxPower);
+
+      // If the region of the beacon has changed since the last time we recorded
+      // the beacon, we check to see if the change in path loss is beyond the hysteresis
+      // threshold for the region. This has the effect of requiring the device
+      // to change path loss by a factor significant enough to be an actual region change
+      // rather than just a random fluctuation of the radio signal, and reduces the amount
+      // of region transitions for beacons near the region boundaries.
+      if (smoothedRegion != oldRegion) {
+        switch (oldRegion) {
+          case RangingUtils.Region.NEAR:
+            if (smoothedPathLoss > midPathLoss + mMidHysteresisHigh) {
+              mRegion[index] = smoothedRegion;
+            }
+            break;
+          case RangingUtils.Region.MID:
+            if (smoothedPathLoss < midPathLoss - mMidHysteresisLow
+                || smoothedPathLoss > farPathLoss + mFarHysteresisHigh) {
+              mRegion[index] = smoothedRegion;
+            }
+            break;
+          case RangingUtils.Region.FAR:
+            if (smoothedPathLoss < midPathLoss - mFarHysteresisLow) {
+              mRegion[index] = smoothedRegion;
+            }
+            break;
+        }
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    if (mPathLoss == null) {
+      mPathLoss = new int[capacity];
+      mRegion = new int[capacity];
+      mDistance = new double[capacity];
+      mSmoothedRssi = new double[capacity];
+      mSmoothers = new Smoother[capacity];
+      mLastRssi = new int[capacity];
+      mLastTxPower = new int[capacity];
+      mBatchGeneration = new int[capacity];
+      mBatchEntered = new boolean[capacity];
+      mLastUpdateNanos = new long[capacity];
+      mLruPrevious = new int[capacity];
+      mLruNext = new int[capacity];
+    } else {
+      mPathLossOrder.ensureCapacity(capacity);
+      mPathLoss = Arrays.copyOf(mPathLoss, capacity);
+      mRegion = Arrays.copyOf(mRegion, capacity);
+      mDistance = Arrays.copyOf(mDistance, capacity);
+      mSmoothedRssi = Arrays.copyOf(mSmoothedRssi, capacity);
+      mSmoothers = Arrays.copyOf(mSmoothers, capacity);
+      mLastRssi = Arrays.copyOf(mLastRssi, capacity);
+      mLastTxPower = Arrays.copyOf(mLastTxPower, capacity);
+      mBatchGeneration = Arrays.copyOf(mBatchGeneration, capacity);
+      mBatchEntered = Arrays.copyOf(mBatchEntered, capacity);
+      mLastUpdateNanos = Arrays.copyOf(mLastUpdateNanos, capacity);
+      mLruPrevious = Arrays.copyOf(mLruPrevious, capacity);
+      mLruNext = Arrays.copyOf(mLruNext, capacity);
+    }
+  }
+
+  /**
+   * Drops the devices not updated within the idle timeout at {@code nowNanos}. Updates drop idle
+   * devices as they arrive; call it periodically, for example from the scan cycle, for devices to
+   * be dropped while none is updated. The cost depends on the devices dropped, not on the number
+   * of devices tracked.
+   *
+   * @return The changes made, listing the devices dropped as exited. See
+   * {@link ZoneEventEngine#onChanges}.
+   */
+  public ChangeSet evictIdle(long nowNanos) {
+    ChangeSet changes = new ChangeSet();
+    String previousNearest = mNearestAddress;
+    mBatchChanges = changes;
+    dropIdle(nowNanos);
+    mBatchChanges = null;
+    changes.mNearestAddress = mNearestAddress;
+    changes.mNearestChanged = mNearestAddress == null ? previousNearest != null
+        : !mNearestAddress.equals(previousNearest);
+    return changes;
+  }
+
+  /**
+   * Drops the least recently updated devices while they are idle. Each update drops at most the
+   * devices it outlived, so the cost is amortized O(1).
+   */
+  private void dropIdle(long nowNanos) {
+    while (mLruHead != NONE && nowNanos - mLastUpdateNanos[mLruHead] > mIdleTimeoutNanos) {
+      mIdleEvictionCount++;
+      evict(mLruHead);
+    }
+  }
+
+  private void evict(int index) {
+    String address = mDevices.getAddress(index);
+    if (mBatchChanges != null) {
+      mBatchChanges.mExited.add(address);
+    }
+    boolean wasNearest = address.equals(mNearestAddress);
+    remove(index);
+    if (wasNearest) {
+      promoteNearest(NONE);
+    }
+  }
+
+  /**
+   * Replaces the nearest device by the device with the lowest smoothed path loss other than
+   * {@code excluded}, if that device is in the NEAR region.
+   */
+  private void promoteNearest(int excluded) {
+    mNearestAddress = null;
+    mNearestPathLoss = 0;
+    int count = mPathLossOrder.listLowest(2, Integer.MAX_VALUE, mNearestCandidates);
+    for (int i = 0; i < count; i++) {
+      int candidate = mNearestCandidates[i];
+      if (candidate != excluded) {
+        if (mRegion[candidate] == RangingUtils.Region.NEAR) {
+          mNearestAddress = mDevices.getAddress(candidate);
+          mNearestPathLoss = mPathLoss[candidate];
+        }
+        return;
+      }
+    }
+  }
+
+  private List<String> listNearest(int maxCount, int maxPathLoss) {
+    int[] indices = new int[Math.min(maxCount, mDevices.size())];
+    int count = mPathLossOrder.listLowest(indices.length, maxPathLoss, indices);
+    List<String> addresses = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      addresses.add(mDevices.getAddress(indices[i]));
+    }
+    return addresses;
+  }
+
+  /**
+   * Removes the device at {@code index}, moving the state of the device taking its index.
+   */
+  private void remove(int index) {
+    unlink(index);
+    mPathLossOrder.remove(index);
+    int moved = mDevices.remove(index);
+    if (moved >= 0) {
+      mPathLossOrder.move(moved, index);
+      mPathLoss[index] = mPathLoss[moved];
+      mRegion[index] = mRegion[moved];
+      mDistance[index] = mDistance[moved];
+      mSmoothedRssi[index] = mSmoothedRssi[moved];
+      // Keep the smoother of the removed device past the tracked ones, for reuse.
+      Smoother removed = mSmoothers[index];
+      mSmoothers[index] = mSmoothers[moved];
+      mSmoothers[moved] = removed;
+      mLastRssi[index] = mLastRssi[moved];
+      mLastTxPower[index] = mLastTxPower[moved];
+      mBatchGeneration[index] = mBatchGeneration[moved];
+      mBatchEntered[index] = mBatchEntered[moved];
+      mLastUpdateNanos[index] = mLastUpdateNanos[moved];
+      // Relink the moved device at its new index.
+      int previous = mLruPrevious[moved];
+      int next = mLruNext[moved];
+      mLruPrevious[index] = previous;
+      mLruNext[index] = next;
+      if (previous != NONE) {
+        mLruNext[previous] = index;
+      } else {
+        mLruHead = index;
+      }
+      if (next != NONE) {
+        mLruPrevious[next] = index;
+      } else {
+        mLruTail = index;
+      }
+    }
+  }
+
+  private void linkLast(int index) {
+    mLruPrevious[index] = mLruTail;
+    mLruNext[index] = NONE;
+    if (mLruTail != NONE) {
+      mLruNext[mLruTail] = index;
+    } else {
+      mLruHead = index;
+    }
+    mLruTail = index;
+  }
+
+  private void unlink(int index) {
+    int previous = mLruPrevious[index];
+    int next = mLruNext[index];
+    if (previous != NONE) {
+      mLruNext[previous] = next;
+    } else {
+      mLruHead = next;
+    }
+    if (next != NONE) {
+      mLruPrevious[next] = previous;
+    } else {
+      mLruTail = previous;
+    }
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+/**
+ * Smooths values with an order statistic of the last values: a percentile, such as the median,
+ * or a trimmed mean. Unlike an exponential moving average, a single outlier, such as the drop of
+ * 15-20 dB caused by a body blocking the signal, doesn't move the smoothed value.
+ * <p>
+ * The window is kept sorted in a treap stored in arrays of the window size, so adding a value,
+ * which also drops the oldest one, and computing the statistic take O(log n) time and no
+ * allocation.
+ */
+public class SlidingWindowSmoother implements Smoother {
+  private static final int NONE = -1;
+
+  private final int mWindowSize;
+  // Percentile in [0, 1], or negative for a trimmed mean.
+  private final double mPercentile;
+  // Fraction of the values dropped at each end for the trimmed mean.
+  private final double mTrimFraction;
+
+  // Treap nodes, by slot; slots are used in arrival order, as a ring.
+  private final double[] mValues;
+  private final long[] mSequence;
+  private final int[] mPriority;
+  private final int[] mLeft;
+  private final int[] mRight;
+  private final int[] mSize;
+  private final double[] mSum;
+  private int mRoot = NONE;
+  private int mCount;
+  private int mNextSlot;
+  private long mNextSequence;
+  private int mRandom = 0x2545f491;
+  // Results of split
+  private int mSplitLeft;
+  private int mSplitRight;
+
+  private SlidingWindowSmoother(int windowSize, double percentile, double trimFraction) {
+    if (windowSize < 1) {
+      throw new IllegalArgumentException("invalid window size " + windowSize);
+    }
+    mWindowSize = windowSize;
+    mPercentile = percentile;
+    mTrimFraction = trimFraction;
+    mValues = new double[windowSize];
+    mSequence = new long[windowSize];
+    mPriority = new int[windowSize];
+    mLeft = new int[windowSize];
+    mRight = new int[windowSize];
+    mSize = new int[windowSize];
+    mSum = new double[windowSize];
+  }
+
+  /**
+   * Returns a smoother computing the median of the last {@code windowSize} values.
+   */
+  public static SlidingWindowSmoother median(int windowSize) {
+    return percentile(windowSize, 50.0);
+  }
+
+  /**
+   * Returns a smoother computing the given percentile of the last {@code windowSize} values,
+   * interpolating between the two nearest values.
+   *
+   * @param percentile The percentile, from 0 for the minimum to 100 for the maximum.
+   */
+  public static SlidingWindowSmoother percentile(int windowSize, double percentile) {
+    if (!(percentile >= 0.0 && percentile <= 100.0)) {
+      throw new IllegalArgumentException("invalid percentile " + percentile);
+    }
+    return new SlidingWindowSmoother(windowSize, percentile / 100.0, 0.0);
+  }
+
+  /**
+   * Returns a smoother computing the mean of the last {@code windowSize} values, once the
+   * {@code trimFraction} lowest and the {@code trimFraction} highest values are dropped.
+   *
+   * @param trimFraction The fraction dropped at each end, from 0 for the mean to under 0.5.
+   */
+  public static SlidingWindowSmoother trimmedMean(int windowSize, double trimFraction) {
+    if (!(trimFraction >= 0.0 && trimFraction < 0.5)) {
+      throw new IllegalArgumentException("invalid trim fraction " + trimFraction);
+    }
+    return new SlidingWindowSmoother(windowSize, -1.0, trimFraction);
+  }
+
+  /**
+   * Returns a factory of smoothers like this one, for {@link RegionResolver#setSmoother}.
+   */
+  public Smoother.Factory factory() {
+    return new Smoother.Factory() {
+      @Override
+      public Smoother create() {
+        return new SlidingWindowSmoother(mWindowSize, mPercentile, mTrimFraction);
+      }
+    };
+  }
+
+  @Override
+  public double addValue(double value, long timestampNanos) {
+    int slot = mNextSlot;
+    if (mCount == mWindowSize) {
+      mRoot = erase(mRoot, slot);
+    } else {
+      mCount++;
+    }
+    mNextSlot = (slot + 1) % mWindowSize;
+
+    mValues[slot] = value;
+    mSequence[slot] = mNextSequence++;
+    // Xorshift, for the heap order of the treap.
+    mRandom ^= mRandom << 13;
+    mRandom ^= mRandom >>> 17;
+    mRandom ^= mRandom << 5;
+    mPriority[slot] = mRandom;
+    mLeft[slot] = NONE;
+    mRight[slot] = NONE;
+    mSize[slot] = 1;
+    mSum[slot] = value;
+    mRoot = insert(mRoot, slot);
+    return getValue();
+  }
+
+  @Override
+  public double getValue() {
+    if (mCount == 0) {
+      return 0.0;
+    }
+    if (mPercentile >= 0.0) {
+      double rank = mPercentile * (mCount - 1);
+      int lower = (int) rank;
+      double value = mValues[select(lower)];
+      if (rank > lower) {
+        value += (rank - lower) * (mValues[select(lower + 1)] - value);
+      }
+      return value;
+    }
+    int trimmed = (int) (mTrimFraction * mCount);
+    int kept = mCount - 2 * trimmed;
+    return (sumOfLowest(mCount - trimmed) - sumOfLowest(trimmed)) / kept;
+  }
+
+  @Override
+  public void reset() {
+    mRoot = NONE;
+    mCount = 0;
+    mNextSlot = 0;
+  }
+
+  /**
+   * Returns the number of values in the window.
+   */
+  public int getCount() {
+    return mCount;
+  }
+
+  /**
+   * Orders the nodes by value, then by arrival.
+   */
+  private boolean isBefore(int node, int other) {
+    return mValues[node] < mValues[other]
+        || (mValues[node] == mValues[other] && mSequence[node] < mSequence[other]);
+  }
+
+  private void update(int node) {
+    int size = 1;
+    double sum = mValues[node];
+    int left = mLeft[node];
+    if (left != NONE) {
+      size += mSize[left];
+      sum += mSum[left];
+    }
+    int right = mRight[node];
+    if (right != NONE) {
+      size += mSize[right];
+      sum += mSum[right];
+    }
+    mSize[node] = size;
+    mSum[node] = sum;
+  }
+
+  private int insert(int root, int node) {
+    if (root == NONE) {
+      return node;
+    }
+    if (mPriority[node] > mPriority[root]) {
+      split(root, node);
+      mLeft[node] = mSplitLeft;
+      mRight[node] = mSplitRight;
+      update(node);
+      return node;
+    }
+    if (isBefore(node, root)) {
+      mLeft[root] = insert(mLeft[root], node);
+    } else {
+      mRight[root] = insert(mRight[root], node);
+    }
+    update(root);
+    return root;
+  }
+
+  private int erase(int root, int node) {
+    if (root == node) {
+      return merge(mLeft[node], mRight[node]);
+    }
+    if (isBefore(node, root)) {
+      mLeft[root] = erase(mLeft[root], node);
+    } else {
+      mRight[root] = erase(mRight[root], node);
+    }
+    update(root);
+    return root;
+  }
+
+  /**
+   * Splits the tree at {@code root} into the nodes before {@code node}, in mSplitLeft, and the
+   * others, in mSplitRight.
+   */
+  private void split(int root, int node) {
+    if (root == NONE) {
+      mSplitLeft = NONE;
+      mSplitRight = NONE;
+    } else if (isBefore(root, node)) {
+      split(mRight[root], node);
+      mRight[root] = mSplitLeft;
+      update(root);
+      mSplitLeft = root;
+    } else {
+      split(mLeft[root], node);
+      mLeft[root] = mSplitRight;
+      update(root);
+      mSplitRight = root;
+    }
+  }
+
+  /**
+   * Merges two trees, all the nodes of {@code left} being before those of {@code right}.
+   */
+  private int merge(int left, int right) {
+    if (left == NONE) {
+      return right;
+    }
+    if (right == NONE) {
+      return left;
+    }
+    if (mPriority[left] > mPriority[right]) {
+      mRight[left] = merge(mRight[left], right);
+      update(left);
+      return left;
+    }
+    mLeft[right] = merge(left, mLeft[right]);
+    update(right);
+    return right;
+  }
+
+  /**
+   * Returns the node of the value of the given rank, from 0 for the lowest.
+   */
+  private int select(int rank) {
+    int node = mRoot;
+    while (true) {
+      int left = mLeft[node];
+      int leftSize = left == NONE ? 0 : mSize[left];
+      if (rank < leftSize) {
+        node = left;
+      } else if (rank == leftSize) {
+        return node;
+      } else {
+        rank -= leftSize + 1;
+        node = mRight[node];
+      }
+    }
+  }
+
+  /**
+   * Returns the sum of the {@code count} lowest values.
+   */
+  private double sumOfLowest(int count) {
+    double sum = 0.0;
+    int node = mRoot;
+    while (count > 0) {
+      int left = mLeft[node];
+      int leftSize = left == NONE ? 0 : mSize[left];
+      if (count <= leftSize) {
+        node = left;
+      } else {
+        if (left != NONE) {
+          sum += mSum[left];
+        }
+        sum += mValues[node];
+        count -= leftSize + 1;
+        node = mRight[node];
+      }
+    }
+    return sum;
+  }
+}
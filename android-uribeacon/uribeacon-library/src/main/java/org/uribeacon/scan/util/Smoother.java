@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+/**
+ * Smooths a stream of timestamped values, such as the RSSI of a device, to reduce signal noise.
+ * <p>
+ * A {@link RegionResolver} keeps one smoother per device, created through a {@link Factory}, and
+ * reuses smoothers of dropped devices after a {@link #reset}.
+ */
+public interface Smoother {
+
+  /**
+   * Creates the smoother of each device.
+   */
+  interface Factory {
+    Smoother create();
+  }
+
+  /**
+   * Adds a value received at {@code timestampNanos}, on the
+   * {@link android.os.SystemClock#elapsedRealtimeNanos} time base, and returns the smoothed value.
+   */
+  double addValue(double value, long timestampNanos);
+
+  /**
+   * Returns the smoothed value.
+   */
+  double getValue();
+
+  /**
+   * Forgets all values, so the next value starts a new stream.
+   */
+  void reset();
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Smooths values with an exponential moving average whose decay depends on the time between
+ * values rather than on their count.
+ * <p>
+ * The weight of a value halves every half-life, so the smoothed value follows a change in the
+ * same time whether values arrive in bursts, as during the active window of a duty-cycled scan,
+ * or one every few seconds. {@link WeightedAverage}, which applies the same factor to each
+ * value, instead follows a change in the same number of values.
+ */
+public class TimeDecayedAverage implements Smoother {
+  private final double mHalfLifeNanos;
+  private double mWeightedSum;
+  private double mWeight;
+  private long mLastTimestampNanos;
+  private boolean mReset;
+
+  public TimeDecayedAverage(long halfLifeMillis) {
+    checkHalfLife(halfLifeMillis);
+    mHalfLifeNanos = TimeUnit.MILLISECONDS.toNanos(halfLifeMillis);
+    mReset = true;
+  }
+
+  /**
+   * Returns a factory of averages with the given half-life, for {@link RegionResolver#setSmoother}.
+   */
+  public static Smoother.Factory factory(final long halfLifeMillis) {
+    checkHalfLife(halfLifeMillis);
+    return new Smoother.Factory() {
+      @Override
+      public Smoother create() {
+        return new TimeDecayedAverage(halfLifeMillis);
+      }
+    };
+  }
+
+  private static void checkHalfLife(long halfLifeMillis) {
+    if (halfLifeMillis <= 0) {
+      throw new IllegalArgumentException("invalid half-life " + halfLifeMillis);
+    }
+  }
+
+  @Override
+  public double addValue(double value, long timestampNanos) {
+    if (mReset) {
+      mWeightedSum = 0.0;
+      mWeight = 0.0;
+      mLastTimestampNanos = timestampNanos;
+      mReset = false;
+    }
+    // Values out of order don't decay the older ones.
+    long elapsedNanos = timestampNanos - mLastTimestampNanos;
+    if (elapsedNanos > 0) {
+      double decay = Math.pow(0.5, elapsedNanos / mHalfLifeNanos);
+      mWeightedSum *= decay;
+      mWeight *= decay;
+      mLastTimestampNanos = timestampNanos;
+    }
+    mWeightedSum += value;
+    mWeight += 1.0;
+    return mWeightedSum / mWeight;
+  }
+
+  @Override
+  public double getValue() {
+    return mReset ? 0.0 : mWeightedSum / mWeight;
+  }
+
+  @Override
+  public void reset() {
+    mReset = true;
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+/**
+ * Hashed timer wheel: timers are linked into the slot of their deadline tick, so scheduling and
+ * cancelling take O(1) time and advancing the time only visits the slots of the elapsed ticks.
+ * Timers due more than a rotation later are skipped until their tick comes around.
+ * <p>
+ * Deadlines are rounded up to the next tick, so timers never fire early. Times are in nanoseconds
+ * on the {@link Clock#elapsedRealtimeNanos} time base. This class is not thread safe.
+ */
+class TimerWheel {
+
+  /**
+   * A timer, scheduled on at most one wheel at a time.
+   */
+  abstract static class Timer {
+    private long mDeadlineTick;
+    private Timer mPrevious;
+    private Timer mNext;
+    private boolean mScheduled;
+    // Set while due, until fired or cancelled
+    private boolean mExpiring;
+    private Timer mNextExpiring;
+
+    /**
+     * Called once the deadline has passed; the timer may be scheduled again.
+     */
+    abstract void onExpired(long nowNanos);
+
+    boolean isScheduled() {
+      return mScheduled;
+    }
+  }
+
+  private final long mTickNanos;
+  private final Timer[] mSlots;
+  private final int mMask;
+  private long mCurrentTick;
+  private boolean mStarted;
+  private int mSize;
+
+  /**
+   * @param tickNanos The resolution of the deadlines.
+   * @param slotCount The number of slots, a power of two; a rotation lasts slotCount ticks.
+   */
+  TimerWheel(long tickNanos, int slotCount) {
+    if (tickNanos <= 0 || slotCount <= 0 || (slotCount & (slotCount - 1)) != 0) {
+      throw new IllegalArgumentException("invalid wheel " + tickNanos + "/" + slotCount);
+    }
+    mTickNanos = tickNanos;
+    mSlots = new Timer[slotCount];
+    mMask = slotCount - 1;
+  }
+
+  /**
+   * Returns the number of scheduled timers.
+   */
+  int size() {
+    return mSize;
+  }
+
+  /**
+   * Schedules {@code timer} at {@code deadlineNanos}, replacing its previous deadline. Deadlines
+   * already passed fire on the next tick.
+   */
+  void schedule(Timer timer, long deadlineNanos) {
+    cancel(timer);
+    long tick = (deadlineNanos + mTickNanos - 1) / mTickNanos;
+    timer.mDeadlineTick = Math.max(tick, mCurrentTick + 1);
+    int slot = (int) (timer.mDeadlineTick & mMask);
+    timer.mPrevious = null;
+    timer.mNext = mSlots[slot];
+    if (timer.mNext != null) {
+      timer.mNext.mPrevious = timer;
+    }
+    mSlots[slot] = timer;
+    timer.mScheduled = true;
+    mSize++;
+  }
+
+  /**
+   * Cancels {@code timer}, if scheduled.
+   */
+  void cancel(Timer timer) {
+    timer.mExpiring = false;
+    if (!timer.mScheduled) {
+      return;
+    }
+    if (timer.mPrevious != null) {
+      timer.mPrevious.mNext = timer.mNext;
+    } else {
+      mSlots[(int) (timer.mDeadlineTick & mMask)] = timer.mNext;
+    }
+    if (timer.mNext != null) {
+      timer.mNext.mPrevious = timer.mPrevious;
+    }
+    timer.mPrevious = null;
+    timer.mNext = null;
+    timer.mScheduled = false;
+    mSize--;
+  }
+
+  /**
+   * Moves the time to {@code nowNanos}, firing the timers whose deadline has passed. The first call
+   * sets the start time. Going back in time has no effect.
+   */
+  void advance(long nowNanos) {
+    long nowTick = nowNanos / mTickNanos;
+    if (!mStarted) {
+      mCurrentTick = nowTick;
+      mStarted = true;
+      return;
+    }
+    if (nowTick <= mCurrentTick) {
+      return;
+    }
+    // After a rotation, every slot has been visited once.
+    long lastTick = Math.min(nowTick, mCurrentTick + mSlots.length);
+    for (long tick = mCurrentTick + 1; tick <= lastTick; tick++) {
+      mCurrentTick = tick;
+      // Unlink the due timers first, as firing one may cancel or schedule others.
+      Timer expiring = null;
+      Timer timer = mSlots[(int) (tick & mMask)];
+      while (timer != null) {
+        Timer next = timer.mNext;
+        if (timer.mDeadlineTick <= nowTick) {
+          cancel(timer);
+          timer.mExpiring = true;
+          timer.mNextExpiring = expiring;
+          expiring = timer;
+        }
+        timer = next;
+      }
+      while (expiring != null) {
+        timer = expiring;
+        expiring = timer.mNextExpiring;
+        timer.mNextExpiring = null;
+        if (timer.mExpiring) {
+          timer.mExpiring = false;
+          timer.onExpired(nowNanos);
+        }
+      }
+    }
+    mCurrentTick = nowTick;
+  }
+}
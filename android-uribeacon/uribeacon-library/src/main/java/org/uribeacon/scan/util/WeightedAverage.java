@@ -21,9 +21,10 @@ package org.uribeacon.scan.util;
  * or any other value we want to smooth), perform a smoothing filter to reduce
  * signal noise.
  * <p>
- * This computes the smoothed value using an exponential moving average filter.
+ * This computes the smoothed value using an exponential moving average filter. Each value has
+ * the same weight regardless of when it was received; see {@link TimeDecayedAverage}.
  */
-public class WeightedAverage {
+public class WeightedAverage implements Smoother {
   private double mSmoothFactor;
   private double mLastValue;
   private double mSmoothedValue;
@@ -55,10 +56,21 @@ public class WeightedAverage {
     return mSmoothedValue;
   }
 
+  @Override
+  public double addValue(double value, long timestampNanos) {
+    return addValue(value);
+  }
+
   /**
    * Returns the calculated smoothed value.
    */
+  @Override
   public double getValue() {
     return mSmoothedValue;
   }
+
+  @Override
+  public void reset() {
+    mReset = true;
+  }
 }
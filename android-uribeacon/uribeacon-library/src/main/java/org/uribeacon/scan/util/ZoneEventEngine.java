@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.uribeacon.scan.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the stabilized regions of devices into enter, exit and dwell events, such as entering
+ * the NEAR region of a shelf beacon and staying there for 10 seconds.
+ * <p>
+ * The engine is incremental: it is told when the region of a device changes, for example from
+ * the {@link RegionResolver.ChangeSet} of {@link RegionResolver#onUpdateBatch}, and keeps the
+ * dwell deadlines in a timer wheel, so the cost of an event doesn't depend on the number of
+ * devices tracked and no device is polled.
+ * <p>
+ * Times are in nanoseconds on the {@link Clock#elapsedRealtimeNanos} time base, like ScanResult
+ * timestamps. Events are delivered on the calling thread, while a method of the engine runs. This
+ * class is not thread safe.
+ */
+public class ZoneEventEngine {
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  // A rotation of the wheel lasts 51.2 seconds.
+  private static final int SLOT_COUNT = 512;
+
+  /**
+   * Receives the events of an engine.
+   */
+  public interface Listener {
+    /**
+     * Called when a device enters a region, including when it is first seen.
+     */
+    void onEnter(String address, int region);
+
+    /**
+     * Called when a device leaves a region, including when it is lost.
+     */
+    void onExit(String address, int region);
+
+    /**
+     * Called once per stay, when a device has been in a region for its dwell time.
+     *
+     * @param dwellMillis The time since the device entered the region.
+     */
+    void onDwell(String address, int region, long dwellMillis);
+  }
+
+  // The region of a device, and its dwell deadline.
+  private class Zone extends TimerWheel.Timer {
+    final String mAddress;
+    int mRegion;
+    long mEnterNanos;
+
+    Zone(String address) {
+      mAddress = address;
+    }
+
+    @Override
+    void onExpired(long nowNanos) {
+      mListener.onDwell(mAddress, mRegion, TimeUnit.NANOSECONDS.toMillis(nowNanos - mEnterNanos));
+    }
+  }
+
+  private final Listener mListener;
+  private final Map<String, Zone> mZones = new HashMap<>();
+  private final TimerWheel mDwellTimers = new TimerWheel(TICK_NANOS, SLOT_COUNT);
+  // Dwell time by region, or 0 for no dwell events
+  private final long[] mDwellNanos = new long[3];
+
+  public ZoneEventEngine(Listener listener) {
+    mListener = listener;
+  }
+
+  /**
+   * Sets the time a device must stay in {@code region} to be reported dwelling, or 0 to report no
+   * dwell in that region. This applies to the devices entering the region from now on.
+   *
+   * @param region One of the {@link RangingUtils.Region} values.
+   */
+  public void setDwellMillis(int region, long dwellMillis) {
+    if (region < RangingUtils.Region.NEAR || region > RangingUtils.Region.FAR || dwellMillis < 0) {
+      throw new IllegalArgumentException("invalid dwell time " + dwellMillis + " in " + region);
+    }
+    mDwellNanos[region] = TimeUnit.MILLISECONDS.toNanos(dwellMillis);
+  }
+
+  /**
+   * Reports the stabilized region of a device at {@code timestampNanos}, firing enter and exit
+   * events if it changed. Reporting an unchanged region costs one lookup, and reporting
+   * {@link RangingUtils.Region#UNKNOWN} is the same as {@link #onLost}.
+   */
+  public void onRegion(String address, int region, long timestampNanos) {
+    if (region == RangingUtils.Region.UNKNOWN) {
+      onLost(address, timestampNanos);
+      return;
+    }
+    advance(timestampNanos);
+    Zone zone = mZones.get(address);
+    if (zone == null) {
+      zone = new Zone(address);
+      mZones.put(address, zone);
+    } else if (zone.mRegion != region) {
+      mDwellTimers.cancel(zone);
+      mListener.onExit(address, zone.mRegion);
+    } else {
+      return;
+    }
+    zone.mRegion = region;
+    zone.mEnterNanos = timestampNanos;
+    if (mDwellNanos[region] > 0) {
+      mDwellTimers.schedule(zone, timestampNanos + mDwellNanos[region]);
+    }
+    mListener.onEnter(address, region);
+  }
+
+  /**
+   * Reports a device lost, firing an exit event if it was in a region.
+   */
+  public void onLost(String address, long timestampNanos) {
+    advance(timestampNanos);
+    Zone zone = mZones.remove(address);
+    if (zone != null) {
+      mDwellTimers.cancel(zone);
+      mListener.onExit(address, zone.mRegion);
+    }
+  }
+
+  /**
+   * Applies the changes of a batch of {@code resolver}, visiting only the devices changed.
+   */
+  public void onChanges(RegionResolver resolver, RegionResolver.ChangeSet changes,
+      long timestampNanos) {
+    advance(timestampNanos);
+    // A device may have been dropped and seen again within the batch.
+    List<String> exited = changes.getExited();
+    for (int i = 0; i < exited.size(); i++) {
+      String address = exited.get(i);
+      if (!resolver.isTracked(address)) {
+        onLost(address, timestampNanos);
+      }
+    }
+    onRegions(resolver, changes.getEntered(), timestampNanos);
+    onRegions(resolver, changes.getRegionChanged(), timestampNanos);
+  }
+
+  /**
+   * Moves the time to {@code nowNanos}, firing the dwell events due. Call it periodically, for
+   * example from a UI timer, for dwell events to fire while no region changes; the cost depends on
+   * the time elapsed and the events due, not on the number of devices. Devices that went silent
+   * exit once the changes of {@link RegionResolver#evictIdle} are applied with {@link #onChanges}.
+   */
+  public void advance(long nowNanos) {
+    mDwellTimers.advance(nowNanos);
+  }
+
+  /**
+   * Returns the region of a device, or {@link RangingUtils.Region#UNKNOWN} if it isn't in a region.
+   */
+  public int getRegion(String address) {
+    Zone zone = mZones.get(address);
+    return zone != null ? zone.mRegion : RangingUtils.Region.UNKNOWN;
+  }
+
+  /**
+   * Returns the number of devices in a region.
+   */
+  public int getDeviceCount() {
+    return mZones.size();
+  }
+
+  private void onRegions(RegionResolver resolver, List<String> addresses, long timestampNanos) {
+    for (int i = 0; i < addresses.size(); i++) {
+      String address = addresses.get(i);
+      if (resolver.isTracked(address)) {
+        onRegion(address, resolver.getRegion(address), timestampNanos);
+      }
+    }
+  }
+}
@@ -17,62 +17,170 @@ package org.uribeacon.widget;
 
 import android.bluetooth.BluetoothDevice;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.view.LayoutInflater;
 import android.widget.BaseAdapter;
 
 import org.uribeacon.scan.compat.ScanResult;
+import org.uribeacon.scan.util.RangingUtils;
 import org.uribeacon.scan.util.RegionResolver;
+import org.uribeacon.scan.util.TimeDecayedAverage;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.TimeUnit;
 
 
 /**
  * Adapter for holding and sorting devices found through scanning that can be used in a ListView.
+ * <p>
+ * Sightings are kept sorted as they are added, and the list is refreshed at most once per
+ * refresh interval, one display frame by default, however many ScanResults arrive.
  */
 public abstract class ScanResultAdapter extends BaseAdapter {
+  // One frame at 60 frames per second.
+  private static final long DEFAULT_REFRESH_INTERVAL_MILLIS = 16;
+  // Period of the removal of expired ScanResults, while some have a lifetime.
+  private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
   private final Map<String /* device address */, DeviceSighting> mLeScanResults;
-  private List<DeviceSighting> mSortedSightings;
+  // All sightings, in order
+  private final List<DeviceSighting> mSortedSightings = new ArrayList<>();
+  // The sightings as of the last refresh, shown by the list
+  private final List<DeviceSighting> mVisibleSightings = new ArrayList<>();
+  private String mNearestAddress;
   public final LayoutInflater mInflater;
   public final RegionResolver mRegionResolver;
-  private final Handler mHandler;
+  private final TaskRunner mTaskRunner;
+  private long mRefreshIntervalMillis = DEFAULT_REFRESH_INTERVAL_MILLIS;
+  private long mLastRefreshMillis;
+  private boolean mRefreshPending;
+  /**
+   * Runs the delayed tasks of the adapter on the thread that created it, in uptime.
+   */
+  interface TaskRunner {
+    long uptimeMillis();
+
+    void postDelayed(Runnable task, long delayMillis);
+
+    void removeCallbacks(Runnable task);
+  }
+
+  private static class HandlerTaskRunner implements TaskRunner {
+    private final Handler mHandler = new Handler();
+
+    @Override
+    public long uptimeMillis() {
+      return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void postDelayed(Runnable task, long delayMillis) {
+      mHandler.postDelayed(task, delayMillis);
+    }
+
+    @Override
+    public void removeCallbacks(Runnable task) {
+      mHandler.removeCallbacks(task);
+    }
+  }
+
+  private final Runnable mRefresh = new Runnable() {
+    @Override
+    public void run() {
+      mRefreshPending = false;
+      notifyDataSetChanged();
+    }
+  };
 
   // Timeout to remove a ScanResult after lifetime expires.
-  private class Timeout implements Runnable {
+  private static class Timeout {
     final String mAddress;
+    // The deadline, and the deadline the timeout is queued at, which may be earlier.
+    long mDeadlineMillis;
+    long mQueuedDeadlineMillis;
 
-    Timeout(String address) {
+    Timeout(String address, long deadlineMillis) {
       mAddress = address;
+      mDeadlineMillis = deadlineMillis;
+      mQueuedDeadlineMillis = deadlineMillis;
     }
+  }
 
-    public void run() {
-      remove(mAddress);
+  private static final Comparator<Timeout> QUEUED_DEADLINE_ORDER = new Comparator<Timeout>() {
+    @Override
+    public int compare(Timeout lhs, Timeout rhs) {
+      return lhs.mQueuedDeadlineMillis < rhs.mQueuedDeadlineMillis ? -1
+          : (lhs.mQueuedDeadlineMillis == rhs.mQueuedDeadlineMillis ? 0 : 1);
     }
-  }
+  };
 
+  // The timeout of each device, and the timeouts by queued deadline. A refreshed timeout only
+  // moves its deadline, and is queued again when the sweeper reaches its queued deadline; a
+  // removed one stays queued until then.
   private final HashMap<String, Timeout> mTimeouts = new HashMap<>();
+  private final PriorityQueue<Timeout> mTimeoutQueue =
+      new PriorityQueue<>(11, QUEUED_DEADLINE_ORDER);
+  private boolean mSweepPending;
+  private final Runnable mSweep = new Runnable() {
+    @Override
+    public void run() {
+      mSweepPending = false;
+      sweep();
+    }
+  };
 
   public ScanResultAdapter(LayoutInflater inflater) {
+    this(inflater, new HandlerTaskRunner());
+  }
+
+  /**
+   * @VisibleForTesting
+   */
+  ScanResultAdapter(LayoutInflater inflater, TaskRunner taskRunner) {
     mLeScanResults = new HashMap<>();
     mRegionResolver = new RegionResolver();
-    mSortedSightings = null;
     mInflater = inflater;
-    mHandler = new Handler();
+    mTaskRunner = taskRunner;
   }
   public void setSmoothFactor(double smoothFactor) {
     mRegionResolver.setSmoothFactor(smoothFactor);
+    mRegionResolver.setSmoother(null);
+  }
+
+  /**
+   * Smooths the RSSI of devices by the time their ScanResults were received rather than by their
+   * count, so the stability of regions doesn't depend on the scan mode.
+   *
+   * @param halfLifeMillis The time for the weight of a ScanResult to halve.
+   */
+  public void setHalfLifeMillis(long halfLifeMillis) {
+    mRegionResolver.setSmoother(TimeDecayedAverage.factory(halfLifeMillis));
+  }
+
+  /**
+   * Sets the minimum time between two refreshes of the list; changes in between are shown
+   * together.
+   */
+  public void setRefreshIntervalMillis(long refreshIntervalMillis) {
+    mRefreshIntervalMillis = refreshIntervalMillis;
   }
+
   /**
    * Adds the ScanResult to the adapter with an auto-removal after lifetimeSeconds.
    * <p/>
    * Note: The lifetime param is useful when a device stops matching a filter
    * (e.g. advertising the config service) but is not reported lost by the scanner
    * because it is still advertising a UriBeacon.
+   * <p/>
+   * Expired ScanResults are removed by a sweep every second, so adding a ScanResult only moves
+   * the deadline of its device.
    *
    * @param scanResult        The ScanResult to add to the adapter.
    * @param calibratedTxPower The Transmit Power used for the ScanResult.
@@ -80,15 +188,26 @@ public abstract class ScanResultAdapter extends BaseAdapter {
    */
   public void add(ScanResult scanResult, int calibratedTxPower, int lifetimeSeconds) {
     final String address = scanResult.getDevice().getAddress();
-    // Create or replace the timeout runnable
+    long deadlineMillis = mTaskRunner.uptimeMillis() + TimeUnit.SECONDS.toMillis(lifetimeSeconds);
+    // Create or extend the timeout
     Timeout timer = mTimeouts.get(address);
-    if (timer != null) {
-      mHandler.removeCallbacks(timer);
-    } else {
-      timer = new Timeout(address);
+    if (timer == null) {
+      timer = new Timeout(address, deadlineMillis);
       mTimeouts.put(address, timer);
+      mTimeoutQueue.add(timer);
+    } else if (deadlineMillis >= timer.mQueuedDeadlineMillis) {
+      timer.mDeadlineMillis = deadlineMillis;
+    } else {
+      // A shorter lifetime than before, which is rare: queue the timeout at its new deadline.
+      mTimeoutQueue.remove(timer);
+      timer.mDeadlineMillis = deadlineMillis;
+      timer.mQueuedDeadlineMillis = deadlineMillis;
+      mTimeoutQueue.add(timer);
+    }
+    if (!mSweepPending) {
+      mSweepPending = true;
+      mTaskRunner.postDelayed(mSweep, SWEEP_INTERVAL_MILLIS);
     }
-    mHandler.postDelayed(timer, TimeUnit.SECONDS.toMillis(lifetimeSeconds));
     add(scanResult, calibratedTxPower);
   }
 
@@ -100,16 +219,24 @@ public abstract class ScanResultAdapter extends BaseAdapter {
    */
   public void add(ScanResult scanResult, int txPower) {
     final String address = scanResult.getDevice().getAddress();
-    mRegionResolver.onUpdate(address, scanResult.getRssi(), txPower);
+    mRegionResolver.onUpdate(address, scanResult.getRssi(), txPower,
+        scanResult.getTimestampNanos());
     double distance = mRegionResolver.getDistance(address);
+    int region = mRegionResolver.getRegion(address);
     DeviceSighting sightings = mLeScanResults.get(address);
     if (sightings == null) {
-      mLeScanResults.put(scanResult.getDevice().getAddress(),
-          new DeviceSighting(scanResult, distance));
+      sightings = new DeviceSighting(scanResult, distance);
+      mLeScanResults.put(address, sightings);
+      // The device may have been the nearest before it was removed or cleared.
+      sightings.mNearest = address.equals(mRegionResolver.getNearestAddress());
+      sightings.mRegion = region;
+      insertSorted(sightings);
     } else {
       sightings.updateSighting(scanResult, distance);
+      reorder(sightings, sightings.mNearest, region);
     }
-    notifyDataSetChanged();
+    updateNearest();
+    scheduleRefresh();
   }
 
   /**
@@ -124,16 +251,16 @@ public abstract class ScanResultAdapter extends BaseAdapter {
 
   private void remove(String address) {
     mRegionResolver.onLost(address);
-    mLeScanResults.remove(address);
-
-    // Clean out the timeout runnable
-    Timeout timer = mTimeouts.get(address);
-    if (timer != null) {
-      mHandler.removeCallbacks(timer);
-      mTimeouts.remove(address);
+    DeviceSighting sighting = mLeScanResults.remove(address);
+    if (sighting != null) {
+      mSortedSightings.remove(Collections.binarySearch(mSortedSightings, sighting));
     }
+    updateNearest();
 
-    notifyDataSetChanged();
+    // Clean out the timeout; the sweeper drops it from the queue
+    mTimeouts.remove(address);
+
+    scheduleRefresh();
   }
 
   /**
@@ -141,27 +268,36 @@ public abstract class ScanResultAdapter extends BaseAdapter {
    */
   public void clear() {
     mLeScanResults.clear();
+    mSortedSightings.clear();
+    mNearestAddress = null;
+    // The sweeper drops the queued timeouts
+    mTimeouts.clear();
     notifyDataSetChanged();
   }
 
+  /**
+   * Refreshes the list now with the current sightings.
+   */
   @Override
   public void notifyDataSetChanged() {
-    mSortedSightings = null;
+    if (mRefreshPending) {
+      mTaskRunner.removeCallbacks(mRefresh);
+      mRefreshPending = false;
+    }
+    mLastRefreshMillis = mTaskRunner.uptimeMillis();
+    mVisibleSightings.clear();
+    mVisibleSightings.addAll(mSortedSightings);
     super.notifyDataSetChanged();
   }
 
   @Override
   public int getCount() {
-    return mLeScanResults.size();
+    return mVisibleSightings.size();
   }
 
   @Override
   public DeviceSighting getItem(int i) {
-    if (mSortedSightings == null) {
-      mSortedSightings = new ArrayList<>(mLeScanResults.values());
-      Collections.sort(mSortedSightings);
-    }
-    return mSortedSightings.get(i);
+    return mVisibleSightings.get(i);
   }
 
   @Override
@@ -169,6 +305,74 @@ public abstract class ScanResultAdapter extends BaseAdapter {
     return i;
   }
 
+  /**
+   * Removes the devices whose lifetime expired, and sweeps again later while timeouts remain.
+   */
+  private void sweep() {
+    long nowMillis = mTaskRunner.uptimeMillis();
+    Timeout timer = mTimeoutQueue.peek();
+    while (timer != null && timer.mQueuedDeadlineMillis <= nowMillis) {
+      mTimeoutQueue.poll();
+      if (mTimeouts.get(timer.mAddress) == timer) {
+        if (timer.mDeadlineMillis <= nowMillis) {
+          remove(timer.mAddress);
+        } else {
+          timer.mQueuedDeadlineMillis = timer.mDeadlineMillis;
+          mTimeoutQueue.add(timer);
+        }
+      }
+      timer = mTimeoutQueue.peek();
+    }
+    if (!mTimeoutQueue.isEmpty()) {
+      mSweepPending = true;
+      mTaskRunner.postDelayed(mSweep, SWEEP_INTERVAL_MILLIS);
+    }
+  }
+
+  private void scheduleRefresh() {
+    if (!mRefreshPending) {
+      mRefreshPending = true;
+      long delayMillis = mLastRefreshMillis + mRefreshIntervalMillis - mTaskRunner.uptimeMillis();
+      mTaskRunner.postDelayed(mRefresh, Math.max(0, delayMillis));
+    }
+  }
+
+  private void insertSorted(DeviceSighting sighting) {
+    int position = Collections.binarySearch(mSortedSightings, sighting);
+    mSortedSightings.add(-position - 1, sighting);
+  }
+
+  /**
+   * Updates the sort keys of a sighting, moving it only if they changed.
+   */
+  private void reorder(DeviceSighting sighting, boolean nearest, int region) {
+    if (sighting.mNearest != nearest || sighting.mRegion != region) {
+      mSortedSightings.remove(Collections.binarySearch(mSortedSightings, sighting));
+      sighting.mNearest = nearest;
+      sighting.mRegion = region;
+      insertSorted(sighting);
+    }
+  }
+
+  /**
+   * Moves the previous and the new nearest sightings if the nearest device changed.
+   */
+  private void updateNearest() {
+    String nearest = mRegionResolver.getNearestAddress();
+    if (nearest == null ? mNearestAddress == null : nearest.equals(mNearestAddress)) {
+      return;
+    }
+    DeviceSighting previous = mNearestAddress != null ? mLeScanResults.get(mNearestAddress) : null;
+    mNearestAddress = nearest;
+    if (previous != null) {
+      reorder(previous, false, previous.mRegion);
+    }
+    DeviceSighting next = nearest != null ? mLeScanResults.get(nearest) : null;
+    if (next != null) {
+      reorder(next, true, next.mRegion);
+    }
+  }
+
   /**
    * Hold the ScanResult and distance information.
    */
@@ -176,6 +380,9 @@ public abstract class ScanResultAdapter extends BaseAdapter {
     public ScanResult scanResult;
     public double latestDistance;
     public long period;
+    // Sort keys, updated by the adapter
+    private boolean mNearest;
+    private int mRegion = RangingUtils.Region.FAR;
 
     public DeviceSighting(ScanResult scanResult, double distance) {
       this.scanResult = scanResult;
@@ -194,24 +401,16 @@ public abstract class ScanResultAdapter extends BaseAdapter {
 
     @Override
     public int compareTo(@NonNull DeviceSighting other) {
-      final String address = scanResult.getDevice().getAddress();
-      final String otherAddress = other.scanResult.getDevice().getAddress();
-      // Sort by the stabilized region of the device, unless
-      // they are the same, in which case sort by distance.
-      final String nearest = mRegionResolver.getNearestAddress();
-      if (address.equals(nearest)) {
-        return -1;
-      }
-      if (otherAddress.equals(nearest)) {
-        return 1;
+      // The nearest device comes first, then sort by the stabilized region of the device,
+      // unless they are the same, in which case sort by device address.
+      if (mNearest != other.mNearest) {
+        return mNearest ? -1 : 1;
       }
-      int r1 = mRegionResolver.getRegion(address);
-      int r2 = mRegionResolver.getRegion(otherAddress);
-      if (r1 != r2) {
-        return ((Integer) r1).compareTo(r2);
+      if (mRegion != other.mRegion) {
+        return mRegion < other.mRegion ? -1 : 1;
       }
-      // The two devices are in the same region, sort by device address.
-      return address.compareTo(other.scanResult.getDevice().getAddress());
+      return scanResult.getDevice().getAddress().compareTo(
+          other.scanResult.getDevice().getAddress());
     }
   }
 }